@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.google.api.services.samples.adexchangeseller.cmdline;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fetches every page of a paged report and streams the rows, in report order, to a
+ * {@link Sink}.
+ *
+ * <p>The first page is fetched on its own, because its total matched rows give the offset of
+ * every other page. The remaining pages are then fetched concurrently, by at most
+ * {@code concurrency} threads, and each page is handed to the sink as soon as it and all the pages
+ * before it have arrived. A page other than the last that comes back short, for example because
+ * the report changed in between requests, has its missing rows fetched again, so that no rows are
+ * silently skipped.
+ *
+ * <p>This class only depends on the {@link PageFetcher} passed to it. The AdSense and the Ad
+ * Exchange Seller samples each keep an identical copy, apart from the package, because each sample
+ * is a Maven project of its own.
+ */
+public class ReportPager {
+
+  /** Maximum number of obtainable rows for paged reports (API limit). */
+  public static final long ROW_LIMIT = 5000;
+
+  /** Default number of pages fetched at once. */
+  public static final int DEFAULT_CONCURRENCY = 4;
+
+  /** One page of a report. */
+  public static class Page {
+
+    private final List<String> headers;
+    private final List<List<String>> rows;
+    private final long totalMatchedRows;
+
+    /**
+     * @param headers the names of the report's columns
+     * @param rows the rows of the page, or {@code null} if it has none
+     * @param totalMatchedRows the number of rows in the whole report
+     */
+    public Page(List<String> headers, List<List<String>> rows, Long totalMatchedRows) {
+      this.headers = headers;
+      this.rows = rows == null ? new ArrayList<List<String>>() : rows;
+      this.totalMatchedRows = totalMatchedRows == null ? 0 : totalMatchedRows;
+    }
+  }
+
+  /**
+   * Fetches a single page of a report. Pages are fetched from several threads at once, so
+   * implementations should build a new request for each call.
+   */
+  public interface PageFetcher {
+
+    Page fetch(long startIndex, long maxResults) throws IOException;
+  }
+
+  /** Receives the rows of a report as they arrive. */
+  public interface Sink {
+
+    /** Called once, before any rows, with the names of the report's columns. */
+    void start(List<String> headers) throws IOException;
+
+    /** Called with each page of rows, in report order. */
+    void write(List<List<String>> rows) throws IOException;
+
+    /** Called once all the rows have been written. */
+    void end() throws IOException;
+  }
+
+  private final PageFetcher fetcher;
+  private final long pageSize;
+  private final long rowLimit;
+  private final int concurrency;
+
+  public ReportPager(PageFetcher fetcher, long pageSize) {
+    this(fetcher, pageSize, ROW_LIMIT, DEFAULT_CONCURRENCY);
+  }
+
+  /**
+   * @param fetcher fetches the individual pages
+   * @param pageSize the maximum number of rows to request per page
+   * @param rowLimit the maximum number of rows to fetch in total
+   * @param concurrency the maximum number of pages to fetch at once
+   */
+  public ReportPager(PageFetcher fetcher, long pageSize, long rowLimit, int concurrency) {
+    if (pageSize <= 0 || rowLimit <= 0 || concurrency <= 0) {
+      throw new IllegalArgumentException("pageSize, rowLimit and concurrency must be positive");
+    }
+    this.fetcher = fetcher;
+    this.pageSize = pageSize;
+    this.rowLimit = rowLimit;
+    this.concurrency = concurrency;
+  }
+
+  /**
+   * Fetches the report and writes it to {@code sink}. Nothing is written if the report is empty.
+   *
+   * @return the number of rows written
+   * @throws IOException if a fetch fails, or if rows in the middle of the report can't be fetched
+   *     even on their own
+   */
+  public long run(Sink sink) throws IOException {
+    Page first = fetcher.fetch(0, Math.min(pageSize, rowLimit));
+    if (first.rows.isEmpty()) {
+      return 0;
+    }
+    sink.start(first.headers);
+    sink.write(first.rows);
+    long written = first.rows.size();
+
+    // Step by the size of the first page, in case the server returned fewer rows than asked for.
+    long stride = first.rows.size();
+    long totalRows = Math.min(first.totalMatchedRows, rowLimit);
+    if (written < totalRows) {
+      ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+      try {
+        List<Future<Page>> pages = new ArrayList<Future<Page>>();
+        for (long startIndex = stride; startIndex < totalRows; startIndex += stride) {
+          pages.add(executor.submit(
+              new PageFetch(fetcher, startIndex, Math.min(stride, totalRows - startIndex))));
+        }
+        for (int i = 0; i < pages.size(); i++) {
+          Page page = await(pages.get(i));
+          long startIndex = stride * (i + 1);
+          long expected = Math.min(stride, totalRows - startIndex);
+          long fetched = page.rows.size();
+          if (fetched > 0) {
+            sink.write(page.rows);
+            written += fetched;
+          }
+          // A short last page only means the report shrank; the later pages were requested from
+          // fixed offsets, so a short page before them must have its gap filled.
+          boolean last = i == pages.size() - 1;
+          while (!last && fetched < expected) {
+            Page gap = fetcher.fetch(startIndex + fetched, expected - fetched);
+            if (gap.rows.isEmpty()) {
+              throw new IOException("Unable to fetch rows " + (startIndex + fetched) + " to "
+                  + (startIndex + expected - 1) + "; the report may have changed while paging");
+            }
+            sink.write(gap.rows);
+            written += gap.rows.size();
+            fetched += gap.rows.size();
+          }
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+    sink.end();
+    return written;
+  }
+
+  private static Page await(Future<Page> page) throws IOException {
+    try {
+      return page.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while fetching report pages");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Report page fetch failed", e.getCause());
+    }
+  }
+
+  private static class PageFetch implements Callable<Page> {
+
+    private final PageFetcher fetcher;
+    private final long startIndex;
+    private final long maxResults;
+
+    PageFetch(PageFetcher fetcher, long startIndex, long maxResults) {
+      this.fetcher = fetcher;
+      this.startIndex = startIndex;
+      this.maxResults = maxResults;
+    }
+
+    @Override
+    public Page call() throws IOException {
+      return fetcher.fetch(startIndex, maxResults);
+    }
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.google.api.services.samples.adexchangeseller.cmdline;
+
+import com.google.api.client.json.JsonFactory;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link ReportPager.Sink} implementations for printing a report as a table, or writing it as CSV
+ * or as JSON lines.
+ */
+public class ReportSinks {
+
+  private ReportSinks() {
+  }
+
+  /** Returns a sink that prints the report as fixed-width columns. */
+  public static ReportPager.Sink table(PrintStream out) {
+    return new TableSink(out);
+  }
+
+  /** Returns a sink that writes the report as CSV, with a header line. */
+  public static ReportPager.Sink csv(Writer out) {
+    return new CsvSink(out);
+  }
+
+  /** Returns a sink that writes each row as a JSON object keyed by column name, one per line. */
+  public static ReportPager.Sink jsonLines(Writer out, JsonFactory jsonFactory) {
+    return new JsonLinesSink(out, jsonFactory);
+  }
+
+  private static class TableSink implements ReportPager.Sink {
+
+    private final PrintStream out;
+
+    TableSink(PrintStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void start(List<String> headers) {
+      printRow(headers);
+    }
+
+    @Override
+    public void write(List<List<String>> rows) {
+      for (List<String> row : rows) {
+        printRow(row);
+      }
+    }
+
+    @Override
+    public void end() {
+      out.println();
+    }
+
+    private void printRow(List<String> row) {
+      StringBuilder line = new StringBuilder();
+      for (String column : row) {
+        line.append(String.format("%25s", column));
+      }
+      out.println(line);
+    }
+  }
+
+  private static class CsvSink implements ReportPager.Sink {
+
+    private final Writer out;
+
+    CsvSink(Writer out) {
+      this.out = out;
+    }
+
+    @Override
+    public void start(List<String> headers) throws IOException {
+      writeLine(headers);
+    }
+
+    @Override
+    public void write(List<List<String>> rows) throws IOException {
+      for (List<String> row : rows) {
+        writeLine(row);
+      }
+    }
+
+    @Override
+    public void end() throws IOException {
+      out.flush();
+    }
+
+    private void writeLine(List<String> row) throws IOException {
+      for (int i = 0; i < row.size(); i++) {
+        if (i > 0) {
+          out.write(',');
+        }
+        out.write(escape(row.get(i)));
+      }
+      out.write("\r\n");
+    }
+
+    private static String escape(String value) {
+      if (value == null) {
+        return "";
+      }
+      if (value.indexOf(',') == -1 && value.indexOf('"') == -1 && value.indexOf('\n') == -1
+          && value.indexOf('\r') == -1) {
+        return value;
+      }
+      return '"' + value.replace("\"", "\"\"") + '"';
+    }
+  }
+
+  private static class JsonLinesSink implements ReportPager.Sink {
+
+    private final Writer out;
+    private final JsonFactory jsonFactory;
+    private List<String> headers;
+
+    JsonLinesSink(Writer out, JsonFactory jsonFactory) {
+      this.out = out;
+      this.jsonFactory = jsonFactory;
+    }
+
+    @Override
+    public void start(List<String> headers) {
+      this.headers = headers;
+    }
+
+    @Override
+    public void write(List<List<String>> rows) throws IOException {
+      for (List<String> row : rows) {
+        Map<String, String> object = new LinkedHashMap<String, String>();
+        for (int i = 0; i < row.size(); i++) {
+          object.put(headers.get(i), row.get(i));
+        }
+        out.write(jsonFactory.toString(object));
+        out.write('\n');
+      }
+    }
+
+    @Override
+    public void end() throws IOException {
+      out.flush();
+    }
+  }
+}
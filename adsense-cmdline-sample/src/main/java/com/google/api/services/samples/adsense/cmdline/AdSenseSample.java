@@ -36,6 +36,7 @@ import com.google.api.services.adsense.model.SavedReports;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.Collections;
 
 /**
@@ -44,6 +45,8 @@ import java.util.Collections;
  * <ul>
  * <li>Listing all AdSense accounts for a user</li>
  * <li>Listing the sub-account tree for an account</li>
+ * <li>Crawling the whole inventory of all accounts into a snapshot file, when run with
+ * {@code --crawl}</li>
  * <li>Listing all ad clients for an account</li>
  * <li>Listing all ad clients for the default account</li>
  * <li>Listing all ad units for an ad client</li>
@@ -73,6 +76,13 @@ public class AdSenseSample {
   private static final java.io.File DATA_STORE_DIR =
       new java.io.File(System.getProperty("user.home"), ".store/adsense_management_sample");
 
+  /** File the inventory crawl is written to. */
+  private static final java.io.File INVENTORY_SNAPSHOT_FILE =
+      new java.io.File(DATA_STORE_DIR, "adsense_inventory.json");
+
+  /** Argument that turns on the inventory crawl, which lists every object of every account. */
+  private static final String CRAWL_ARGUMENT = "--crawl";
+
   /**
    * Global instance of the {@link DataStoreFactory}. The best practice is to make it a single
    * globally shared instance across your application.
@@ -131,7 +141,7 @@ public class AdSenseSample {
   /**
    * Runs all the AdSense Management API samples.
    *
-   * @param args command-line arguments.
+   * @param args command-line arguments; pass {@code --crawl} to also crawl the whole inventory.
    */
   public static void main(String[] args) {
     try {
@@ -144,6 +154,9 @@ public class AdSenseSample {
         // Get an example account ID, so we can run the following sample.
         String exampleAccountId = accounts.getItems().get(0).getId();
         GetAccountTree.run(adsense, exampleAccountId);
+        if (Arrays.asList(args).contains(CRAWL_ARGUMENT)) {
+          InventoryCrawler.run(adsense, INVENTORY_SNAPSHOT_FILE, MAX_LIST_PAGE_SIZE);
+        }
         GetAllAdClientsForAccount.run(adsense, exampleAccountId, MAX_LIST_PAGE_SIZE);
       }
 
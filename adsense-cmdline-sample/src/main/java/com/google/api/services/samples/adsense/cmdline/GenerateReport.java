@@ -24,6 +24,7 @@ import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This example retrieves a report, using a filter for a specified ad client.
@@ -88,6 +89,15 @@ public class GenerateReport {
         }
 
       System.out.println();
+
+      // Summarize the week from the parsed report.
+      ReportTable table = ReportTable.of(response);
+      System.out.printf("Total clicks: %d, total earnings: %.2f\n",
+          (long) table.sum("CLICKS"), table.sum("EARNINGS"));
+      System.out.println("Top days by earnings:");
+      for (Map.Entry<String, Double> day : table.top("DATE", "EARNINGS", 3)) {
+        System.out.printf("%25s%25.2f\n", day.getKey(), day.getValue());
+      }
     } else {
       System.out.println("No rows returned.");
     }
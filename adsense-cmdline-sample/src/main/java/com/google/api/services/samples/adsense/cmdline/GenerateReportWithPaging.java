@@ -18,8 +18,10 @@ import com.google.api.services.adsense.AdSense;
 import com.google.api.services.adsense.AdSense.Reports.Generate;
 import com.google.api.services.adsense.model.AdsenseReportsGenerateResponse;
 
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
@@ -39,13 +41,10 @@ import java.util.List;
  */
 public class GenerateReportWithPaging {
 
-  // Maximum number of obtainable rows for paged reports (API limit).
-  private static final int ROW_LIMIT = 5000;
-
   static final DateFormat DATE_FORMATTER = new SimpleDateFormat("yyyy-MM-dd");
 
   /**
-   * Runs this sample.
+   * Runs this sample, printing the report as a table.
    *
    * @param adsense AdSense service object on which to run the requests.
    * @param adClientId the ad client ID on which to run the report.
@@ -54,6 +53,21 @@ public class GenerateReportWithPaging {
    */
   public static void run(AdSense adsense, String adClientId, int maxReportPageSize)
       throws Exception {
+    run(adsense, adClientId, maxReportPageSize, ReportSinks.table(System.out));
+  }
+
+  /**
+   * Runs this sample, fetching the pages after the first concurrently and writing the rows to
+   * {@code sink}.
+   *
+   * @param adsense AdSense service object on which to run the requests.
+   * @param adClientId the ad client ID on which to run the report.
+   * @param maxReportPageSize the maximum size page to retrieve.
+   * @param sink where to write the report's rows.
+   * @throws Exception
+   */
+  public static void run(final AdSense adsense, final String adClientId, int maxReportPageSize,
+      ReportPager.Sink sink) throws Exception {
     System.out.println("=================================================================");
     System.out.printf("Running report for ad client %s\n", adClientId);
     System.out.println("=================================================================");
@@ -65,8 +79,38 @@ public class GenerateReportWithPaging {
     calendar.add(Calendar.DATE, -7);
     Date oneWeekAgo = calendar.getTime();
 
-    String startDate = DATE_FORMATTER.format(oneWeekAgo);
-    String endDate = DATE_FORMATTER.format(today);
+    final String startDate = DATE_FORMATTER.format(oneWeekAgo);
+    final String endDate = DATE_FORMATTER.format(today);
+
+    // Each page gets its own request, since pages are fetched from several threads.
+    ReportPager.PageFetcher fetcher = new ReportPager.PageFetcher() {
+      @Override
+      public ReportPager.Page fetch(long startIndex, long maxResults) throws IOException {
+        Generate request = prepareRequest(adsense, adClientId, startDate, endDate);
+        request.setStartIndex((int) startIndex);
+        request.setMaxResults((int) maxResults);
+        AdsenseReportsGenerateResponse response = request.execute();
+        List<String> headers = new ArrayList<String>();
+        if (response.getHeaders() != null) {
+          for (AdsenseReportsGenerateResponse.Headers header : response.getHeaders()) {
+            headers.add(header.getName());
+          }
+        }
+        return new ReportPager.Page(headers, response.getRows(), response.getTotalMatchedRows());
+      }
+    };
+
+    long rows = new ReportPager(fetcher, maxReportPageSize).run(sink);
+    if (rows == 0) {
+      System.out.println("No rows returned.");
+    }
+  }
+
+  /**
+   * Builds a request for the report, without paging parameters.
+   */
+  private static Generate prepareRequest(AdSense adsense, String adClientId, String startDate,
+      String endDate) throws IOException {
     Generate request = adsense.reports().generate(startDate, endDate);
 
     // Specify the desired ad client using a filter.
@@ -78,70 +122,7 @@ public class GenerateReportWithPaging {
 
     // Sort by ascending date.
     request.setSort(Arrays.asList("+DATE"));
-
-    // Run first page of report.
-    request.setMaxResults(maxReportPageSize);
-    AdsenseReportsGenerateResponse response = request.execute();
-
-    if (response.getRows() == null || response.getRows().isEmpty()) {
-      System.out.println("No rows returned.");
-      return;
-    }
-
-    // The first page, so display headers.
-    displayHeaders(response.getHeaders());
-
-    // Display first page results.
-    displayRows(response.getRows());
-
-    int totalRows = Math.min(response.getTotalMatchedRows().intValue(), ROW_LIMIT);
-    for (int startIndex = response.getRows().size(); startIndex < totalRows;
-        startIndex += response.getRows().size()) {
-
-      // Check to see if we're going to go above the limit and get as many results as we can.
-      int pageSize = Math.min(maxReportPageSize, totalRows - startIndex);
-
-      request.setStartIndex(startIndex);
-      request.setMaxResults(pageSize);
-
-      // Run next page of report.
-      response = request.execute();
-
-      // If the report size changes in between paged requests, the result may be empty.
-      if (response.getRows() == null || response.getRows().isEmpty()) {
-        break;
-      }
-
-      // Display results.
-      displayRows(response.getRows());
-    }
-
-    System.out.println();
-  }
-
-  /**
-   * Displays the headers for the report.
-   * @param headers The list of headers to be displayed.
-   */
-  private static void displayHeaders(List<AdsenseReportsGenerateResponse.Headers> headers) {
-    for (AdsenseReportsGenerateResponse.Headers header : headers) {
-      System.out.printf("%25s", header.getName());
-    }
-    System.out.println();
-  }
-
-  /**
-   * Displays a list of rows for the report.
-   * @param rows The list of rows to display.
-   */
-  public static void displayRows(List<List<String>> rows) {
-    // Display results.
-    for (List<String> row : rows) {
-      for (String column : row) {
-        System.out.printf("%25s", column);
-      }
-      System.out.println();
-    }
+    return request;
   }
 
   /**
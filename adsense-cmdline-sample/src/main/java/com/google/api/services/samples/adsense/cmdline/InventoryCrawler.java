@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.services.adsense.AdSense;
+import com.google.api.services.adsense.AdSenseRequest;
+import com.google.api.services.adsense.model.Account;
+import com.google.api.services.adsense.model.Accounts;
+import com.google.api.services.adsense.model.AdClient;
+import com.google.api.services.adsense.model.AdClients;
+import com.google.api.services.adsense.model.AdUnits;
+import com.google.api.services.adsense.model.CustomChannels;
+import com.google.api.services.adsense.model.UrlChannels;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This example crawls the whole inventory of the logged in user: every account and its tree of
+ * sub-accounts, and for each of their ad clients, every ad unit, custom channel and URL channel.
+ * Each list is paged through in its own task, and the tasks run on a bounded thread pool, so
+ * branches of the tree are listed concurrently. The result is written to disk as a single JSON
+ * snapshot; since branches finish in any order, siblings in the snapshot are not in any particular
+ * order. An account that is both listed and reachable as a sub-account is crawled only once, under
+ * whichever parent reaches it first.
+ *
+ * Tags: accounts.list, accounts.get, accounts.adclients.list, accounts.adunits.list,
+ * accounts.customchannels.list, accounts.urlchannels.list
+ */
+public class InventoryCrawler {
+
+  /** Default number of list calls in flight at once. */
+  public static final int DEFAULT_PARALLELISM = 8;
+
+  private final AdSense adsense;
+  private final int maxPageSize;
+  private final ExecutorService executor;
+
+  /** Tasks submitted but not yet finished; the crawl is over when this drops to zero. */
+  private final AtomicInteger pending = new AtomicInteger();
+  private final CountDownLatch done = new CountDownLatch(1);
+  private final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+  private final AtomicLong calls = new AtomicLong();
+
+  private final List<Map<String, Object>> accounts =
+      Collections.synchronizedList(new ArrayList<Map<String, Object>>());
+
+  /** IDs of the accounts already crawled, so that no account is crawled twice. */
+  private final Set<String> crawledAccountIds =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private InventoryCrawler(AdSense adsense, int maxPageSize, int parallelism) {
+    this.adsense = adsense;
+    this.maxPageSize = maxPageSize;
+    this.executor = Executors.newFixedThreadPool(parallelism);
+  }
+
+  /**
+   * Runs this sample.
+   *
+   * @param adsense AdSense service object on which to run the requests.
+   * @param snapshot the file to write the inventory to.
+   * @param maxPageSize the maximum page size to retrieve.
+   * @throws Exception
+   */
+  public static void run(AdSense adsense, File snapshot, int maxPageSize) throws Exception {
+    System.out.println("=================================================================");
+    System.out.printf("Crawling the inventory into %s\n", snapshot);
+    System.out.println("=================================================================");
+
+    long start = System.currentTimeMillis();
+    InventoryCrawler crawler = new InventoryCrawler(adsense, maxPageSize, DEFAULT_PARALLELISM);
+    List<Map<String, Object>> inventory = crawler.crawl();
+    long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+    Writer writer = new OutputStreamWriter(new FileOutputStream(snapshot), "UTF-8");
+    try {
+      writer.write(adsense.getJsonFactory().toPrettyString(inventory));
+    } finally {
+      writer.close();
+    }
+
+    System.out.printf("Crawled %d accounts with %d calls in %d ms (%.1f calls/s).\n",
+        inventory.size(), crawler.calls.get(), elapsed, crawler.calls.get() * 1000.0 / elapsed);
+    System.out.println();
+  }
+
+  /**
+   * Crawls the inventory of the logged in user.
+   *
+   * @param adsense AdSense service object on which to run the requests.
+   * @param maxPageSize the maximum page size to retrieve.
+   * @param parallelism the maximum number of list calls in flight at once.
+   * @return one entry per account, each holding the account, its ad clients and its sub-accounts
+   *     (in the same form), and each ad client holding its ad units, custom channels and URL
+   *     channels.
+   * @throws IOException if any list call fails
+   */
+  public static List<Map<String, Object>> crawl(AdSense adsense, int maxPageSize,
+      int parallelism) throws IOException {
+    return new InventoryCrawler(adsense, maxPageSize, parallelism).crawl();
+  }
+
+  private List<Map<String, Object>> crawl() throws IOException {
+    submit(new CrawlTask() {
+      @Override
+      void crawl() throws IOException {
+        crawlAccounts();
+      }
+    });
+    try {
+      done.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while crawling");
+    } finally {
+      executor.shutdownNow();
+    }
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+    return accounts;
+  }
+
+  private void crawlAccounts() throws IOException {
+    String pageToken = null;
+    do {
+      Accounts page = execute(adsense.accounts().list()
+          .setMaxResults(maxPageSize)
+          .setPageToken(pageToken));
+      if (page.getItems() != null) {
+        for (final Account account : page.getItems()) {
+          final Map<String, Object> node = addAccount(account, accounts);
+          if (node == null) {
+            continue;
+          }
+          submit(new CrawlTask() {
+            @Override
+            void crawl() throws IOException {
+              crawlSubAccounts(account.getId(), node);
+            }
+          });
+        }
+      }
+      pageToken = page.getNextPageToken();
+    } while (pageToken != null);
+  }
+
+  /**
+   * Gets the tree of sub-accounts under an account with a single call, and adds it below
+   * {@code node}.
+   */
+  private void crawlSubAccounts(String accountId, Map<String, Object> node) throws IOException {
+    Account tree = execute(adsense.accounts().get(accountId).setTree(true));
+    addSubAccounts(tree, node);
+  }
+
+  private void addSubAccounts(Account parent, Map<String, Object> node) {
+    if (parent.getSubAccounts() == null) {
+      return;
+    }
+    @SuppressWarnings("unchecked")
+    List<Map<String, Object>> subAccounts = (List<Map<String, Object>>) node.get("subAccounts");
+    for (Account subAccount : parent.getSubAccounts()) {
+      Map<String, Object> subNode = addAccount(subAccount, subAccounts);
+      if (subNode != null) {
+        addSubAccounts(subAccount, subNode);
+      }
+    }
+  }
+
+  /**
+   * Adds a node for {@code account} to {@code siblings} and submits the crawl of its ad clients.
+   *
+   * @return the new node, or {@code null} if the account has already been crawled
+   */
+  private Map<String, Object> addAccount(Account account, List<Map<String, Object>> siblings) {
+    final String accountId = account.getId();
+    if (!crawledAccountIds.add(accountId)) {
+      return null;
+    }
+    Map<String, Object> node = new LinkedHashMap<String, Object>();
+    // The sub-accounts are kept in the node, in the same form as the account itself.
+    node.put("account", account.clone().setSubAccounts(null));
+    final List<Map<String, Object>> adClients = newChildList(node, "adClients");
+    newChildList(node, "subAccounts");
+    siblings.add(node);
+
+    submit(new CrawlTask() {
+      @Override
+      void crawl() throws IOException {
+        crawlAdClients(accountId, adClients);
+      }
+    });
+    return node;
+  }
+
+  private void crawlAdClients(final String accountId, List<Map<String, Object>> adClients)
+      throws IOException {
+    String pageToken = null;
+    do {
+      AdClients page = execute(adsense.accounts().adclients().list(accountId)
+          .setMaxResults(maxPageSize)
+          .setPageToken(pageToken));
+      if (page.getItems() != null) {
+        for (AdClient adClient : page.getItems()) {
+          Map<String, Object> node = new LinkedHashMap<String, Object>();
+          node.put("adClient", adClient);
+          final List<Object> adUnits = newChildList(node, "adUnits");
+          final List<Object> customChannels = newChildList(node, "customChannels");
+          final List<Object> urlChannels = newChildList(node, "urlChannels");
+          adClients.add(node);
+
+          final String adClientId = adClient.getId();
+          submit(new CrawlTask() {
+            @Override
+            void crawl() throws IOException {
+              crawlAdUnits(accountId, adClientId, adUnits);
+            }
+          });
+          submit(new CrawlTask() {
+            @Override
+            void crawl() throws IOException {
+              crawlCustomChannels(accountId, adClientId, customChannels);
+            }
+          });
+          submit(new CrawlTask() {
+            @Override
+            void crawl() throws IOException {
+              crawlUrlChannels(accountId, adClientId, urlChannels);
+            }
+          });
+        }
+      }
+      pageToken = page.getNextPageToken();
+    } while (pageToken != null);
+  }
+
+  private void crawlAdUnits(String accountId, String adClientId, List<Object> adUnits)
+      throws IOException {
+    String pageToken = null;
+    do {
+      AdUnits page = execute(adsense.accounts().adunits().list(accountId, adClientId)
+          .setMaxResults(maxPageSize)
+          .setPageToken(pageToken));
+      if (page.getItems() != null) {
+        adUnits.addAll(page.getItems());
+      }
+      pageToken = page.getNextPageToken();
+    } while (pageToken != null);
+  }
+
+  private void crawlCustomChannels(String accountId, String adClientId,
+      List<Object> customChannels) throws IOException {
+    String pageToken = null;
+    do {
+      CustomChannels page = execute(adsense.accounts().customchannels().list(accountId, adClientId)
+          .setMaxResults(maxPageSize)
+          .setPageToken(pageToken));
+      if (page.getItems() != null) {
+        customChannels.addAll(page.getItems());
+      }
+      pageToken = page.getNextPageToken();
+    } while (pageToken != null);
+  }
+
+  private void crawlUrlChannels(String accountId, String adClientId, List<Object> urlChannels)
+      throws IOException {
+    String pageToken = null;
+    do {
+      UrlChannels page = execute(adsense.accounts().urlchannels().list(accountId, adClientId)
+          .setMaxResults(maxPageSize)
+          .setPageToken(pageToken));
+      if (page.getItems() != null) {
+        urlChannels.addAll(page.getItems());
+      }
+      pageToken = page.getNextPageToken();
+    } while (pageToken != null);
+  }
+
+  private <T> T execute(AdSenseRequest<T> request) throws IOException {
+    calls.incrementAndGet();
+    return request.execute();
+  }
+
+  /**
+   * Adds an empty list of children to {@code node}, which is safe to fill from other threads.
+   */
+  private static <T> List<T> newChildList(Map<String, Object> node, String key) {
+    List<T> children = Collections.synchronizedList(new ArrayList<T>());
+    node.put(key, children);
+    return children;
+  }
+
+  private void submit(CrawlTask task) {
+    pending.incrementAndGet();
+    executor.execute(task);
+  }
+
+  /**
+   * A unit of the crawl. Tasks submit the tasks for their children before they finish, so the
+   * count of pending tasks only reaches zero once the whole tree has been listed.
+   */
+  private abstract class CrawlTask implements Runnable {
+
+    abstract void crawl() throws IOException;
+
+    @Override
+    public final void run() {
+      try {
+        // Once a call has failed, let the remaining tasks drain without making more calls.
+        if (failure.get() == null) {
+          crawl();
+        }
+      } catch (IOException e) {
+        failure.compareAndSet(null, e);
+      } catch (RuntimeException e) {
+        failure.compareAndSet(null, new IOException(e));
+      } finally {
+        if (pending.decrementAndGet() == 0) {
+          done.countDown();
+        }
+      }
+    }
+  }
+}
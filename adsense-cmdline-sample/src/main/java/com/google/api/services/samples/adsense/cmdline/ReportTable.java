@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.services.adsense.model.AdsenseReportsGenerateResponse;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A report held column by column, with values parsed once, when rows are added.
+ *
+ * <p>Tally metrics (such as CLICKS) are stored as {@code long[]}, ratio and currency metrics (such
+ * as AD_REQUESTS_CTR and EARNINGS) as {@code double[]}, and dimensions as {@code int[]} codes into
+ * a dictionary of their distinct values. Rows from any number of responses with the same headers,
+ * for example one per ad client, can be added to the same table, and grouped and summed without
+ * reparsing.
+ */
+public class ReportTable {
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private final List<String> names = new ArrayList<String>();
+  private final List<Column> columns = new ArrayList<Column>();
+  private final Map<String, Column> columnsByName = new HashMap<String, Column>();
+  private int rowCount;
+
+  /**
+   * Creates an empty table with the columns described by {@code headers}.
+   */
+  public ReportTable(List<AdsenseReportsGenerateResponse.Headers> headers) {
+    for (AdsenseReportsGenerateResponse.Headers header : headers) {
+      Column column;
+      if ("DIMENSION".equals(header.getType())) {
+        column = new StringColumn();
+      } else if ("METRIC_TALLY".equals(header.getType())) {
+        column = new LongColumn();
+      } else {
+        // METRIC_RATIO and METRIC_CURRENCY.
+        column = new DoubleColumn();
+      }
+      names.add(header.getName());
+      columns.add(column);
+      columnsByName.put(header.getName(), column);
+    }
+  }
+
+  /**
+   * Returns a table holding the rows of {@code response}.
+   */
+  public static ReportTable of(AdsenseReportsGenerateResponse response) {
+    ReportTable table = new ReportTable(response.getHeaders());
+    table.addRows(response.getRows());
+    return table;
+  }
+
+  /**
+   * Parses and appends rows, which must have the columns this table was created with. If a row
+   * can't be parsed, the rows before it are kept and the table is left as if it had never been
+   * given that row.
+   *
+   * @param rows the rows to add, or {@code null} for none
+   * @throws IllegalArgumentException if a row has the wrong number of columns or a metric that
+   *     isn't a number
+   */
+  public void addRows(List<List<String>> rows) {
+    if (rows == null) {
+      return;
+    }
+    for (Column column : columns) {
+      column.ensureCapacity(rowCount + rows.size());
+    }
+    for (List<String> row : rows) {
+      if (row.size() != columns.size()) {
+        throw new IllegalArgumentException(
+            "Expected " + columns.size() + " columns but got " + row.size());
+      }
+      // Parse the metrics first: they are written past the last row, so a value that isn't a number
+      // leaves nothing behind. Only then add the dimensions, whose dictionaries can't be rolled
+      // back.
+      for (int i = 0; i < row.size(); i++) {
+        if (columns.get(i) instanceof NumericColumn) {
+          columns.get(i).set(rowCount, row.get(i));
+        }
+      }
+      for (int i = 0; i < row.size(); i++) {
+        if (columns.get(i) instanceof StringColumn) {
+          columns.get(i).set(rowCount, row.get(i));
+        }
+      }
+      rowCount++;
+    }
+  }
+
+  public int getRowCount() {
+    return rowCount;
+  }
+
+  public List<String> getColumnNames() {
+    return Collections.unmodifiableList(names);
+  }
+
+  /** Returns the value of a dimension for a row. */
+  public String getString(int row, String dimension) {
+    checkRow(row);
+    StringColumn column = stringColumn(dimension);
+    return column.dictionary.get(column.codes[row]);
+  }
+
+  /** Returns the value of a metric for a row. */
+  public double getDouble(int row, String metric) {
+    checkRow(row);
+    return numericColumn(metric).getDouble(row);
+  }
+
+  /** Returns the value of a tally metric for a row. */
+  public long getLong(int row, String metric) {
+    checkRow(row);
+    Column column = column(metric);
+    if (!(column instanceof LongColumn)) {
+      throw new IllegalArgumentException(metric + " is not a tally metric");
+    }
+    return ((LongColumn) column).values[row];
+  }
+
+  /** Returns the sum of a metric over all rows. */
+  public double sum(String metric) {
+    NumericColumn column = numericColumn(metric);
+    double sum = 0;
+    for (int row = 0; row < rowCount; row++) {
+      sum += column.getDouble(row);
+    }
+    return sum;
+  }
+
+  /**
+   * Returns the sum of {@code metric} for each distinct value of {@code dimension}, in order of
+   * first appearance.
+   *
+   * <p>Summing is only meaningful for tally and currency metrics; ratios should be recomputed from
+   * the summed tallies instead.
+   */
+  public Map<String, Double> sumBy(String dimension, String metric) {
+    StringColumn keys = stringColumn(dimension);
+    double[] sums = sumByCode(keys, numericColumn(metric));
+    Map<String, Double> result = new LinkedHashMap<String, Double>();
+    for (int code = 0; code < sums.length; code++) {
+      result.put(keys.dictionary.get(code), sums[code]);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the {@code n} values of {@code dimension} with the highest sum of {@code metric},
+   * highest first.
+   */
+  public List<Map.Entry<String, Double>> top(String dimension, String metric, int n) {
+    StringColumn keys = stringColumn(dimension);
+    final double[] sums = sumByCode(keys, numericColumn(metric));
+    Integer[] codes = new Integer[sums.length];
+    for (int code = 0; code < codes.length; code++) {
+      codes[code] = code;
+    }
+    // Sorting the distinct values is cheap next to the scan over the rows.
+    Arrays.sort(codes, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Double.compare(sums[b], sums[a]);
+      }
+    });
+    List<Map.Entry<String, Double>> result = new ArrayList<Map.Entry<String, Double>>();
+    for (int i = 0; i < Math.min(n, codes.length); i++) {
+      result.add(new AbstractMap.SimpleImmutableEntry<String, Double>(
+          keys.dictionary.get(codes[i]), sums[codes[i]]));
+    }
+    return result;
+  }
+
+  private double[] sumByCode(StringColumn keys, NumericColumn values) {
+    double[] sums = new double[keys.dictionary.size()];
+    for (int row = 0; row < rowCount; row++) {
+      sums[keys.codes[row]] += values.getDouble(row);
+    }
+    return sums;
+  }
+
+  private void checkRow(int row) {
+    if (row < 0 || row >= rowCount) {
+      throw new IndexOutOfBoundsException("Row " + row + " of " + rowCount);
+    }
+  }
+
+  private Column column(String name) {
+    Column column = columnsByName.get(name);
+    if (column == null) {
+      throw new IllegalArgumentException("No column named " + name);
+    }
+    return column;
+  }
+
+  private StringColumn stringColumn(String dimension) {
+    Column column = column(dimension);
+    if (!(column instanceof StringColumn)) {
+      throw new IllegalArgumentException(dimension + " is not a dimension");
+    }
+    return (StringColumn) column;
+  }
+
+  private NumericColumn numericColumn(String metric) {
+    Column column = column(metric);
+    if (!(column instanceof NumericColumn)) {
+      throw new IllegalArgumentException(metric + " is not a metric");
+    }
+    return (NumericColumn) column;
+  }
+
+  private abstract static class Column {
+
+    abstract void ensureCapacity(int capacity);
+
+    abstract void set(int row, String value);
+
+    static int grow(int length, int capacity) {
+      return Math.max(capacity, Math.max(INITIAL_CAPACITY, length + (length >> 1)));
+    }
+  }
+
+  /** A metric, whatever the type its values are stored as. */
+  private abstract static class NumericColumn extends Column {
+
+    abstract double getDouble(int row);
+  }
+
+  private static class LongColumn extends NumericColumn {
+
+    long[] values = new long[0];
+
+    @Override
+    void ensureCapacity(int capacity) {
+      if (values.length < capacity) {
+        values = Arrays.copyOf(values, grow(values.length, capacity));
+      }
+    }
+
+    @Override
+    void set(int row, String value) {
+      values[row] = value == null || value.isEmpty() ? 0 : Long.parseLong(value);
+    }
+
+    @Override
+    double getDouble(int row) {
+      return values[row];
+    }
+  }
+
+  private static class DoubleColumn extends NumericColumn {
+
+    double[] values = new double[0];
+
+    @Override
+    void ensureCapacity(int capacity) {
+      if (values.length < capacity) {
+        values = Arrays.copyOf(values, grow(values.length, capacity));
+      }
+    }
+
+    @Override
+    void set(int row, String value) {
+      values[row] = value == null || value.isEmpty() ? 0 : Double.parseDouble(value);
+    }
+
+    @Override
+    double getDouble(int row) {
+      return values[row];
+    }
+  }
+
+  /** A dimension, stored as codes into the list of its distinct values. */
+  private static class StringColumn extends Column {
+
+    int[] codes = new int[0];
+    final List<String> dictionary = new ArrayList<String>();
+    final Map<String, Integer> codesByValue = new HashMap<String, Integer>();
+
+    @Override
+    void ensureCapacity(int capacity) {
+      if (codes.length < capacity) {
+        codes = Arrays.copyOf(codes, grow(codes.length, capacity));
+      }
+    }
+
+    @Override
+    void set(int row, String value) {
+      Integer code = codesByValue.get(value);
+      if (code == null) {
+        code = dictionary.size();
+        dictionary.add(value);
+        codesByValue.put(value, code);
+      }
+      codes[row] = code;
+    }
+  }
+}
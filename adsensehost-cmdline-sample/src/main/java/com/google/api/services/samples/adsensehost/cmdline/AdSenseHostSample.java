@@ -59,6 +59,9 @@ import java.util.Collections;
  * <li>Running a report for a publisher ad client, for the past 7 days</li>
  * </ul>
  *
+ * Run with the arguments {@code bulk <changeFile>} to apply a file of changes in batch requests
+ * instead; see {@link BulkMutations}.
+ *
  * Other samples are included for illustration purposes, but won't be run:
  * <ul>
  * <li>Getting the account data for an existing publisher, given their ad client ID</li>
@@ -153,6 +156,11 @@ public class AdSenseHostSample {
       DATA_STORE_FACTORY = new FileDataStoreFactory(DATA_STORE_DIR);
       AdSenseHost service = initializeAdsensehost();
 
+      if (args.length == 2 && args[0].equals("bulk")) {
+        BulkMutations.run(service, new java.io.File(args[1]));
+        return;
+      }
+
       AdClients adClients = GetAllAdClientsForHost.run(service, MAX_LIST_PAGE_SIZE);
       if ((adClients.getItems() != null) && !adClients.getItems().isEmpty()) {
         // Get a host ad client ID, so we can run the rest of the samples.
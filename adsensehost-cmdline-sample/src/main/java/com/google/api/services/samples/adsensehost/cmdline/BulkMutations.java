@@ -0,0 +1,438 @@
+/*
+ * Copyright (c) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.google.api.services.samples.adsensehost.cmdline;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.util.Key;
+import com.google.api.services.adsensehost.AdSenseHost;
+import com.google.api.services.adsensehost.AdSenseHostRequest;
+import com.google.api.services.adsensehost.model.AdUnit;
+import com.google.api.services.adsensehost.model.CustomChannel;
+import com.google.api.services.adsensehost.model.UrlChannel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This example applies a file of custom channel, URL channel and ad unit changes in batch
+ * requests, rather than with one HTTP request per change.
+ *
+ * <p>The file holds one change per line, as JSON (wrapped here for readability). For example:
+ *
+ * <pre>
+ * {"op": "insert", "type": "customChannel", "adClientId": "ca-host-pub-1",
+ *     "customChannel": {"name": "Sports"}}
+ * {"op": "update", "type": "adUnit", "accountId": "pub-2", "adClientId": "ca-pub-2",
+ *     "id": "ca-pub-2:3", "adUnit": {"name": "Footer"}}
+ * {"op": "delete", "type": "urlChannel", "adClientId": "ca-host-pub-1", "id": "ca-host-pub-1:4"}
+ * </pre>
+ *
+ * <p>Changes are split into batches of up to {@link #MAX_BATCH_SIZE}, which are executed
+ * concurrently. Changes that fail with a rate limit or server error are retried, with exponential
+ * backoff, in later rounds; other failures are reported at the end.
+ *
+ * <p>Inserts are the exception, because they are not idempotent: an insert that got a server
+ * error, or whose batch request failed as a whole, may have been applied anyway, and inserting it
+ * again could create a duplicate channel or ad unit. Those inserts are not retried but reported
+ * as failures whose {@link Failure#isOutcomeUnknown outcome is unknown}, to be checked before the
+ * change is applied again. Inserts that were rate limited were not applied, so they are retried.
+ *
+ * Tags: customchannels.insert, customchannels.patch, customchannels.delete, urlchannels.insert,
+ * urlchannels.delete, accounts.adunits.insert, accounts.adunits.patch, accounts.adunits.delete
+ */
+public class BulkMutations {
+
+  /** The most calls a single batch request may hold. */
+  public static final int MAX_BATCH_SIZE = 1000;
+
+  /** Default number of batch requests in flight at once. */
+  public static final int DEFAULT_PARALLELISM = 4;
+
+  /** Number of rounds a change that keeps failing with a retryable error is attempted. */
+  private static final int MAX_ATTEMPTS = 5;
+
+  private static final long INITIAL_RETRY_DELAY_MILLIS = 1000;
+
+  /** A single change, as read from one line of the change file. */
+  public static class Change extends GenericJson {
+
+    /** One of {@code insert}, {@code update} or {@code delete}. */
+    @Key
+    private String op;
+
+    /** One of {@code customChannel}, {@code urlChannel} or {@code adUnit}. */
+    @Key
+    private String type;
+
+    /** The publisher account; only used for ad units. */
+    @Key
+    private String accountId;
+
+    @Key
+    private String adClientId;
+
+    /** The ID of the resource to update or delete. */
+    @Key
+    private String id;
+
+    @Key
+    private CustomChannel customChannel;
+
+    @Key
+    private UrlChannel urlChannel;
+
+    @Key
+    private AdUnit adUnit;
+  }
+
+  /** A change that could not be applied, or may not have been, and why. */
+  public static class Failure {
+
+    private final Change change;
+    private final String message;
+    private final boolean outcomeUnknown;
+
+    Failure(Change change, String message) {
+      this(change, message, false);
+    }
+
+    Failure(Change change, String message, boolean outcomeUnknown) {
+      this.change = change;
+      this.message = message;
+      this.outcomeUnknown = outcomeUnknown;
+    }
+
+    public Change getChange() {
+      return change;
+    }
+
+    public String getMessage() {
+      return message;
+    }
+
+    /**
+     * Returns whether the change may have been applied despite the failure. This is only the case
+     * for inserts, which are not retried when it is.
+     */
+    public boolean isOutcomeUnknown() {
+      return outcomeUnknown;
+    }
+  }
+
+  /**
+   * Runs this sample.
+   *
+   * @param service AdSenseHost service object on which to run the requests.
+   * @param changeFile the file of changes to apply.
+   * @throws Exception
+   */
+  public static void run(AdSenseHost service, File changeFile) throws Exception {
+    System.out.println("=================================================================");
+    System.out.printf("Applying changes from %s\n", changeFile);
+    System.out.println("=================================================================");
+
+    List<Change> changes = readChanges(changeFile, service.getJsonFactory());
+    long start = System.currentTimeMillis();
+    List<Failure> failures = apply(service, changes, MAX_BATCH_SIZE, DEFAULT_PARALLELISM);
+
+    System.out.printf("Applied %d of %d changes in %d ms.\n", changes.size() - failures.size(),
+        changes.size(), System.currentTimeMillis() - start);
+    for (Failure failure : failures) {
+      if (failure.isOutcomeUnknown()) {
+        System.out.printf("Unknown outcome, check before applying again: %s %s: %s\n",
+            failure.getChange().op, failure.getChange().toString(), failure.getMessage());
+      } else {
+        System.out.printf("Failed to %s %s: %s\n", failure.getChange().op,
+            failure.getChange().toString(), failure.getMessage());
+      }
+    }
+
+    System.out.println();
+  }
+
+  /**
+   * Reads a change file, skipping blank lines and lines starting with {@code #}.
+   *
+   * @throws IllegalArgumentException if a line does not hold a valid change
+   */
+  public static List<Change> readChanges(File changeFile, JsonFactory jsonFactory)
+      throws IOException {
+    List<Change> changes = new ArrayList<Change>();
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(new FileInputStream(changeFile), "UTF-8"));
+    try {
+      String line;
+      int lineNumber = 0;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        Change change = jsonFactory.fromString(line, Change.class);
+        String problem = validate(change);
+        if (problem != null) {
+          throw new IllegalArgumentException(changeFile + ":" + lineNumber + ": " + problem);
+        }
+        changes.add(change);
+      }
+    } finally {
+      reader.close();
+    }
+    return changes;
+  }
+
+  private static String validate(Change change) {
+    boolean insert = "insert".equals(change.op);
+    boolean update = "update".equals(change.op);
+    if (!insert && !update && !"delete".equals(change.op)) {
+      return "Unknown op " + change.op;
+    }
+    if (change.adClientId == null) {
+      return "Missing adClientId";
+    }
+    if (!insert && change.id == null) {
+      return "Missing id";
+    }
+    if ("customChannel".equals(change.type)) {
+      return !insert && !update || change.customChannel != null ? null : "Missing customChannel";
+    } else if ("urlChannel".equals(change.type)) {
+      if (update) {
+        return "URL channels cannot be updated";
+      }
+      return !insert || change.urlChannel != null ? null : "Missing urlChannel";
+    } else if ("adUnit".equals(change.type)) {
+      if (change.accountId == null) {
+        return "Missing accountId";
+      }
+      return !insert && !update || change.adUnit != null ? null : "Missing adUnit";
+    }
+    return "Unknown type " + change.type;
+  }
+
+  /**
+   * Applies changes in concurrent batch requests, retrying those that fail with a retryable error.
+   * Inserts that may have been applied are not retried; see the class documentation.
+   *
+   * @param service AdSenseHost service object on which to run the requests.
+   * @param changes the changes to apply; changes are independent, so may be applied in any order.
+   * @param batchSize the most changes to put in one batch request, up to {@link #MAX_BATCH_SIZE}.
+   * @param parallelism the most batch requests to have in flight at once.
+   * @return the changes that could not be applied
+   */
+  public static List<Failure> apply(AdSenseHost service, List<Change> changes, int batchSize,
+      int parallelism) throws IOException {
+    if (batchSize <= 0 || batchSize > MAX_BATCH_SIZE || parallelism <= 0) {
+      throw new IllegalArgumentException(
+          "batchSize must be between 1 and " + MAX_BATCH_SIZE + " and parallelism positive");
+    }
+    List<Failure> failures = new ArrayList<Failure>();
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      List<Change> pending = changes;
+      long delay = INITIAL_RETRY_DELAY_MILLIS;
+      for (int attempt = 1; !pending.isEmpty(); attempt++) {
+        Round round = new Round();
+        List<Future<Void>> batches = new ArrayList<Future<Void>>();
+        for (int i = 0; i < pending.size(); i += batchSize) {
+          batches.add(executor.submit(new Batch(service,
+              pending.subList(i, Math.min(i + batchSize, pending.size())), round)));
+        }
+        for (Future<Void> batch : batches) {
+          await(batch);
+        }
+        failures.addAll(round.failed);
+        if (round.retryable.isEmpty()) {
+          break;
+        }
+        if (attempt == MAX_ATTEMPTS) {
+          failures.addAll(round.retryable);
+          break;
+        }
+        System.out.printf("Retrying %d changes in %d ms.\n", round.retryable.size(), delay);
+        sleep(delay);
+        delay *= 2;
+        pending = new ArrayList<Change>();
+        for (Failure failure : round.retryable) {
+          pending.add(failure.getChange());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return failures;
+  }
+
+  private static void await(Future<Void> batch) throws IOException {
+    try {
+      batch.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while applying changes");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Batch failed", e.getCause());
+    }
+  }
+
+  private static void sleep(long millis) throws IOException {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to retry");
+    }
+  }
+
+  /**
+   * Whether a failed change is worth retrying: rate limits and server errors usually clear up,
+   * whereas anything else will fail the same way again.
+   */
+  private static boolean isRetryable(GoogleJsonError error) {
+    int code = error.getCode();
+    return code == 429 || code >= 500;
+  }
+
+  private static boolean isInsert(Change change) {
+    return "insert".equals(change.op);
+  }
+
+  /** The outcome of one round of batches. */
+  private static class Round {
+
+    final List<Failure> retryable = Collections.synchronizedList(new ArrayList<Failure>());
+    final List<Failure> failed = Collections.synchronizedList(new ArrayList<Failure>());
+  }
+
+  /** Queues a slice of the changes into one batch request and executes it. */
+  private static class Batch implements Callable<Void> {
+
+    private final AdSenseHost service;
+    private final List<Change> changes;
+    private final Round round;
+
+    /** Changes whose callback has run, so that the rest can be retried if the batch fails. */
+    private final Set<Change> handled =
+        Collections.newSetFromMap(new IdentityHashMap<Change, Boolean>());
+
+    Batch(AdSenseHost service, List<Change> changes, Round round) {
+      this.service = service;
+      this.changes = changes;
+      this.round = round;
+    }
+
+    @Override
+    public Void call() throws IOException {
+      BatchRequest batch = service.batch();
+      for (Change change : changes) {
+        queue(batch, change);
+      }
+      try {
+        batch.execute();
+      } catch (IOException e) {
+        // The batch as a whole failed, so retry whatever did not get a response, except inserts:
+        // the server may have applied them before the response was lost.
+        for (Change change : changes) {
+          if (handled.contains(change)) {
+            continue;
+          }
+          if (isInsert(change)) {
+            round.failed.add(new Failure(change, e.getMessage(), true));
+          } else {
+            round.retryable.add(new Failure(change, e.getMessage()));
+          }
+        }
+      }
+      return null;
+    }
+
+    private void queue(BatchRequest batch, Change change) throws IOException {
+      if ("customChannel".equals(change.type)) {
+        if ("insert".equals(change.op)) {
+          queue(batch, change,
+              service.customchannels().insert(change.adClientId, change.customChannel));
+        } else if ("update".equals(change.op)) {
+          queue(batch, change,
+              service.customchannels().patch(change.adClientId, change.id, change.customChannel));
+        } else {
+          queue(batch, change, service.customchannels().delete(change.adClientId, change.id));
+        }
+      } else if ("urlChannel".equals(change.type)) {
+        if ("insert".equals(change.op)) {
+          queue(batch, change,
+              service.urlchannels().insert(change.adClientId, change.urlChannel));
+        } else {
+          queue(batch, change, service.urlchannels().delete(change.adClientId, change.id));
+        }
+      } else {
+        if ("insert".equals(change.op)) {
+          queue(batch, change, service.accounts().adunits()
+              .insert(change.accountId, change.adClientId, change.adUnit));
+        } else if ("update".equals(change.op)) {
+          queue(batch, change, service.accounts().adunits()
+              .patch(change.accountId, change.adClientId, change.id, change.adUnit));
+        } else {
+          queue(batch, change, service.accounts().adunits()
+              .delete(change.accountId, change.adClientId, change.id));
+        }
+      }
+    }
+
+    private <T> void queue(BatchRequest batch, final Change change,
+        AdSenseHostRequest<T> request) throws IOException {
+      request.queue(batch, new JsonBatchCallback<T>() {
+        @Override
+        public void onSuccess(T result, HttpHeaders responseHeaders) {
+          handled.add(change);
+        }
+
+        @Override
+        public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+          handled.add(change);
+          if (!isRetryable(error)) {
+            round.failed.add(new Failure(change, error.getMessage()));
+          } else if (isInsert(change) && error.getCode() != 429) {
+            // A server error does not say whether the insert was applied.
+            round.failed.add(new Failure(change, error.getMessage(), true));
+          } else {
+            round.retryable.add(new Failure(change, error.getMessage()));
+          }
+        }
+      });
+    }
+  }
+}
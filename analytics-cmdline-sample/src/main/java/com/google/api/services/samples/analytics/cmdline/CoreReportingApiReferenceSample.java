@@ -34,6 +34,7 @@ import com.google.api.services.analytics.model.GaData.Query;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -82,7 +83,7 @@ public class CoreReportingApiReferenceSample {
   /**
    * Main demo. This first initializes an Analytics service object. It then queries for the top 25
    * organic search keywords and traffic sources by visits. Finally each important part of the
-   * response is printed to the screen.
+   * response is printed to the screen. Lastly the same query is extracted in full, day by day.
    *
    * @param args command line args.
    */
@@ -99,7 +100,12 @@ public class CoreReportingApiReferenceSample {
       printPaginationInfo(gaData);
       printTotalsForAllResults(gaData);
       printColumnHeaders(gaData);
-      printDataTable(gaData);
+      // Parse the rows once, for both the data table and the top sources.
+      ReportTable table = ReportTable.of(gaData);
+      printDataTable(gaData, table);
+      printTopSources(table);
+
+      extractAllData(analytics, TABLE_ID);
 
     } catch (GoogleJsonResponseException e) {
       System.err.println("There was a service error: " + e.getDetails().getCode() + " : "
@@ -168,6 +174,60 @@ public class CoreReportingApiReferenceSample {
         .execute();
   }
 
+  /**
+   * Extracts the organic search keywords and traffic sources by visits for every day of the same
+   * period, without the 25 row limit, using a {@link ShardedReportExtractor}. Each day is queried
+   * separately, so the rows are printed day by day, and sampling is reported for each day.
+   *
+   * @param analytics the Analytics service object used to access the API.
+   * @param tableId the table ID from which to retrieve data.
+   * @throws IOException if an API error occured.
+   */
+  private static void extractAllData(Analytics analytics, String tableId) throws IOException {
+    System.out.println();
+    System.out.println("All Data, Day by Day:");
+    ShardedReportExtractor extractor = new ShardedReportExtractor(analytics, "ga:visits")
+        .setDimensions("ga:date,ga:source,ga:keyword")
+        .setSort("-ga:visits,ga:source")
+        .setFilters("ga:medium==organic");
+    List<String> tableIds = new ArrayList<String>();
+    tableIds.add(tableId);
+    List<ShardedReportExtractor.Shard> shards =
+        extractor.run(tableIds, "2012-01-01", "2012-01-14", new ShardedReportExtractor.Sink() {
+
+          @Override
+          public void start(List<ColumnHeaders> columnHeaders) {
+            for (ColumnHeaders header : columnHeaders) {
+              System.out.format("%-32s", header.getName());
+            }
+            System.out.println();
+          }
+
+          @Override
+          public void write(ShardedReportExtractor.Shard shard, List<List<String>> rows) {
+            for (List<String> rowValues : rows) {
+              for (String value : rowValues) {
+                System.out.format("%-32s", value);
+              }
+              System.out.println();
+            }
+          }
+
+          @Override
+          public void end() {
+            System.out.println();
+          }
+        });
+    long rowCount = 0;
+    for (ShardedReportExtractor.Shard shard : shards) {
+      rowCount += shard.getRowCount();
+      if (shard.isSampled()) {
+        System.out.println("Contains Sampled Data: " + shard.getStartDate());
+      }
+    }
+    System.out.println("Total Rows: " + rowCount + " in " + shards.size() + " days");
+  }
+
   /**
    * Prints general information about this report.
    *
@@ -266,8 +326,9 @@ public class CoreReportingApiReferenceSample {
    * Prints all the rows of data returned by the API.
    *
    * @param gaData the data returned from the API.
+   * @param table the rows of {@code gaData}.
    */
-  private static void printDataTable(GaData gaData) {
+  private static void printDataTable(GaData gaData, ReportTable table) {
     if (gaData.getTotalResults() > 0) {
       System.out.println("Data Table:");
 
@@ -277,10 +338,16 @@ public class CoreReportingApiReferenceSample {
       }
       System.out.println();
 
-      // Print the rows of data.
-      for (List<String> rowValues : gaData.getRows()) {
-        for (String value : rowValues) {
-          System.out.format("%-32s", value);
+      // Print the rows of data, parsed according to the data type of each column.
+      for (int row = 0; row < table.getRowCount(); row++) {
+        for (String name : table.getColumnNames()) {
+          if (table.isString(name)) {
+            System.out.format("%-32s", table.getString(row, name));
+          } else if (table.isLong(name)) {
+            System.out.format("%-32d", table.getLong(row, name));
+          } else {
+            System.out.format("%-32.2f", table.getDouble(row, name));
+          }
         }
         System.out.println();
       }
@@ -288,4 +355,16 @@ public class CoreReportingApiReferenceSample {
       System.out.println("No data");
     }
   }
+
+  /**
+   * Prints the traffic sources with the most visits, summed over their keywords.
+   *
+   * @param table the rows of data returned by the API.
+   */
+  private static void printTopSources(ReportTable table) {
+    System.out.println("Top Sources:");
+    for (Map.Entry<String, Double> source : table.top("ga:source", "ga:visits", 3)) {
+      System.out.format("%-32s%-32d%n", source.getKey(), source.getValue().longValue());
+    }
+  }
 }
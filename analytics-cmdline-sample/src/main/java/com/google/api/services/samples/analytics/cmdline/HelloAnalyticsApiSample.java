@@ -28,11 +28,8 @@ import com.google.api.client.util.store.DataStoreFactory;
 import com.google.api.client.util.store.FileDataStoreFactory;
 import com.google.api.services.analytics.Analytics;
 import com.google.api.services.analytics.AnalyticsScopes;
-import com.google.api.services.analytics.model.Accounts;
 import com.google.api.services.analytics.model.GaData;
 import com.google.api.services.analytics.model.GaData.ColumnHeaders;
-import com.google.api.services.analytics.model.Profiles;
-import com.google.api.services.analytics.model.Webproperties;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -44,7 +41,8 @@ import java.util.List;
  * This is a basic hello world sample for the Google Analytics API. It is designed to run from the
  * command line and will prompt a user to grant access to their data. Once complete, the sample will
  * traverse the Management API hierarchy by going through the authorized user's first account, first
- * web property, and finally the first profile and retrieve the first profile id. This ID is then
+ * web property, and finally the first profile and retrieve the first profile id. The hierarchy is
+ * cached locally in a {@link ManagementIndex}. This ID is then
  * used with the Core Reporting API to retrieve the top 25 organic search terms.
  *
  * @author api.nickm@gmail.com
@@ -60,6 +58,10 @@ public class HelloAnalyticsApiSample {
   /** Directory to store user credentials. */
   private static final java.io.File DATA_STORE_DIR =
       new java.io.File(System.getProperty("user.home"), ".store/analytics_sample");
+
+  /** File to store the snapshot of the Management API hierarchy. */
+  private static final java.io.File MANAGEMENT_INDEX_FILE =
+      new java.io.File(DATA_STORE_DIR, "management_index");
   
   /**
    * Global instance of the {@link DataStoreFactory}. The best practice is to make it a single
@@ -140,47 +142,34 @@ public class HelloAnalyticsApiSample {
   }
 
   /**
-   * Returns the first profile id by traversing the Google Analytics Management API. This makes 3
-   * queries, first to the accounts collection, then to the web properties collection, and finally
-   * to the profiles collection. In each request the first ID of the first entity is retrieved and
-   * used in the query for the next collection in the hierarchy.
+   * Returns the first profile id by traversing the Google Analytics Management API hierarchy. The
+   * hierarchy is read from a {@link ManagementIndex} snapshot, which is fetched again at most once
+   * a day, with one query each to the accounts, web properties, profiles and goals collections.
+   * The first profile of the first web property of the first account is returned.
    *
    * @param analytics the analytics service object used to access the API.
    * @return the profile ID of the user's first account, web property, and profile.
    * @throws IOException if the API encounters an error.
    */
   private static String getFirstProfileId(Analytics analytics) throws IOException {
-    String profileId = null;
-
-    // Query accounts collection.
-    Accounts accounts = analytics.management().accounts().list().execute();
+    ManagementIndex index = ManagementIndex.load(
+        analytics, MANAGEMENT_INDEX_FILE, ManagementIndex.DEFAULT_MAX_AGE_MILLIS);
 
-    if (accounts.getItems().isEmpty()) {
+    if (index.getAccounts().isEmpty()) {
       System.err.println("No accounts found");
-    } else {
-      String firstAccountId = accounts.getItems().get(0).getId();
-
-      // Query webproperties collection.
-      Webproperties webproperties =
-          analytics.management().webproperties().list(firstAccountId).execute();
-
-      if (webproperties.getItems().isEmpty()) {
-        System.err.println("No Webproperties found");
-      } else {
-        String firstWebpropertyId = webproperties.getItems().get(0).getId();
-
-        // Query profiles collection.
-        Profiles profiles =
-            analytics.management().profiles().list(firstAccountId, firstWebpropertyId).execute();
-
-        if (profiles.getItems().isEmpty()) {
-          System.err.println("No profiles found");
-        } else {
-          profileId = profiles.getItems().get(0).getId();
-        }
-      }
+      return null;
+    }
+    ManagementIndex.AccountInfo firstAccount = index.getAccounts().get(0);
+    if (firstAccount.getWebproperties().isEmpty()) {
+      System.err.println("No Webproperties found");
+      return null;
+    }
+    ManagementIndex.WebpropertyInfo firstWebproperty = firstAccount.getWebproperties().get(0);
+    if (firstWebproperty.getProfiles().isEmpty()) {
+      System.err.println("No profiles found");
+      return null;
     }
-    return profileId;
+    return firstWebproperty.getProfiles().get(0).getId();
   }
 
   /**
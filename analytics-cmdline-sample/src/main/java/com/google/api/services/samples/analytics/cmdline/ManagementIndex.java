@@ -0,0 +1,503 @@
+/*
+ * Copyright (c) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.google.api.services.analytics.Analytics;
+import com.google.api.services.analytics.model.Account;
+import com.google.api.services.analytics.model.Accounts;
+import com.google.api.services.analytics.model.Goal;
+import com.google.api.services.analytics.model.Goals;
+import com.google.api.services.analytics.model.Profile;
+import com.google.api.services.analytics.model.Profiles;
+import com.google.api.services.analytics.model.Webproperties;
+import com.google.api.services.analytics.model.Webproperty;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A local index of the Management API hierarchy of the authorized user: accounts, web properties,
+ * profiles and goals.
+ *
+ * <p>The whole hierarchy is fetched with one list request per collection, using the {@code ~all}
+ * wildcard for the parent IDs, plus one more request per 1000 entities. It is kept in a snapshot
+ * file, which is used until it is {@code maxAgeMillis} old, so that most runs resolve IDs without
+ * any request. Profiles, web properties and goals are looked up in hash maps.
+ *
+ * <p>The snapshot is a gzipped binary file holding the hierarchy as nested lists, so that no parent
+ * ID is written more than once.
+ */
+public class ManagementIndex {
+
+  /** Default age after which the snapshot is fetched again. */
+  public static final long DEFAULT_MAX_AGE_MILLIS = 24L * 60 * 60 * 1000;
+
+  /** Maximum number of entities per Management API list response (API limit). */
+  private static final int MAX_RESULTS = 1000;
+
+  /** Changed whenever the snapshot layout changes, so that older snapshots are fetched again. */
+  private static final int SNAPSHOT_VERSION = 1;
+
+  /** An account, with its web properties. */
+  public static class AccountInfo {
+
+    private final String id;
+    private final String name;
+    private final List<WebpropertyInfo> webproperties = new ArrayList<WebpropertyInfo>();
+
+    AccountInfo(String id, String name) {
+      this.id = id;
+      this.name = name;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public List<WebpropertyInfo> getWebproperties() {
+      return Collections.unmodifiableList(webproperties);
+    }
+  }
+
+  /** A web property, with its profiles. */
+  public static class WebpropertyInfo {
+
+    private final AccountInfo account;
+    private final String id;
+    private final String internalId;
+    private final String name;
+    private final String websiteUrl;
+    private final List<ProfileInfo> profiles = new ArrayList<ProfileInfo>();
+
+    WebpropertyInfo(
+        AccountInfo account, String id, String internalId, String name, String websiteUrl) {
+      this.account = account;
+      this.id = id;
+      this.internalId = internalId;
+      this.name = name;
+      this.websiteUrl = websiteUrl;
+    }
+
+    public AccountInfo getAccount() {
+      return account;
+    }
+
+    /** Returns the ID, of the form UA-XXXXX-YY. */
+    public String getId() {
+      return id;
+    }
+
+    public String getInternalId() {
+      return internalId;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getWebsiteUrl() {
+      return websiteUrl;
+    }
+
+    public List<ProfileInfo> getProfiles() {
+      return Collections.unmodifiableList(profiles);
+    }
+  }
+
+  /** A profile, with its goals. */
+  public static class ProfileInfo {
+
+    private final WebpropertyInfo webproperty;
+    private final String id;
+    private final String name;
+    private final String currency;
+    private final String timezone;
+    private final List<GoalInfo> goals = new ArrayList<GoalInfo>();
+
+    ProfileInfo(
+        WebpropertyInfo webproperty, String id, String name, String currency, String timezone) {
+      this.webproperty = webproperty;
+      this.id = id;
+      this.name = name;
+      this.currency = currency;
+      this.timezone = timezone;
+    }
+
+    public WebpropertyInfo getWebproperty() {
+      return webproperty;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    /** Returns the table ID used by the reporting APIs, i.e. {@code ga:} and the profile ID. */
+    public String getTableId() {
+      return "ga:" + id;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getCurrency() {
+      return currency;
+    }
+
+    public String getTimezone() {
+      return timezone;
+    }
+
+    public List<GoalInfo> getGoals() {
+      return Collections.unmodifiableList(goals);
+    }
+  }
+
+  /** A goal of a profile. */
+  public static class GoalInfo {
+
+    private final ProfileInfo profile;
+    private final String id;
+    private final String name;
+    private final String type;
+    private final boolean active;
+    private final float value;
+
+    GoalInfo(ProfileInfo profile, String id, String name, String type, boolean active,
+        float value) {
+      this.profile = profile;
+      this.id = id;
+      this.name = name;
+      this.type = type;
+      this.active = active;
+      this.value = value;
+    }
+
+    public ProfileInfo getProfile() {
+      return profile;
+    }
+
+    /** Returns the ID, from 1 to 20, which is unique within the profile. */
+    public String getId() {
+      return id;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /** Returns the type, e.g. URL_DESTINATION or EVENT. */
+    public String getType() {
+      return type;
+    }
+
+    public boolean isActive() {
+      return active;
+    }
+
+    public float getValue() {
+      return value;
+    }
+  }
+
+  private final long fetchedAt;
+  private final List<AccountInfo> accounts = new ArrayList<AccountInfo>();
+  private final Map<String, AccountInfo> accountsById = new HashMap<String, AccountInfo>();
+  private final Map<String, WebpropertyInfo> webpropertiesById =
+      new HashMap<String, WebpropertyInfo>();
+  private final Map<String, ProfileInfo> profilesById = new HashMap<String, ProfileInfo>();
+  private final Map<String, GoalInfo> goalsById = new HashMap<String, GoalInfo>();
+
+  private ManagementIndex(long fetchedAt) {
+    this.fetchedAt = fetchedAt;
+  }
+
+  /**
+   * Returns the index from {@code snapshot} if it is younger than {@code maxAgeMillis}, and
+   * otherwise fetches it and replaces the snapshot.
+   */
+  public static ManagementIndex load(Analytics analytics, File snapshot, long maxAgeMillis)
+      throws IOException {
+    if (snapshot.isFile()) {
+      try {
+        ManagementIndex index = read(snapshot);
+        if (System.currentTimeMillis() - index.fetchedAt < maxAgeMillis) {
+          return index;
+        }
+      } catch (IOException e) {
+        // An unreadable or outdated snapshot is fetched again, like a stale one.
+      }
+    }
+    ManagementIndex index = fetch(analytics);
+    index.write(snapshot);
+    return index;
+  }
+
+  /** Fetches the whole hierarchy of the authorized user. */
+  public static ManagementIndex fetch(Analytics analytics) throws IOException {
+    ManagementIndex index = new ManagementIndex(System.currentTimeMillis());
+    Analytics.Management management = analytics.management();
+
+    // Each collection is listed across all its parents, so parents are listed before children.
+    Accounts accounts;
+    int startIndex = 1;
+    do {
+      accounts = management.accounts().list()
+          .setMaxResults(MAX_RESULTS).setStartIndex(startIndex).execute();
+      if (accounts.getItems() != null) {
+        for (Account account : accounts.getItems()) {
+          index.addAccount(account.getId(), account.getName());
+        }
+      }
+      startIndex += MAX_RESULTS;
+    } while (accounts.getNextLink() != null);
+
+    Webproperties webproperties;
+    startIndex = 1;
+    do {
+      webproperties = management.webproperties().list("~all")
+          .setMaxResults(MAX_RESULTS).setStartIndex(startIndex).execute();
+      if (webproperties.getItems() != null) {
+        for (Webproperty webproperty : webproperties.getItems()) {
+          index.addWebproperty(index.account(webproperty.getAccountId()), webproperty.getId(),
+              webproperty.getInternalWebPropertyId(), webproperty.getName(),
+              webproperty.getWebsiteUrl());
+        }
+      }
+      startIndex += MAX_RESULTS;
+    } while (webproperties.getNextLink() != null);
+
+    Profiles profiles;
+    startIndex = 1;
+    do {
+      profiles = management.profiles().list("~all", "~all")
+          .setMaxResults(MAX_RESULTS).setStartIndex(startIndex).execute();
+      if (profiles.getItems() != null) {
+        for (Profile profile : profiles.getItems()) {
+          index.addProfile(
+              index.webproperty(profile.getAccountId(), profile.getWebPropertyId()),
+              profile.getId(), profile.getName(), profile.getCurrency(), profile.getTimezone());
+        }
+      }
+      startIndex += MAX_RESULTS;
+    } while (profiles.getNextLink() != null);
+
+    Goals goals;
+    startIndex = 1;
+    do {
+      goals = management.goals().list("~all", "~all", "~all")
+          .setMaxResults(MAX_RESULTS).setStartIndex(startIndex).execute();
+      if (goals.getItems() != null) {
+        for (Goal goal : goals.getItems()) {
+          ProfileInfo profile = index.profilesById.get(goal.getProfileId());
+          if (profile != null) {
+            index.addGoal(profile, goal.getId(), goal.getName(), goal.getType(),
+                Boolean.TRUE.equals(goal.getActive()),
+                goal.getValue() == null ? 0 : goal.getValue());
+          }
+        }
+      }
+      startIndex += MAX_RESULTS;
+    } while (goals.getNextLink() != null);
+    return index;
+  }
+
+  /** Returns when the hierarchy was fetched, in milliseconds since the epoch. */
+  public long getFetchedAt() {
+    return fetchedAt;
+  }
+
+  public List<AccountInfo> getAccounts() {
+    return Collections.unmodifiableList(accounts);
+  }
+
+  /** Returns the account with the given ID, or {@code null}. */
+  public AccountInfo getAccount(String accountId) {
+    return accountsById.get(accountId);
+  }
+
+  /** Returns the web property with the given ID (of the form UA-XXXXX-YY), or {@code null}. */
+  public WebpropertyInfo getWebproperty(String webpropertyId) {
+    return webpropertiesById.get(webpropertyId);
+  }
+
+  /** Returns the profile with the given ID, or {@code null}. */
+  public ProfileInfo getProfile(String profileId) {
+    return profilesById.get(profileId);
+  }
+
+  /** Returns a goal of the profile with the given ID, or {@code null}. */
+  public GoalInfo getGoal(String profileId, String goalId) {
+    return goalsById.get(profileId + "/" + goalId);
+  }
+
+  /** Returns the number of profiles in the index. */
+  public int getProfileCount() {
+    return profilesById.size();
+  }
+
+  /** Returns the account with the given ID, adding one without a name if it is not listed. */
+  private AccountInfo account(String accountId) {
+    AccountInfo account = accountsById.get(accountId);
+    return account != null ? account : addAccount(accountId, null);
+  }
+
+  /** Returns the web property with the given ID, adding one if it is not listed. */
+  private WebpropertyInfo webproperty(String accountId, String webpropertyId) {
+    WebpropertyInfo webproperty = webpropertiesById.get(webpropertyId);
+    return webproperty != null
+        ? webproperty : addWebproperty(account(accountId), webpropertyId, null, null, null);
+  }
+
+  private AccountInfo addAccount(String id, String name) {
+    AccountInfo account = new AccountInfo(id, name);
+    accounts.add(account);
+    accountsById.put(id, account);
+    return account;
+  }
+
+  private WebpropertyInfo addWebproperty(
+      AccountInfo account, String id, String internalId, String name, String websiteUrl) {
+    WebpropertyInfo webproperty = new WebpropertyInfo(account, id, internalId, name, websiteUrl);
+    account.webproperties.add(webproperty);
+    webpropertiesById.put(id, webproperty);
+    return webproperty;
+  }
+
+  private ProfileInfo addProfile(
+      WebpropertyInfo webproperty, String id, String name, String currency, String timezone) {
+    ProfileInfo profile = new ProfileInfo(webproperty, id, name, currency, timezone);
+    webproperty.profiles.add(profile);
+    profilesById.put(id, profile);
+    return profile;
+  }
+
+  private void addGoal(
+      ProfileInfo profile, String id, String name, String type, boolean active, float value) {
+    GoalInfo goal = new GoalInfo(profile, id, name, type, active, value);
+    profile.goals.add(goal);
+    goalsById.put(profile.id + "/" + id, goal);
+  }
+
+  /** Writes the snapshot through a temporary file, so that it is never left half written. */
+  private void write(File file) throws IOException {
+    File directory = file.getAbsoluteFile().getParentFile();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create directory: " + directory);
+    }
+    // createTempFile needs a prefix of at least three characters
+    File temp = File.createTempFile("." + file.getName() + ".", ".tmp", directory);
+    try {
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temp))));
+      try {
+        out.writeInt(SNAPSHOT_VERSION);
+        out.writeLong(fetchedAt);
+        out.writeInt(accounts.size());
+        for (AccountInfo account : accounts) {
+          writeString(out, account.id);
+          writeString(out, account.name);
+          out.writeInt(account.webproperties.size());
+          for (WebpropertyInfo webproperty : account.webproperties) {
+            writeString(out, webproperty.id);
+            writeString(out, webproperty.internalId);
+            writeString(out, webproperty.name);
+            writeString(out, webproperty.websiteUrl);
+            out.writeInt(webproperty.profiles.size());
+            for (ProfileInfo profile : webproperty.profiles) {
+              writeString(out, profile.id);
+              writeString(out, profile.name);
+              writeString(out, profile.currency);
+              writeString(out, profile.timezone);
+              out.writeInt(profile.goals.size());
+              for (GoalInfo goal : profile.goals) {
+                writeString(out, goal.id);
+                writeString(out, goal.name);
+                writeString(out, goal.type);
+                out.writeBoolean(goal.active);
+                out.writeFloat(goal.value);
+              }
+            }
+          }
+        }
+      } finally {
+        out.close();
+      }
+      // renameTo does not replace an existing file on every platform
+      if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+        throw new IOException("Unable to replace " + file);
+      }
+    } finally {
+      temp.delete();
+    }
+  }
+
+  private static ManagementIndex read(File file) throws IOException {
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+    try {
+      if (in.readInt() != SNAPSHOT_VERSION) {
+        throw new IOException("Unsupported management index version: " + file);
+      }
+      ManagementIndex index = new ManagementIndex(in.readLong());
+      for (int a = in.readInt(); a > 0; a--) {
+        AccountInfo account = index.addAccount(readString(in), readString(in));
+        for (int w = in.readInt(); w > 0; w--) {
+          WebpropertyInfo webproperty = index.addWebproperty(
+              account, readString(in), readString(in), readString(in), readString(in));
+          for (int p = in.readInt(); p > 0; p--) {
+            ProfileInfo profile = index.addProfile(
+                webproperty, readString(in), readString(in), readString(in), readString(in));
+            for (int g = in.readInt(); g > 0; g--) {
+              index.addGoal(profile, readString(in), readString(in), readString(in),
+                  in.readBoolean(), in.readFloat());
+            }
+          }
+        }
+      }
+      return index;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeUTF(value);
+    }
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+}
@@ -27,13 +27,14 @@ import com.google.api.client.util.store.DataStoreFactory;
 import com.google.api.client.util.store.FileDataStoreFactory;
 import com.google.api.services.analytics.Analytics;
 import com.google.api.services.analytics.AnalyticsScopes;
+import com.google.api.services.analytics.model.GaData;
 import com.google.api.services.analytics.model.McfData;
 import com.google.api.services.analytics.model.McfData.ColumnHeaders;
 import com.google.api.services.analytics.model.McfData.ProfileInfo;
 import com.google.api.services.analytics.model.McfData.Query;
 
-import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -78,13 +79,12 @@ public class McfReportingApiReferenceSample {
   private static final String TABLE_ID = "_your_table_id_";
 
   private static final String MCF_SEQUENCE_TYPE = "MCF_SEQUENCE";
-  private static final String INTEGER_TYPE = "INTEGER";
 
   /**
    * Main demo. This first initializes an analytics service object. It then uses the MCF API to
    * retrieve the top 25 source paths with most total conversions. It will also retrieve the top 25
-   * organic sources with most total conversions. Finally the results are printed to the screen. If
-   * an API error occurs, it is printed here.
+   * organic sources with most total conversions. Both queries are sent in a single batch request.
+   * Finally the results are printed to the screen. If an API error occurs, it is printed here.
    *
    * @param args command line args.
    */
@@ -94,11 +94,27 @@ public class McfReportingApiReferenceSample {
       DATA_STORE_FACTORY = new FileDataStoreFactory(DATA_STORE_DIR);
       Analytics analytics = initializeAnalytics();
 
-      McfData mcfPathData = executePathQuery(analytics, TABLE_ID);
-      printAllInfo(mcfPathData);
+      // Send both queries in one batch request, and print each result as it arrives.
+      List<ReportBatchExecutor.Query> queries = new ArrayList<ReportBatchExecutor.Query>();
+      queries.add(pathQuery(TABLE_ID));
+      queries.add(interactionQuery(TABLE_ID));
+      new ReportBatchExecutor(analytics).run(queries, new ReportBatchExecutor.Callback() {
 
-      McfData mcfInteractionData = executeInteractionQuery(analytics, TABLE_ID);
-      printAllInfo(mcfInteractionData);
+        @Override
+        public synchronized void onMcfData(ReportBatchExecutor.Query query, McfData mcfData) {
+          printAllInfo(mcfData);
+        }
+
+        @Override
+        public synchronized void onGaData(ReportBatchExecutor.Query query, GaData gaData) {
+          // Only MCF queries are sent.
+        }
+
+        @Override
+        public synchronized void onFailure(ReportBatchExecutor.Query query, String message) {
+          System.err.println("Query failed: " + query + " : " + message);
+        }
+      });
 
     } catch (GoogleJsonResponseException e) {
       System.err.println("There was a service error: " + e.getDetails().getCode() + " : "
@@ -164,43 +180,36 @@ public class McfReportingApiReferenceSample {
   }
 
   /**
-   * Returns the top 25 source paths with most total conversions. The MCF API is used to retrieve
-   * this data.
+   * Returns the query for the top 25 source paths with most total conversions. The MCF API is used
+   * to retrieve this data.
    *
-   * @param analytics The analytics service object used to access the API.
    * @param tableId The table ID from which to retrieve data.
-   * @return The response from the API.
-   * @throws IOException If an API error occurred.
+   * @return The query to run.
    */
-  private static McfData executePathQuery(Analytics analytics, String tableId) throws IOException {
-    return analytics.data().mcf().get(tableId, "2012-01-01", // Start date.
+  private static ReportBatchExecutor.Query pathQuery(String tableId) {
+    return ReportBatchExecutor.Query.mcf(tableId, "2012-01-01", // Start date.
         "2012-03-31", // End date.
         "mcf:totalConversions") // Metrics.
         .setDimensions("mcf:sourcePath")
         .setSort("-mcf:totalConversions")
-        .setMaxResults(25)
-        .execute();
+        .setMaxResults(25);
   }
 
   /**
-   * Returns the top 25 organic sources with most total conversions. The MCF API is used to retrieve
-   * this data.
+   * Returns the query for the top 25 organic sources with most total conversions. The MCF API is
+   * used to retrieve this data.
    *
-   * @param analytics The analytics service object used to access the API.
    * @param tableId The table ID from which to retrieve data.
-   * @return The response from the API.
-   * @throws IOException If an API error occurred.
+   * @return The query to run.
    */
-  private static McfData executeInteractionQuery(Analytics analytics, String tableId)
-      throws IOException {
-    return analytics.data().mcf().get(tableId, "2012-01-01", // Start date.
+  private static ReportBatchExecutor.Query interactionQuery(String tableId) {
+    return ReportBatchExecutor.Query.mcf(tableId, "2012-01-01", // Start date.
         "2012-03-31", // End date.
         "mcf:totalConversions") // Metrics.
         .setDimensions("mcf:source")
         .setSort("-mcf:totalConversions")
         .setFilters("mcf:medium==organic")
-        .setMaxResults(25)
-        .execute();
+        .setMaxResults(25);
   }
 
   /**
@@ -322,18 +331,19 @@ public class McfReportingApiReferenceSample {
       }
       System.out.println();
 
-      // Print the rows of data.
-      for (List<McfData.Rows> row : mcfData.getRows()) {
-        for (int columnIndex = 0; columnIndex < row.size(); ++columnIndex) {
-          ColumnHeaders header = headers.get(columnIndex);
-          McfData.Rows cell = row.get(columnIndex);
+      // Print the rows of data, parsed according to the data type of each column.
+      ReportTable table = ReportTable.of(mcfData);
+      for (int row = 0; row < table.getRowCount(); ++row) {
+        for (ColumnHeaders header : headers) {
+          String name = header.getName();
           if (header.getDataType().equals(MCF_SEQUENCE_TYPE)) {
-            System.out.printf(
-                "%-50s", getStringFromMcfSequence(cell.getConversionPathValue(), " > "));
-          } else if (header.getDataType().equals(INTEGER_TYPE)) {
-            System.out.printf("%25d", Long.parseLong(cell.getPrimitiveValue()));
+            System.out.printf("%-50s", table.getString(row, name));
+          } else if (table.isString(name)) {
+            System.out.printf("%25s", table.getString(row, name));
+          } else if (table.isLong(name)) {
+            System.out.printf("%25d", table.getLong(row, name));
           } else {
-            System.out.printf("%25s", cell.getPrimitiveValue());
+            System.out.printf("%25.2f", table.getDouble(row, name));
           }
         }
         System.out.println();
@@ -343,21 +353,4 @@ public class McfReportingApiReferenceSample {
     }
     System.out.println();
   }
-
-  /**
-   * Builds and gets a string to represent the path data contained in a list of
-   * McfData.Rows.ConversionPathValue objects.
-   *
-   * @param path List of MCF path elements.
-   * @param delimiter The string that will be used while joining all path elements.
-   */
-  private static String getStringFromMcfSequence(
-      List<McfData.Rows.ConversionPathValue> path, String delimiter) {
-    StringBuilder stringBuilder = new StringBuilder();
-    for (McfData.Rows.ConversionPathValue pathElement : path) {
-      if (stringBuilder.length() > 0) stringBuilder.append(delimiter);
-      stringBuilder.append(pathElement.getNodeValue());
-    }
-    return stringBuilder.toString();
-  }
 }
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.analytics.Analytics;
+import com.google.api.services.analytics.model.GaData;
+import com.google.api.services.analytics.model.McfData;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs many Core Reporting and Multi-Channel Funnels queries as batch requests, and hands each
+ * result to a {@link Callback} as soon as its batch returns.
+ *
+ * <p>Queries are grouped by profile. The batches of one profile are sent one after another, and
+ * each takes as many tokens from the profile's {@link TokenBucket} as it holds queries, so the
+ * profile's rate limit holds. The profiles themselves are processed concurrently, so a run takes
+ * about as long as its slowest profile rather than as long as all its queries.
+ *
+ * <p>Queries that fail with a rate limit or server error, or whose batch request fails as a whole,
+ * are retried with exponential backoff.
+ */
+public class ReportBatchExecutor {
+
+  /** Default number of queries in a batch request, which is also how many run at once. */
+  public static final int DEFAULT_BATCH_SIZE = 10;
+
+  /** Default number of profiles processed at once. */
+  public static final int DEFAULT_PARALLELISM = 4;
+
+  /** Number of times a query that fails with a retryable error is attempted. */
+  private static final int MAX_ATTEMPTS = 5;
+
+  private static final long INITIAL_RETRY_DELAY_MILLIS = 1000;
+
+  /** The reporting API a query is sent to. */
+  public enum Api {
+    GA, MCF
+  }
+
+  /** A query to run, described by the parameters of its request. */
+  public static class Query {
+
+    private final Api api;
+    private final String tableId;
+    private final String startDate;
+    private final String endDate;
+    private final String metrics;
+    private String dimensions;
+    private String filters;
+    private String sort;
+    private Integer maxResults;
+
+    private Query(Api api, String tableId, String startDate, String endDate, String metrics) {
+      this.api = api;
+      this.tableId = tableId;
+      this.startDate = startDate;
+      this.endDate = endDate;
+      this.metrics = metrics;
+    }
+
+    /** Returns a Core Reporting API query. */
+    public static Query ga(String tableId, String startDate, String endDate, String metrics) {
+      return new Query(Api.GA, tableId, startDate, endDate, metrics);
+    }
+
+    /** Returns a Multi-Channel Funnels Reporting API query. */
+    public static Query mcf(String tableId, String startDate, String endDate, String metrics) {
+      return new Query(Api.MCF, tableId, startDate, endDate, metrics);
+    }
+
+    public Query setDimensions(String dimensions) {
+      this.dimensions = dimensions;
+      return this;
+    }
+
+    public Query setFilters(String filters) {
+      this.filters = filters;
+      return this;
+    }
+
+    public Query setSort(String sort) {
+      this.sort = sort;
+      return this;
+    }
+
+    public Query setMaxResults(Integer maxResults) {
+      this.maxResults = maxResults;
+      return this;
+    }
+
+    public Api getApi() {
+      return api;
+    }
+
+    public String getTableId() {
+      return tableId;
+    }
+
+    @Override
+    public String toString() {
+      return api + " " + tableId + " " + startDate + ".." + endDate + " " + metrics
+          + (dimensions == null ? "" : " by " + dimensions);
+    }
+  }
+
+  /**
+   * Receives the result of each query. Results arrive in no particular order, and the methods may
+   * be called from several threads at once.
+   */
+  public interface Callback {
+
+    void onGaData(Query query, GaData gaData);
+
+    void onMcfData(Query query, McfData mcfData);
+
+    /** Called once for a query that failed for good. */
+    void onFailure(Query query, String message);
+  }
+
+  private final Analytics analytics;
+  private final int batchSize;
+  private final int parallelism;
+  private final double queriesPerSecond;
+
+  public ReportBatchExecutor(Analytics analytics) {
+    this(analytics, DEFAULT_BATCH_SIZE, DEFAULT_PARALLELISM,
+        ShardedReportExtractor.DEFAULT_QUERIES_PER_SECOND);
+  }
+
+  /**
+   * @param analytics the Analytics service object used to access the API
+   * @param batchSize the maximum number of queries in a batch request
+   * @param parallelism the maximum number of profiles processed at once
+   * @param queriesPerSecond the maximum rate of queries to each profile
+   */
+  public ReportBatchExecutor(
+      Analytics analytics, int batchSize, int parallelism, double queriesPerSecond) {
+    if (batchSize <= 0 || parallelism <= 0 || queriesPerSecond <= 0) {
+      throw new IllegalArgumentException(
+          "batchSize, parallelism and queriesPerSecond must be positive");
+    }
+    this.analytics = analytics;
+    this.batchSize = batchSize;
+    this.parallelism = parallelism;
+    this.queriesPerSecond = queriesPerSecond;
+  }
+
+  /**
+   * Runs the queries, and returns once every one of them has been passed to {@code callback}.
+   */
+  public void run(List<Query> queries, Callback callback) throws IOException {
+    Map<String, List<Query>> queriesByTableId = new LinkedHashMap<String, List<Query>>();
+    for (Query query : queries) {
+      List<Query> profileQueries = queriesByTableId.get(query.tableId);
+      if (profileQueries == null) {
+        profileQueries = new ArrayList<Query>();
+        queriesByTableId.put(query.tableId, profileQueries);
+      }
+      profileQueries.add(query);
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      List<Future<Void>> profiles = new ArrayList<Future<Void>>();
+      for (List<Query> profileQueries : queriesByTableId.values()) {
+        profiles.add(executor.submit(new ProfileQueries(profileQueries,
+            new TokenBucket(queriesPerSecond, batchSize), callback)));
+      }
+      for (Future<Void> profile : profiles) {
+        await(profile);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static void await(Future<Void> profile) throws IOException {
+    try {
+      profile.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while running queries");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Queries failed", e.getCause());
+    }
+  }
+
+  /** Runs the queries of one profile, batch after batch. */
+  private class ProfileQueries implements Callable<Void> {
+
+    private final List<Query> queries;
+    private final TokenBucket limiter;
+    private final Callback callback;
+
+    ProfileQueries(List<Query> queries, TokenBucket limiter, Callback callback) {
+      this.queries = queries;
+      this.limiter = limiter;
+      this.callback = callback;
+    }
+
+    @Override
+    public Void call() throws IOException {
+      List<Query> pending = queries;
+      long delay = INITIAL_RETRY_DELAY_MILLIS;
+      for (int attempt = 1;; attempt++) {
+        List<Query> retryable = new ArrayList<Query>();
+        boolean lastAttempt = attempt == MAX_ATTEMPTS;
+        for (int i = 0; i < pending.size(); i += batchSize) {
+          List<Query> slice = pending.subList(i, Math.min(i + batchSize, pending.size()));
+          limiter.acquire(slice.size());
+          execute(slice, retryable, lastAttempt);
+        }
+        if (retryable.isEmpty()) {
+          return null;
+        }
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+        delay *= 2;
+        pending = retryable;
+      }
+    }
+
+    /**
+     * Executes one batch. Queries to retry are added to {@code retryable}, unless this is the last
+     * attempt, in which case they are reported as failures.
+     */
+    private void execute(List<Query> slice, final List<Query> retryable,
+        final boolean lastAttempt) throws IOException {
+      BatchRequest batch = analytics.batch();
+      // Queries whose callback has run, so that the rest can be retried if the batch fails.
+      final Set<Query> handled = Collections.newSetFromMap(new IdentityHashMap<Query, Boolean>());
+      for (final Query query : slice) {
+        if (query.api == Api.GA) {
+          analytics.data().ga().get(query.tableId, query.startDate, query.endDate, query.metrics)
+              .setDimensions(query.dimensions)
+              .setFilters(query.filters)
+              .setSort(query.sort)
+              .setMaxResults(query.maxResults)
+              .queue(batch, new QueryCallback<GaData>(query, handled, retryable, lastAttempt) {
+                @Override
+                public void onSuccess(GaData gaData, HttpHeaders responseHeaders) {
+                  handled.add(query);
+                  callback.onGaData(query, gaData);
+                }
+              });
+        } else {
+          analytics.data().mcf().get(query.tableId, query.startDate, query.endDate, query.metrics)
+              .setDimensions(query.dimensions)
+              .setFilters(query.filters)
+              .setSort(query.sort)
+              .setMaxResults(query.maxResults)
+              .queue(batch, new QueryCallback<McfData>(query, handled, retryable, lastAttempt) {
+                @Override
+                public void onSuccess(McfData mcfData, HttpHeaders responseHeaders) {
+                  handled.add(query);
+                  callback.onMcfData(query, mcfData);
+                }
+              });
+        }
+      }
+      try {
+        batch.execute();
+      } catch (IOException e) {
+        // The batch as a whole failed, so retry whatever did not get a response.
+        for (Query query : slice) {
+          if (!handled.contains(query)) {
+            if (lastAttempt) {
+              callback.onFailure(query, e.getMessage());
+            } else {
+              retryable.add(query);
+            }
+          }
+        }
+      }
+    }
+
+    /** Handles the failure of a query in a batch. */
+    private abstract class QueryCallback<T> extends JsonBatchCallback<T> {
+
+      private final Query query;
+      private final Set<Query> handled;
+      private final List<Query> retryable;
+      private final boolean lastAttempt;
+
+      QueryCallback(Query query, Set<Query> handled, List<Query> retryable, boolean lastAttempt) {
+        this.query = query;
+        this.handled = handled;
+        this.retryable = retryable;
+        this.lastAttempt = lastAttempt;
+      }
+
+      @Override
+      public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+        handled.add(query);
+        if (!lastAttempt && ShardedReportExtractor.isRetryable(error)) {
+          retryable.add(query);
+        } else {
+          callback.onFailure(query, error.getMessage());
+        }
+      }
+    }
+  }
+}
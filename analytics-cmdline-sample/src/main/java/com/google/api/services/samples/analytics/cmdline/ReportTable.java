@@ -0,0 +1,475 @@
+/*
+ * Copyright (c) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.google.api.services.analytics.model.GaData;
+import com.google.api.services.analytics.model.McfData;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Core Reporting or Multi-Channel Funnels report held column by column, with values parsed
+ * once, when rows are added.
+ *
+ * <p>The data type of each column header picks its storage: INTEGER columns are stored as
+ * {@code long[]}, PERCENT, TIME, CURRENCY and FLOAT columns as {@code double[]}, and STRING
+ * columns as {@code int[]} codes into a dictionary of their distinct values. MCF_SEQUENCE columns
+ * (conversion paths) are stored like STRING columns, each path as its node values joined by
+ * {@value #PATH_DELIMITER}. Rows from any number of responses to the same query, for example one
+ * per page, can be added to the same table, and then summed, grouped and sorted without
+ * reparsing.
+ */
+public class ReportTable {
+
+  /** Separates the nodes of a conversion path in its string value. */
+  public static final String PATH_DELIMITER = " > ";
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private final List<String> names = new ArrayList<String>();
+  private final List<Column> columns = new ArrayList<Column>();
+  private final Map<String, Column> columnsByName = new HashMap<String, Column>();
+  private int rowCount;
+
+  /**
+   * Creates an empty table.
+   *
+   * @param names the names of the columns, e.g. {@code "ga:visits"}
+   * @param dataTypes the data types of the columns, e.g. {@code "INTEGER"}
+   */
+  public ReportTable(List<String> names, List<String> dataTypes) {
+    if (names.size() != dataTypes.size()) {
+      throw new IllegalArgumentException("Expected a data type for each column");
+    }
+    for (int i = 0; i < names.size(); i++) {
+      String dataType = dataTypes.get(i);
+      Column column;
+      if ("INTEGER".equals(dataType)) {
+        column = new LongColumn();
+      } else if ("PERCENT".equals(dataType) || "TIME".equals(dataType)
+          || "CURRENCY".equals(dataType) || "FLOAT".equals(dataType)) {
+        column = new DoubleColumn();
+      } else {
+        // STRING and MCF_SEQUENCE.
+        column = new StringColumn();
+      }
+      this.names.add(names.get(i));
+      columns.add(column);
+      columnsByName.put(names.get(i), column);
+    }
+  }
+
+  /** Returns a table holding the rows of a Core Reporting API response. */
+  public static ReportTable of(GaData gaData) {
+    List<String> names = new ArrayList<String>();
+    List<String> dataTypes = new ArrayList<String>();
+    for (GaData.ColumnHeaders header : gaData.getColumnHeaders()) {
+      names.add(header.getName());
+      dataTypes.add(header.getDataType());
+    }
+    ReportTable table = new ReportTable(names, dataTypes);
+    table.addRows(gaData.getRows());
+    return table;
+  }
+
+  /** Returns a table holding the rows of a Multi-Channel Funnels Reporting API response. */
+  public static ReportTable of(McfData mcfData) {
+    List<String> names = new ArrayList<String>();
+    List<String> dataTypes = new ArrayList<String>();
+    for (McfData.ColumnHeaders header : mcfData.getColumnHeaders()) {
+      names.add(header.getName());
+      dataTypes.add(header.getDataType());
+    }
+    ReportTable table = new ReportTable(names, dataTypes);
+    table.addMcfRows(mcfData.getRows());
+    return table;
+  }
+
+  /**
+   * Parses and appends Core Reporting rows, which must have the columns this table was created
+   * with. If a row can't be parsed, the rows before it are kept and the table is left as if it had
+   * never been given that row.
+   *
+   * @param rows the rows to add, or {@code null} for none
+   * @throws IllegalArgumentException if a row has the wrong number of columns or a value that
+   *     doesn't match the data type of its column
+   */
+  public void addRows(List<List<String>> rows) {
+    if (rows == null) {
+      return;
+    }
+    ensureCapacity(rowCount + rows.size());
+    for (List<String> row : rows) {
+      addRow(row);
+    }
+  }
+
+  /**
+   * Parses and appends Multi-Channel Funnels rows, which must have the columns this table was
+   * created with. A cell holds either a primitive value or a conversion path. If a row can't be
+   * parsed, the rows before it are kept and the table is left as if it had never been given that
+   * row.
+   *
+   * @param rows the rows to add, or {@code null} for none
+   * @throws IllegalArgumentException if a row has the wrong number of columns or a value that
+   *     doesn't match the data type of its column
+   */
+  public void addMcfRows(List<List<McfData.Rows>> rows) {
+    if (rows == null) {
+      return;
+    }
+    ensureCapacity(rowCount + rows.size());
+    StringBuilder path = new StringBuilder();
+    List<String> values = new ArrayList<String>(columns.size());
+    for (List<McfData.Rows> row : rows) {
+      values.clear();
+      for (McfData.Rows cell : row) {
+        if (cell.getConversionPathValue() == null) {
+          values.add(cell.getPrimitiveValue());
+          continue;
+        }
+        path.setLength(0);
+        for (McfData.Rows.ConversionPathValue node : cell.getConversionPathValue()) {
+          if (path.length() > 0) {
+            path.append(PATH_DELIMITER);
+          }
+          path.append(node.getNodeValue());
+        }
+        values.add(path.toString());
+      }
+      addRow(values);
+    }
+  }
+
+  /** Appends a row, whose columns must already have room for it. */
+  private void addRow(List<String> row) {
+    checkColumnCount(row.size());
+    // Parse the numeric columns first: they are written past the last row, so a value that isn't a
+    // number leaves nothing behind. Only then add the strings, whose dictionaries can't be rolled
+    // back.
+    for (int i = 0; i < row.size(); i++) {
+      if (columns.get(i) instanceof NumericColumn) {
+        columns.get(i).set(rowCount, row.get(i));
+      }
+    }
+    for (int i = 0; i < row.size(); i++) {
+      if (columns.get(i) instanceof StringColumn) {
+        columns.get(i).set(rowCount, row.get(i));
+      }
+    }
+    rowCount++;
+  }
+
+  public int getRowCount() {
+    return rowCount;
+  }
+
+  public List<String> getColumnNames() {
+    return Collections.unmodifiableList(names);
+  }
+
+  /** Whether a column holds STRING or MCF_SEQUENCE values. */
+  public boolean isString(String column) {
+    return column(column) instanceof StringColumn;
+  }
+
+  /** Whether a column holds INTEGER values. */
+  public boolean isLong(String column) {
+    return column(column) instanceof LongColumn;
+  }
+
+  /** Returns the value of a STRING or MCF_SEQUENCE column for a row. */
+  public String getString(int row, String column) {
+    checkRow(row);
+    StringColumn stringColumn = stringColumn(column);
+    return stringColumn.dictionary.get(stringColumn.codes[row]);
+  }
+
+  /** Returns the value of a numeric column for a row. */
+  public double getDouble(int row, String column) {
+    checkRow(row);
+    return numericColumn(column).getDouble(row);
+  }
+
+  /** Returns the value of an INTEGER column for a row. */
+  public long getLong(int row, String column) {
+    checkRow(row);
+    Column values = column(column);
+    if (!(values instanceof LongColumn)) {
+      throw new IllegalArgumentException(column + " is not an INTEGER column");
+    }
+    return ((LongColumn) values).values[row];
+  }
+
+  /** Returns the sum of a numeric column over all rows. */
+  public double sum(String column) {
+    NumericColumn values = numericColumn(column);
+    double sum = 0;
+    for (int row = 0; row < rowCount; row++) {
+      sum += values.getDouble(row);
+    }
+    return sum;
+  }
+
+  /**
+   * Returns the sum of {@code metric} for each distinct value of {@code dimension}, in order of
+   * first appearance.
+   *
+   * <p>Summing is only meaningful for INTEGER and CURRENCY metrics; percentages and averages
+   * should be recomputed from the summed metrics instead.
+   */
+  public Map<String, Double> sumBy(String dimension, String metric) {
+    StringColumn keys = stringColumn(dimension);
+    double[] sums = sumByCode(keys, numericColumn(metric));
+    Map<String, Double> result = new LinkedHashMap<String, Double>();
+    for (int code = 0; code < sums.length; code++) {
+      result.put(keys.dictionary.get(code), sums[code]);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the {@code n} values of {@code dimension} with the highest sum of {@code metric},
+   * highest first.
+   */
+  public List<Map.Entry<String, Double>> top(String dimension, String metric, int n) {
+    StringColumn keys = stringColumn(dimension);
+    final double[] sums = sumByCode(keys, numericColumn(metric));
+    Integer[] codes = new Integer[sums.length];
+    for (int code = 0; code < codes.length; code++) {
+      codes[code] = code;
+    }
+    // Sorting the distinct values is cheap next to the scan over the rows.
+    Arrays.sort(codes, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Double.compare(sums[b], sums[a]);
+      }
+    });
+    List<Map.Entry<String, Double>> result = new ArrayList<Map.Entry<String, Double>>();
+    for (int i = 0; i < Math.min(n, codes.length); i++) {
+      result.add(new AbstractMap.SimpleImmutableEntry<String, Double>(
+          keys.dictionary.get(codes[i]), sums[codes[i]]));
+    }
+    return result;
+  }
+
+  /**
+   * Returns the row numbers ordered by the values of a column. The sort is stable, so rows with
+   * equal values keep their order, and works on the parsed values, so no cell is boxed.
+   */
+  public int[] sortRows(String column, boolean descending) {
+    Column values = column(column);
+    int[] order = new int[rowCount];
+    for (int row = 0; row < rowCount; row++) {
+      order[row] = row;
+    }
+    mergeSort(order, order.clone(), 0, rowCount, values, descending ? -1 : 1);
+    return order;
+  }
+
+  /** Sorts {@code rows[from, to)}, using {@code buffer}, which starts as a copy, as scratch. */
+  private static void mergeSort(
+      int[] rows, int[] buffer, int from, int to, Column values, int direction) {
+    if (to - from < 2) {
+      return;
+    }
+    int middle = (from + to) >>> 1;
+    // Sort each half of the buffer into itself, then merge the halves back into rows.
+    mergeSort(buffer, rows, from, middle, values, direction);
+    mergeSort(buffer, rows, middle, to, values, direction);
+    int left = from;
+    int right = middle;
+    for (int i = from; i < to; i++) {
+      if (right == to || left < middle
+          && direction * values.compare(buffer[left], buffer[right]) <= 0) {
+        rows[i] = buffer[left++];
+      } else {
+        rows[i] = buffer[right++];
+      }
+    }
+  }
+
+  private double[] sumByCode(StringColumn keys, NumericColumn values) {
+    double[] sums = new double[keys.dictionary.size()];
+    for (int row = 0; row < rowCount; row++) {
+      sums[keys.codes[row]] += values.getDouble(row);
+    }
+    return sums;
+  }
+
+  private void ensureCapacity(int capacity) {
+    for (Column column : columns) {
+      column.ensureCapacity(capacity);
+    }
+  }
+
+  private void checkColumnCount(int count) {
+    if (count != columns.size()) {
+      throw new IllegalArgumentException(
+          "Expected " + columns.size() + " columns but got " + count);
+    }
+  }
+
+  private void checkRow(int row) {
+    if (row < 0 || row >= rowCount) {
+      throw new IndexOutOfBoundsException("Row " + row + " of " + rowCount);
+    }
+  }
+
+  private Column column(String name) {
+    Column column = columnsByName.get(name);
+    if (column == null) {
+      throw new IllegalArgumentException("No column named " + name);
+    }
+    return column;
+  }
+
+  private StringColumn stringColumn(String name) {
+    Column column = column(name);
+    if (!(column instanceof StringColumn)) {
+      throw new IllegalArgumentException(name + " is not a STRING column");
+    }
+    return (StringColumn) column;
+  }
+
+  private NumericColumn numericColumn(String name) {
+    Column column = column(name);
+    if (!(column instanceof NumericColumn)) {
+      throw new IllegalArgumentException(name + " is not a numeric column");
+    }
+    return (NumericColumn) column;
+  }
+
+  private abstract static class Column {
+
+    abstract void ensureCapacity(int capacity);
+
+    abstract void set(int row, String value);
+
+    /** Compares the values of two rows. */
+    abstract int compare(int row1, int row2);
+
+    static int grow(int length, int capacity) {
+      return Math.max(capacity, Math.max(INITIAL_CAPACITY, length + (length >> 1)));
+    }
+  }
+
+  /** An INTEGER, PERCENT, TIME, CURRENCY or FLOAT column. */
+  private abstract static class NumericColumn extends Column {
+
+    abstract double getDouble(int row);
+  }
+
+  private static class LongColumn extends NumericColumn {
+
+    long[] values = new long[0];
+
+    @Override
+    void ensureCapacity(int capacity) {
+      if (values.length < capacity) {
+        values = Arrays.copyOf(values, grow(values.length, capacity));
+      }
+    }
+
+    @Override
+    void set(int row, String value) {
+      values[row] = value == null || value.isEmpty() ? 0 : Long.parseLong(value);
+    }
+
+    @Override
+    int compare(int row1, int row2) {
+      long a = values[row1];
+      long b = values[row2];
+      return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    @Override
+    double getDouble(int row) {
+      return values[row];
+    }
+  }
+
+  private static class DoubleColumn extends NumericColumn {
+
+    double[] values = new double[0];
+
+    @Override
+    void ensureCapacity(int capacity) {
+      if (values.length < capacity) {
+        values = Arrays.copyOf(values, grow(values.length, capacity));
+      }
+    }
+
+    @Override
+    void set(int row, String value) {
+      values[row] = value == null || value.isEmpty() ? 0 : Double.parseDouble(value);
+    }
+
+    @Override
+    int compare(int row1, int row2) {
+      return Double.compare(values[row1], values[row2]);
+    }
+
+    @Override
+    double getDouble(int row) {
+      return values[row];
+    }
+  }
+
+  /** A STRING column, stored as codes into the list of its distinct values. */
+  private static class StringColumn extends Column {
+
+    int[] codes = new int[0];
+    final List<String> dictionary = new ArrayList<String>();
+    final Map<String, Integer> codesByValue = new HashMap<String, Integer>();
+
+    @Override
+    void ensureCapacity(int capacity) {
+      if (codes.length < capacity) {
+        codes = Arrays.copyOf(codes, grow(codes.length, capacity));
+      }
+    }
+
+    @Override
+    void set(int row, String value) {
+      Integer code = codesByValue.get(value);
+      if (code == null) {
+        code = dictionary.size();
+        dictionary.add(value);
+        codesByValue.put(value, code);
+      }
+      codes[row] = code;
+    }
+
+    @Override
+    int compare(int row1, int row2) {
+      String a = dictionary.get(codes[row1]);
+      String b = dictionary.get(codes[row2]);
+      if (a == null || b == null) {
+        return a == null ? (b == null ? 0 : -1) : 1;
+      }
+      return a.compareTo(b);
+    }
+  }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.analytics.Analytics;
+import com.google.api.services.analytics.model.GaData;
+import com.google.api.services.analytics.model.GaData.ColumnHeaders;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Extracts a Core Reporting API query over a long date range and several profiles, by splitting
+ * it into one query per profile and day (or week) and paging each of those to completion.
+ *
+ * <p>Short date ranges are also much less likely to be sampled than the whole range would be;
+ * each {@link Shard} records whether any of its pages contained sampled data.
+ *
+ * <p>Shards are fetched concurrently, and requests to each profile are limited to
+ * {@link #DEFAULT_QUERIES_PER_SECOND} by a {@link TokenBucket}. The rows are nonetheless written
+ * to the {@link Sink} in a single order: by profile, then by date, then in the order of the API
+ * response. Only a few shards are fetched ahead of the one being written, which bounds memory
+ * use.
+ */
+public class ShardedReportExtractor {
+
+  /** Maximum number of rows per Core Reporting API response (API limit). */
+  public static final int MAX_RESULTS = 10000;
+
+  /** Core Reporting API requests allowed per second per profile (API limit). */
+  public static final double DEFAULT_QUERIES_PER_SECOND = 10;
+
+  /** Default number of shards fetched at once. */
+  public static final int DEFAULT_PARALLELISM = 4;
+
+  /** Number of times a request that fails with a retryable error is attempted. */
+  private static final int MAX_ATTEMPTS = 5;
+
+  private static final long INITIAL_RETRY_DELAY_MILLIS = 1000;
+
+  /** The length of the date range of each shard. */
+  public enum ShardSize {
+    DAY(1), WEEK(7);
+
+    final int days;
+
+    ShardSize(int days) {
+      this.days = days;
+    }
+  }
+
+  /** The query of one profile over one part of the date range. */
+  public static class Shard {
+
+    private final String tableId;
+    private final String startDate;
+    private final String endDate;
+    private boolean sampled;
+    private long rowCount;
+
+    Shard(String tableId, String startDate, String endDate) {
+      this.tableId = tableId;
+      this.startDate = startDate;
+      this.endDate = endDate;
+    }
+
+    public String getTableId() {
+      return tableId;
+    }
+
+    public String getStartDate() {
+      return startDate;
+    }
+
+    public String getEndDate() {
+      return endDate;
+    }
+
+    /** Whether any page of this shard contained sampled data. Set once the shard is fetched. */
+    public boolean isSampled() {
+      return sampled;
+    }
+
+    /** The number of rows in this shard. Set once the shard is fetched. */
+    public long getRowCount() {
+      return rowCount;
+    }
+  }
+
+  /** Receives the rows of all the shards as a single stream. */
+  public interface Sink {
+
+    /** Called once, before any rows, with the column headers of the query. */
+    void start(List<ColumnHeaders> columnHeaders) throws IOException;
+
+    /** Called with each page of rows, in order, along with the shard it belongs to. */
+    void write(Shard shard, List<List<String>> rows) throws IOException;
+
+    /** Called once all the rows have been written, if {@link #start} was called. */
+    void end() throws IOException;
+  }
+
+  private final Analytics analytics;
+  private final String metrics;
+  private String dimensions;
+  private String filters;
+  private String segment;
+  private String sort;
+  private ShardSize shardSize = ShardSize.DAY;
+  private int parallelism = DEFAULT_PARALLELISM;
+  private double queriesPerSecond = DEFAULT_QUERIES_PER_SECOND;
+
+  /**
+   * @param analytics the Analytics service object used to access the API
+   * @param metrics the metrics to query, e.g. {@code "ga:visits"}
+   */
+  public ShardedReportExtractor(Analytics analytics, String metrics) {
+    this.analytics = analytics;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Sets the dimensions to query. Rows of different shards are not combined, so include
+   * {@code ga:date} to tell apart the rows of different days.
+   */
+  public ShardedReportExtractor setDimensions(String dimensions) {
+    this.dimensions = dimensions;
+    return this;
+  }
+
+  public ShardedReportExtractor setFilters(String filters) {
+    this.filters = filters;
+    return this;
+  }
+
+  public ShardedReportExtractor setSegment(String segment) {
+    this.segment = segment;
+    return this;
+  }
+
+  /** Sets the order of the rows within each shard. */
+  public ShardedReportExtractor setSort(String sort) {
+    this.sort = sort;
+    return this;
+  }
+
+  public ShardedReportExtractor setShardSize(ShardSize shardSize) {
+    this.shardSize = shardSize;
+    return this;
+  }
+
+  /** Sets the maximum number of shards fetched at once. */
+  public ShardedReportExtractor setParallelism(int parallelism) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism must be positive");
+    }
+    this.parallelism = parallelism;
+    return this;
+  }
+
+  /** Sets the maximum rate of requests to each profile. */
+  public ShardedReportExtractor setQueriesPerSecond(double queriesPerSecond) {
+    if (queriesPerSecond <= 0) {
+      throw new IllegalArgumentException("queriesPerSecond must be positive");
+    }
+    this.queriesPerSecond = queriesPerSecond;
+    return this;
+  }
+
+  /**
+   * Extracts the query for every profile over the given date range and writes the rows to
+   * {@code sink}.
+   *
+   * @param tableIds the profiles to query, each as {@code ga:} followed by the profile ID
+   * @param startDate the first day to query, as YYYY-MM-DD
+   * @param endDate the last day to query, as YYYY-MM-DD
+   * @return the shards that were fetched, in the order they were written; if there are none,
+   *     nothing is written to {@code sink}
+   */
+  public List<Shard> run(List<String> tableIds, String startDate, String endDate, Sink sink)
+      throws IOException {
+    List<Shard> shards = split(tableIds, startDate, endDate);
+    Map<String, TokenBucket> limiters = new HashMap<String, TokenBucket>();
+    for (String tableId : tableIds) {
+      limiters.put(tableId, new TokenBucket(queriesPerSecond, 1));
+    }
+    boolean started = false;
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      // Fetch up to twice as many shards as there are threads ahead of the one being written, so
+      // that the threads stay busy while a large shard holds up the writing.
+      LinkedList<Future<List<GaData>>> window = new LinkedList<Future<List<GaData>>>();
+      int submitted = 0;
+      for (Shard shard : shards) {
+        while (submitted < shards.size() && window.size() < 2 * parallelism) {
+          Shard next = shards.get(submitted++);
+          window.add(executor.submit(new ShardFetch(next, limiters.get(next.tableId))));
+        }
+        for (GaData page : await(window.removeFirst())) {
+          if (!started) {
+            sink.start(page.getColumnHeaders());
+            started = true;
+          }
+          if (page.getRows() != null && !page.getRows().isEmpty()) {
+            sink.write(shard, page.getRows());
+          }
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    if (started) {
+      sink.end();
+    }
+    return shards;
+  }
+
+  /** Splits the date range of every profile into shards. */
+  private List<Shard> split(List<String> tableIds, String startDate, String endDate) {
+    // SimpleDateFormat is not thread safe, so it is only used here, on the calling thread.
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+    format.setLenient(false);
+    Date start;
+    Date end;
+    try {
+      start = format.parse(startDate);
+      end = format.parse(endDate);
+    } catch (ParseException e) {
+      throw new IllegalArgumentException("Dates must be formatted as YYYY-MM-DD", e);
+    }
+    if (start.after(end)) {
+      throw new IllegalArgumentException("startDate is after endDate");
+    }
+    List<String[]> ranges = new ArrayList<String[]>();
+    Calendar day = Calendar.getInstance();
+    day.setTime(start);
+    while (!day.getTime().after(end)) {
+      String shardStart = format.format(day.getTime());
+      day.add(Calendar.DAY_OF_MONTH, shardSize.days - 1);
+      Date shardEnd = day.getTime().after(end) ? end : day.getTime();
+      ranges.add(new String[] {shardStart, format.format(shardEnd)});
+      day.add(Calendar.DAY_OF_MONTH, 1);
+    }
+    List<Shard> shards = new ArrayList<Shard>();
+    for (String tableId : tableIds) {
+      for (String[] range : ranges) {
+        shards.add(new Shard(tableId, range[0], range[1]));
+      }
+    }
+    return shards;
+  }
+
+  private static List<GaData> await(Future<List<GaData>> shard) throws IOException {
+    try {
+      return shard.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while fetching shards");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Shard fetch failed", e.getCause());
+    }
+  }
+
+  private static boolean isRetryable(GoogleJsonResponseException e) {
+    return e.getDetails() != null ? isRetryable(e.getDetails()) : e.getStatusCode() >= 500;
+  }
+
+  /**
+   * Whether a failed request is worth retrying: rate limits and server errors usually clear up,
+   * whereas anything else, including running out of daily quota, will fail the same way again.
+   */
+  static boolean isRetryable(GoogleJsonError error) {
+    if (error.getCode() >= 500) {
+      return true;
+    }
+    if (error.getCode() != 403 || error.getErrors() == null) {
+      return false;
+    }
+    for (GoogleJsonError.ErrorInfo errorInfo : error.getErrors()) {
+      String reason = errorInfo.getReason();
+      if ("userRateLimitExceeded".equals(reason) || "rateLimitExceeded".equals(reason)
+          || "quotaExceeded".equals(reason)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Fetches every page of one shard. */
+  private class ShardFetch implements Callable<List<GaData>> {
+
+    private final Shard shard;
+    private final TokenBucket limiter;
+
+    ShardFetch(Shard shard, TokenBucket limiter) {
+      this.shard = shard;
+      this.limiter = limiter;
+    }
+
+    @Override
+    public List<GaData> call() throws IOException {
+      List<GaData> pages = new ArrayList<GaData>();
+      int startIndex = 1;
+      while (true) {
+        GaData page = fetchPage(startIndex);
+        pages.add(page);
+        if (Boolean.TRUE.equals(page.getContainsSampledData())) {
+          shard.sampled = true;
+        }
+        int rows = page.getRows() == null ? 0 : page.getRows().size();
+        shard.rowCount += rows;
+        if (page.getNextLink() == null || rows == 0) {
+          return pages;
+        }
+        startIndex += rows;
+      }
+    }
+
+    private GaData fetchPage(int startIndex) throws IOException {
+      long delay = INITIAL_RETRY_DELAY_MILLIS;
+      for (int attempt = 1;; attempt++) {
+        limiter.acquire();
+        try {
+          return analytics.data().ga()
+              .get(shard.tableId, shard.startDate, shard.endDate, metrics)
+              .setDimensions(dimensions)
+              .setFilters(filters)
+              .setSegment(segment)
+              .setSort(sort)
+              .setStartIndex(startIndex)
+              .setMaxResults(MAX_RESULTS)
+              .execute();
+        } catch (GoogleJsonResponseException e) {
+          if (attempt == MAX_ATTEMPTS || !isRetryable(e)) {
+            throw e;
+          }
+        }
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+        delay *= 2;
+      }
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.analytics.cmdline;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of API requests. Tokens accrue at a fixed rate up to a capacity, and each
+ * request takes one, waiting if there are none left.
+ *
+ * <p>Waiting callers reserve their tokens up front, so they are served in the order they arrived
+ * and a burst never exceeds the capacity.
+ */
+public class TokenBucket {
+
+  private final double tokensPerNano;
+  private final double capacity;
+  private double tokens;
+  private long refilledAt;
+
+  /**
+   * @param tokensPerSecond the rate at which tokens accrue
+   * @param capacity the most tokens that can accrue, and so the largest burst of requests
+   */
+  public TokenBucket(double tokensPerSecond, double capacity) {
+    if (tokensPerSecond <= 0 || capacity < 1) {
+      throw new IllegalArgumentException(
+          "tokensPerSecond must be positive and capacity at least 1");
+    }
+    this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+    this.capacity = capacity;
+    this.tokens = capacity;
+    this.refilledAt = System.nanoTime();
+  }
+
+  /** Takes one token, waiting until it is available. */
+  public void acquire() throws InterruptedIOException {
+    acquire(1);
+  }
+
+  /** Takes {@code count} tokens, waiting until they are available. */
+  public void acquire(int count) throws InterruptedIOException {
+    long waitNanos;
+    synchronized (this) {
+      long now = System.nanoTime();
+      tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+      refilledAt = now;
+      // Going into debt reserves the tokens, so that later callers wait behind this one.
+      tokens -= count;
+      waitNanos = tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNano);
+    }
+    if (waitNanos > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for quota");
+      }
+    }
+  }
+}
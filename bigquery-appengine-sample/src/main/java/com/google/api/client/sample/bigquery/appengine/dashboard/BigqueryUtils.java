@@ -12,7 +12,6 @@ import com.google.api.services.bigquery.model.Table;
 import com.google.api.services.bigquery.model.TableDataList;
 import com.google.api.services.bigquery.model.TableFieldSchema;
 import com.google.api.services.bigquery.model.TableReference;
-import com.google.api.services.bigquery.model.TableRow;
 import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.taskqueue.QueueFactory;
 import com.google.appengine.api.taskqueue.RetryOptions;
@@ -21,6 +20,7 @@ import com.google.common.base.Joiner;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Random;
 import java.util.concurrent.Callable;
 import java.util.logging.Logger;
 
@@ -34,6 +34,23 @@ import javax.servlet.http.HttpServletResponse;
 public class BigqueryUtils {
 
   private static final Logger log = Logger.getLogger(BigqueryUtils.class.getName());
+
+  /** Delay before the first poll of a job. */
+  static final long INITIAL_POLL_DELAY_MILLIS = 1000;
+
+  /** Longest delay between two polls of a job. */
+  static final long MAX_POLL_DELAY_MILLIS = 60 * 1000;
+
+  /** Most polls of a job before giving up on it. */
+  static final int MAX_POLL_ATTEMPTS = 40;
+
+  /** Longest time to wait for a job before giving up on it. */
+  static final long MAX_POLL_MILLIS = 20 * 60 * 1000;
+
+  private static final Random random = new Random();
+
+  /** Rows requested per page of results; the service may return fewer. */
+  static final long TABLE_DATA_PAGE_SIZE = 5000;
   static final String projectId =
       System.getProperty("com.google.api.client.sample.bigquery.appengine.dashboard.projectId");
 
@@ -65,7 +82,11 @@ public class BigqueryUtils {
     }
   }
 
-  public void beginQuery() throws SampleDashboardException {
+  /**
+   * Begins the example query and enqueues a task to wait for it. {@code startedAt} identifies the
+   * run, as returned by {@link DatastoreUtils#getRunStartedAt}.
+   */
+  public void beginQuery(long startedAt) throws SampleDashboardException {
     final Job queryJob = makeJob(buildExampleQuery());
 
     job = tryToDo(new Callable<Job>() {
@@ -76,7 +97,7 @@ public class BigqueryUtils {
     });
 
     Preconditions.checkNotNull(job);
-    enqueueWaitingTask();
+    enqueueWaitingTask(0, startedAt);
   }
 
   public boolean jobSucceeded() {
@@ -119,7 +140,12 @@ public class BigqueryUtils {
     return null;
   }
 
-  public List<TableRow> getTableData() throws SampleDashboardException {
+  /**
+   * Returns one page of the job's result table, starting at {@code pageToken} (or the first page
+   * if it is {@code null}). {@link TableDataList#getPageToken()} on the result gives the token of
+   * the following page, or {@code null} on the last page.
+   */
+  public TableDataList getTableDataPage(final String pageToken) throws SampleDashboardException {
     if (job != null) {
       final TableReference tableReference = job.getConfiguration().getQuery().getDestinationTable();
 
@@ -127,33 +153,60 @@ public class BigqueryUtils {
         @Override
         public TableDataList call() throws IOException {
           return bigquery.tabledata().list(tableReference.getProjectId(),
-              tableReference.getDatasetId(), tableReference.getTableId()).execute();
+              tableReference.getDatasetId(), tableReference.getTableId())
+              .setPageToken(pageToken)
+              .setMaxResults(TABLE_DATA_PAGE_SIZE)
+              .execute();
         }
       });
 
       Preconditions.checkNotNull(tableDataList);
-      Preconditions.checkNotNull(tableDataList.getRows());
-      return tableDataList.getRows();
+      return tableDataList;
     }
     return null;
   }
 
   /**
-   * Constructs a task with necessary parameters and options and puts it in App Engine's default
-   * task queue.
+   * Constructs a task to make poll number {@code attempt} (counting from 0) of a job that began
+   * at {@code startedAt}, and puts it in App Engine's default task queue after
+   * {@link #pollDelayMillis(int) a backoff delay}.
    */
-  public void enqueueWaitingTask() {
+  public void enqueueWaitingTask(int attempt, long startedAt) {
     TaskOptions options = TaskOptions.Builder.withDefaults();
     options.param("jobId", job.getJobReference().getJobId());
     options.param("userId", userId);
+    options.param("fingerprint",
+        ResultCache.fingerprint(job.getConfiguration().getQuery().getQuery()));
+    options.param("attempt", String.valueOf(attempt));
+    options.param("startedAt", String.valueOf(startedAt));
     options.url("/task");
-    options.countdownMillis(1000);
+    options.countdownMillis(pollDelayMillis(attempt));
     options.retryOptions(RetryOptions.Builder.withTaskRetryLimit(0));
 
     Queue queue = QueueFactory.getDefaultQueue();
     queue.add(options);
   }
 
+  /**
+   * Returns the delay before poll number {@code attempt}: exponential backoff from
+   * {@link #INITIAL_POLL_DELAY_MILLIS} up to {@link #MAX_POLL_DELAY_MILLIS}. Half of each delay is
+   * random, so that jobs begun together don't keep polling together.
+   */
+  static long pollDelayMillis(int attempt) {
+    long delay =
+        Math.min(MAX_POLL_DELAY_MILLIS, INITIAL_POLL_DELAY_MILLIS << Math.min(attempt, 16));
+    return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+  }
+
+  /**
+   * Returns whether to make poll number {@code attempt} of a job that began at {@code startedAt},
+   * or give up on it.
+   */
+  static boolean shouldKeepPolling(int attempt, long startedAt) {
+    return attempt < MAX_POLL_ATTEMPTS
+        && System.currentTimeMillis() - startedAt < MAX_POLL_MILLIS;
+  }
+
   public static String buildExampleQuery() {
     String[] west = {"WA", "OR", "CA", "AK", "HI", "ID", "MT", "WY", "NV", "UT", "CO", "AZ", "NM"};
     String[] south = {"OK", "TX", "AR", "LA", "TN", "MS", "AL", "KY", "GA", "FL", "SC", "NC", "VA",
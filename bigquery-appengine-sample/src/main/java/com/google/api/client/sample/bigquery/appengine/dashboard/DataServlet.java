@@ -7,16 +7,16 @@ import com.google.appengine.api.users.UserServiceFactory;
 import com.google.gson.stream.JsonWriter;
 
 import java.io.IOException;
-import java.util.List;
+import java.util.Iterator;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * This servlet responds to a post request with the data in the datastore for the
- * user in the form of json parseable by a DataTable constructor.  Also returns
- * the stored message and whether their query failed.
+ * This servlet responds to a get request with the results of the user's query, served from
+ * the shared {@link ResultCache}, in the form of json parseable by a DataTable constructor.  Also
+ * returns the stored message and whether their query failed.
  *
  * @author lparkinson@google.com (Laura Parkinson)
  */
@@ -32,63 +32,152 @@ public class DataServlet extends HttpServlet {
       {"state", "year", "average_mother_age", "average_father_age", "region"};
   private final String[] types = new String[] {"string", "number", "number", "number", "string"};
 
+  /** The most rows written in one chunk when results are requested incrementally. */
+  private static final int MAX_CHUNK_SIZE = 2000;
+
   /**
    * Attempts to retrieve results for the logged-in user.  If the datastore contains
    * results, they are written into the response as JSON.
+   *
+   * <p>With a {@code limit} parameter, only that many rows are written, followed by a
+   * {@code nextCursor} to pass back as the {@code cursor} parameter for the next chunk while there
+   * are more; the columns are only written with the first chunk. This lets the page draw the chart
+   * before all the results have arrived. Chunks are served from the {@link ResultCache}, and a
+   * cursor only pages through the results version it came from: once those results have been
+   * replaced, it gets a 409 and the page has to start over.
+   *
+   * <p>While the query is rerun, the results of its previous run are written, along with
+   * {@code refreshing}, so that the page keeps checking for the new ones. {@code version}
+   * identifies the results written.
+   *
+   * <p>Once the query is done, responses carry an ETag derived from the results version, so that
+   * the browser can revalidate them and get a 304 until the query is rerun.
    */
   @Override
-  protected void doPost(HttpServletRequest request, HttpServletResponse response)
+  protected void doGet(HttpServletRequest request, HttpServletResponse response)
       throws IOException {
-    JsonWriter jsonWriter = new JsonWriter(response.getWriter()).beginObject();
     String userId = UserServiceFactory.getUserService().getCurrentUser().getUserId();
-    DatastoreUtils datastoreUtils = new DatastoreUtils(userId);
+    DatastoreUtils datastoreUtils = new DatastoreUtils(userId,
+        ResultCache.fingerprint(BigqueryUtils.buildExampleQuery()));
+
+    String cursor = request.getParameter("cursor");
+    int limit = 0;
+    if (request.getParameter("limit") != null) {
+      try {
+        limit = Math.min(MAX_CHUNK_SIZE, Integer.parseInt(request.getParameter("limit")));
+      } catch (NumberFormatException e) {
+        limit = -1;
+      }
+      if (limit <= 0) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "limit must be positive");
+        return;
+      }
+    }
+
+    String jobStatus = datastoreUtils.getJobStatus();
+    boolean done = (DatastoreUtils.DONE).equalsIgnoreCase(jobStatus);
+
+    if (done) {
+      String etag = "\"" + datastoreUtils.getQueryFingerprint().substring(0, 16) + "-"
+          + datastoreUtils.getResultsVersion() + "-" + limit + "-" + cursor + "\"";
+      response.setHeader("ETag", etag);
+      response.setHeader("Cache-Control", "private, no-cache");
+      if (etag.equals(request.getHeader("If-None-Match"))) {
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
+      }
+    } else {
+      response.setHeader("Cache-Control", "no-store");
+    }
+
+    ResultCache.Chunk chunk = null;
+    if (limit > 0 && (datastoreUtils.hasResults() || cursor != null)) {
+      try {
+        chunk = ResultCache.getChunk(datastoreUtils, cursor, limit);
+      } catch (IllegalArgumentException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid cursor");
+        return;
+      }
+      if (chunk == null) {
+        response.sendError(HttpServletResponse.SC_CONFLICT,
+            "The results have been replaced since this cursor was returned");
+        return;
+      }
+    }
 
-    String jobStatus = datastoreUtils.getUserJobStatus();
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    JsonWriter jsonWriter = new JsonWriter(response.getWriter()).beginObject();
 
-    if (("DONE").equalsIgnoreCase(jobStatus)) {
-      List<Entity> results = datastoreUtils.getResults();
-      if (!results.isEmpty()) {
-        writeResultsToMotionChartJson(jsonWriter, results);
+    if (datastoreUtils.hasResults()) {
+      jsonWriter.name("version").value(datastoreUtils.getResultsVersion());
+      if (limit == 0) {
+        Iterator<Entity> results = ResultCache.getResults(datastoreUtils).iterator();
+        if (results.hasNext()) {
+          writeResultsToMotionChartJson(jsonWriter, results, true);
+        }
+      } else {
+        if (!chunk.results.isEmpty() || cursor != null) {
+          writeResultsToMotionChartJson(jsonWriter, chunk.results.iterator(), cursor == null);
+        }
+        if (chunk.nextCursor != null) {
+          jsonWriter.name("nextCursor").value(chunk.nextCursor);
+        }
       }
     }
 
-    jsonWriter.name("failed").value(datastoreUtils.hasUserQueryFailed());
-    jsonWriter.name("message").value(datastoreUtils.getUserMessage());
-    jsonWriter.name("lastRun").value(datastoreUtils.getUserLastRunMessage());
+    jsonWriter.name("refreshing").value(datastoreUtils.isRefreshing());
+    jsonWriter.name("failed").value(datastoreUtils.hasQueryFailed());
+    jsonWriter.name("message").value(datastoreUtils.getMessage());
+    jsonWriter.name("lastRun").value(datastoreUtils.getLastRunMessage());
+    if (datastoreUtils.getPollCount() != null) {
+      jsonWriter.name("pollCount").value(datastoreUtils.getPollCount());
+      jsonWriter.name("latencyMillis").value(datastoreUtils.getLatencyMillis());
+    }
 
     jsonWriter.endObject().close();
   }
 
   /**
-   * Converts the query results retrieved from the datastore to json parsable by javascript
-   * into a DataTable object for use with a motion chart.
+   * Same as {@link #doGet}, for clients that still post.
    */
-  private void writeResultsToMotionChartJson(JsonWriter jsonWriter, Iterable<Entity> results)
+  @Override
+  protected void doPost(HttpServletRequest request, HttpServletResponse response)
       throws IOException {
+    doGet(request, response);
+  }
+
+  /**
+   * Converts the query results retrieved from the datastore to json parsable by javascript
+   * into a DataTable object for use with a motion chart. Rows are written as they are read,
+   * with numbers as JSON numbers.
+   */
+  private void writeResultsToMotionChartJson(JsonWriter jsonWriter, Iterator<Entity> results,
+      boolean writeHeader) throws IOException {
     jsonWriter.name("data").beginObject();
 
     // Write the header.
-    jsonWriter.name("cols").beginArray();
-    for (int i = 0; i < properties.length; i++) {
-      jsonWriter.beginObject()
-          .name("id").value(properties[i])
-          .name("label").value(labels[i])
-          .name("type").value(types[i])
-          .endObject();
+    if (writeHeader) {
+      jsonWriter.name("cols").beginArray();
+      for (int i = 0; i < properties.length; i++) {
+        jsonWriter.beginObject()
+            .name("id").value(properties[i])
+            .name("label").value(labels[i])
+            .name("type").value(types[i])
+            .endObject();
+      }
+      jsonWriter.endArray();
     }
-    jsonWriter.endArray();
 
     // Write the data.
     jsonWriter.name("rows").beginArray();
-    for (Entity entity : results) {
+    while (results.hasNext()) {
+      Entity entity = results.next();
       jsonWriter.beginObject().name("c").beginArray();
       for (int i = 0; i < properties.length; i++) {
-        String value = "";
-        if (entity.getProperty(properties[i]) != null) {
-          value = String.valueOf(entity.getProperty(properties[i]));
-        }
-
-        jsonWriter.beginObject().name("v").value(value).endObject();
+        jsonWriter.beginObject().name("v");
+        writeValue(jsonWriter, types[i], entity.getProperty(properties[i]));
+        jsonWriter.endObject();
       }
       jsonWriter.endArray().endObject();
     }
@@ -96,4 +185,33 @@ public class DataServlet extends HttpServlet {
 
     jsonWriter.endObject();
   }
+
+  /**
+   * Writes a property as a JSON number for number columns, and as a string otherwise. Results
+   * stored before properties were typed hold numbers as strings, so those are parsed here.
+   */
+  private static void writeValue(JsonWriter jsonWriter, String type, Object value)
+      throws IOException {
+    if (!"number".equals(type)) {
+      jsonWriter.value(value == null ? "" : String.valueOf(value));
+    } else if (value instanceof Long || value instanceof Integer) {
+      jsonWriter.value(((Number) value).longValue());
+    } else if (value != null) {
+      double number;
+      try {
+        number = value instanceof Number
+            ? ((Number) value).doubleValue() : Double.parseDouble(String.valueOf(value));
+      } catch (NumberFormatException e) {
+        number = Double.NaN;
+      }
+      // JSON has no NaN or infinity.
+      if (Double.isNaN(number) || Double.isInfinite(number)) {
+        jsonWriter.nullValue();
+      } else {
+        jsonWriter.value(number);
+      }
+    } else {
+      jsonWriter.nullValue();
+    }
+  }
 }
@@ -4,8 +4,11 @@ package com.google.api.client.sample.bigquery.appengine.dashboard;
 
 import com.google.api.client.util.Preconditions;
 import com.google.api.services.bigquery.model.TableCell;
+import com.google.api.services.bigquery.model.TableDataList;
 import com.google.api.services.bigquery.model.TableFieldSchema;
 import com.google.api.services.bigquery.model.TableRow;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
@@ -14,139 +17,491 @@ import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.common.base.Objects;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
 
 /**
  * Utility methods for inserting, accessing, and deleting data in the datastore.
  *
+ * <p>The state of a query (job status, message and when it last succeeded) and its results are
+ * shared by every user who runs the same query: they are stored under a "Query" entity keyed by
+ * the query's fingerprint (see {@link ResultCache#fingerprint}). The "User" entity only records
+ * failures specific to one user, such as bad credentials.
+ *
+ * <p>Each successful run stores its results under a "Results" entity named after its job, a
+ * version, and {@link #publishResults} switches the query to the new version in a transaction.
+ * Until then, readers keep getting the previous run's results. Updates to the query entity are
+ * transactional and are dropped if a different run has claimed the query since (see
+ * {@link #setRun}).
+ *
  * @author lparkinson@google.com (Laura Parkinson)
  */
 public class DatastoreUtils {
 
   public static final String FAILED = "FAILED";
+  public static final String DONE = "DONE";
+
+  /** The most entities the datastore accepts in a single put or delete. */
+  static final int PUT_BATCH_SIZE = 500;
+
+  /**
+   * How long a query may stay unfinished before it is assumed lost (for example, because its
+   * waiting task failed) and may be run again. Longer than {@link BigqueryUtils#MAX_POLL_MILLIS}.
+   */
+  private static final long RUNNING_TIMEOUT_MILLIS = 30 * 60 * 1000;
+
+  /** Attempts at a transaction on the query entity before giving up on contention. */
+  private static final int MAX_TRANSACTION_ATTEMPTS = 3;
+
+  private static final String RESULTS_KIND = "Results";
+  private static final String RESULT_KIND = "Result";
+
+  private static final Logger log = Logger.getLogger(DatastoreUtils.class.getName());
 
   private final Key userEntityKey;
-  private final String resultKind;
+  private final Key queryEntityKey;
   private final DatastoreService service;
+  private final AsyncDatastoreService asyncService;
   private Entity userEntity;
+  private Entity queryEntity;
+  private Long runStartedAt;
+  private Integer pendingPollCount;
+  private long pendingLatencyMillis;
 
-  public DatastoreUtils(String userId) {
+  public DatastoreUtils(String userId, String queryFingerprint) {
     userEntityKey = KeyFactory.createKey("User", userId);
+    queryEntityKey = KeyFactory.createKey("Query", queryFingerprint);
     service = DatastoreServiceFactory.getDatastoreService();
-    resultKind = userId + "Result";
+    asyncService = DatastoreServiceFactory.getAsyncDatastoreService();
 
-    try {
-      userEntity = service.get(userEntityKey);
-    } catch (EntityNotFoundException e) {
-      userEntity = null;
-    }
+    Map<Key, Entity> entities = service.get(Arrays.asList(userEntityKey, queryEntityKey));
+    userEntity = entities.get(userEntityKey);
+    queryEntity = entities.get(queryEntityKey);
   }
 
-  public boolean hasUserEntity() {
-    return userEntity != null;
+  public String getQueryFingerprint() {
+    return queryEntityKey.getName();
   }
 
-  private void createUserIfNull() {
+  /**
+   * Records a failure that only concerns this user, such as bad credentials.
+   */
+  public void putUserFailure(String message) {
     if (userEntity == null) {
       userEntity = new Entity(userEntityKey);
     }
+    userEntity.setProperty("jobStatus", FAILED);
+    userEntity.setProperty("message", message);
+    service.put(userEntity);
   }
 
   /**
-   * Updates the user entity with the message and status, creating it if necessary.
+   * Forgets any failure recorded for this user.
    */
-  public void putUserInformation(String message, String status) {
-    createUserIfNull();
-    userEntity.setProperty("jobStatus", status);
-    userEntity.setProperty("message", message);
-    service.put(userEntity);
+  public void clearUserFailure() {
+    if (hasUserFailed()) {
+      service.delete(userEntityKey);
+      userEntity = null;
+    }
+  }
+
+  public boolean hasUserFailed() {
+    return userEntity != null && FAILED.equals(userEntity.getProperty("jobStatus"));
   }
 
   /**
-   * Updates the user entity with the current time, creating it if necessary.
+   * Atomically marks the query as running, unless another request already did so. Only the
+   * caller that gets {@code true} should begin a BigQuery job, so that users asking for the same
+   * query at the same time share a single job. The query's current results are left in place, to
+   * be served until the new run publishes its own.
    */
-  public void updateSuccessfulQueryTimestamp() {
-    createUserIfNull();
-    userEntity.setProperty("timestamp", System.currentTimeMillis());
-    service.put(userEntity);
+  public boolean claimQuery() {
+    Transaction txn = service.beginTransaction();
+    try {
+      Entity entity;
+      try {
+        entity = service.get(txn, queryEntityKey);
+      } catch (EntityNotFoundException e) {
+        entity = new Entity(queryEntityKey);
+      }
+      if (isRunning(entity)) {
+        queryEntity = entity;
+        return false;
+      }
+      long startedAt = System.currentTimeMillis();
+      entity.setProperty("jobStatus", "PENDING");
+      entity.setProperty("message", "Beginning query...");
+      entity.setProperty("startedAt", startedAt);
+      service.put(txn, entity);
+      txn.commit();
+      queryEntity = entity;
+      runStartedAt = startedAt;
+      return true;
+    } catch (ConcurrentModificationException e) {
+      // Someone else claimed it first.
+      return false;
+    } finally {
+      if (txn.isActive()) {
+        txn.rollback();
+      }
+    }
   }
 
-  public String getUserJobStatus() {
-    return getUserEntityProperty("jobStatus");
+  /**
+   * Returns when the run claimed by {@link #claimQuery}, or set by {@link #setRun}, began. This
+   * identifies the run.
+   */
+  public Long getRunStartedAt() {
+    return runStartedAt;
+  }
+
+  /**
+   * Makes later updates to the query apply only while its current run is the one that began at
+   * {@code startedAt}, so that the task of a run that was given up on cannot overwrite the state
+   * of a newer run. With {@code null}, updates always apply.
+   */
+  public void setRun(Long startedAt) {
+    runStartedAt = startedAt;
   }
 
-  public Boolean hasUserQueryFailed() {
-    return (FAILED).equalsIgnoreCase(getUserJobStatus());
+  /**
+   * Updates the shared query entity with the message and status, creating it if necessary.
+   */
+  public void putQueryInformation(String message, String status) {
+    // Polls mostly find the query just as it was; don't rewrite the entity for those.
+    if (pendingPollCount == null && queryEntity != null
+        && Objects.equal(status, queryEntity.getProperty("jobStatus"))
+        && Objects.equal(message, queryEntity.getProperty("message"))) {
+      return;
+    }
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put("jobStatus", status);
+    properties.put("message", message);
+    updateQuery(properties);
   }
 
-  public String getUserMessage() {
-    return getUserEntityProperty("message");
+  /**
+   * Makes the results copied under {@code version} the query's results and marks the query as
+   * done, in one transaction, then deletes the results they replace. If another run has claimed
+   * the query meanwhile, the copied results are deleted instead.
+   */
+  public void publishResults(String version, String message) {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put("resultsVersion", version);
+    properties.put("timestamp", System.currentTimeMillis());
+    properties.put("jobStatus", DONE);
+    properties.put("message", message);
+    Entity previous = updateQuery(properties);
+    if (previous == null) {
+      deleteResults(version);
+    } else if (previous.hasProperty("resultsVersion")
+        && !version.equals(previous.getProperty("resultsVersion"))) {
+      deleteResults((String) previous.getProperty("resultsVersion"));
+    }
+  }
+
+  /**
+   * Records how many polls the last run of the query took and how long it ran for. These are
+   * written by the next {@link #putQueryInformation} or {@link #publishResults}.
+   */
+  public void setPollMetrics(int pollCount, long latencyMillis) {
+    pendingPollCount = pollCount;
+    pendingLatencyMillis = latencyMillis;
+  }
+
+  /** Returns how many polls the last completed run of the query took, or {@code null}. */
+  public Long getPollCount() {
+    return queryEntity == null ? null : (Long) queryEntity.getProperty("pollCount");
+  }
+
+  /** Returns how long the last completed run of the query took, or {@code null}. */
+  public Long getLatencyMillis() {
+    return queryEntity == null ? null : (Long) queryEntity.getProperty("latencyMillis");
+  }
+
+  /**
+   * Sets {@code properties}, and any pending poll metrics, on the query entity in a transaction,
+   * creating the entity if necessary. Nothing is written if a run other than this one's has
+   * claimed the query.
+   *
+   * @return the entity as it was before the update, or {@code null} if it was not updated
+   */
+  private Entity updateQuery(Map<String, Object> properties) {
+    for (int attempt = 1;; attempt++) {
+      Transaction txn = service.beginTransaction();
+      try {
+        Entity entity;
+        try {
+          entity = service.get(txn, queryEntityKey);
+        } catch (EntityNotFoundException e) {
+          entity = new Entity(queryEntityKey);
+        }
+        if (runStartedAt != null && !runStartedAt.equals(entity.getProperty("startedAt"))) {
+          log.warning("Query " + getQueryFingerprint() + " was claimed by another run; "
+              + "dropping the update of the run that began at " + runStartedAt);
+          queryEntity = entity;
+          return null;
+        }
+        Entity previous = entity.clone();
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+          entity.setProperty(property.getKey(), property.getValue());
+        }
+        if (pendingPollCount != null) {
+          entity.setProperty("pollCount", pendingPollCount);
+          entity.setProperty("latencyMillis", pendingLatencyMillis);
+        }
+        service.put(txn, entity);
+        txn.commit();
+        queryEntity = entity;
+        pendingPollCount = null;
+        return previous;
+      } catch (ConcurrentModificationException e) {
+        if (attempt == MAX_TRANSACTION_ATTEMPTS) {
+          throw e;
+        }
+      } finally {
+        if (txn.isActive()) {
+          txn.rollback();
+        }
+      }
+    }
   }
 
-  public String getUserLastRunMessage() {
-    String timestamp = getUserEntityProperty("timestamp");
+  /** Returns whether the query is running on behalf of any user. */
+  public boolean isQueryRunning() {
+    return queryEntity != null && isRunning(queryEntity);
+  }
+
+  private static boolean isRunning(Entity entity) {
+    Object status = entity.getProperty("jobStatus");
+    Object startedAt = entity.getProperty("startedAt");
+    return status != null && !DONE.equals(status) && !FAILED.equals(status)
+        && startedAt != null
+        && System.currentTimeMillis() - (Long) startedAt < RUNNING_TIMEOUT_MILLIS;
+  }
+
+  /**
+   * Returns whether the query is being run again while the results of its previous run are
+   * served.
+   */
+  public boolean isRefreshing() {
+    return hasResults() && isQueryRunning();
+  }
+
+  /** Returns whether the query last succeeded less than {@code ttlMillis} ago. */
+  public boolean hasFreshResults(long ttlMillis) {
+    Long timestamp = getQueryTimestamp();
+    return timestamp != null && System.currentTimeMillis() - timestamp < ttlMillis;
+  }
+
+  /** Returns when the query last succeeded, or {@code null} if it never has. */
+  public Long getQueryTimestamp() {
+    return queryEntity == null ? null : (Long) queryEntity.getProperty("timestamp");
+  }
+
+  /** Returns the status of the query, or {@link #FAILED} if it failed for this user. */
+  public String getJobStatus() {
+    if (hasUserFailed()) {
+      return FAILED;
+    }
+    return getQueryEntityProperty("jobStatus");
+  }
+
+  public Boolean hasQueryFailed() {
+    return (FAILED).equalsIgnoreCase(getJobStatus());
+  }
+
+  public String getMessage() {
+    if (hasUserFailed()) {
+      return String.valueOf(userEntity.getProperty("message"));
+    }
+    return getQueryEntityProperty("message");
+  }
+
+  public String getLastRunMessage() {
+    Long timestamp = getQueryTimestamp();
     if (timestamp == null) {
       return "never";
     }
     SimpleDateFormat format = new SimpleDateFormat("k:mm:ss 'on' MMMM d, yyyy zzz");
-    Date date = new Date(Long.valueOf(timestamp));
+    Date date = new Date(timestamp);
     return format.format(date);
   }
 
-  private String getUserEntityProperty(String propertyName) {
-    if (userEntity != null && userEntity.hasProperty(propertyName)) {
-      return String.valueOf(userEntity.getProperty(propertyName));
+  private String getQueryEntityProperty(String propertyName) {
+    if (queryEntity != null && queryEntity.hasProperty(propertyName)) {
+      return String.valueOf(queryEntity.getProperty(propertyName));
     }
     return null;
   }
 
-  public List<Entity> getResults() {
-    Query query = new Query(resultKind, userEntityKey);
+  /** Returns the version of the query's current results, or {@code null} if it has none. */
+  public String getResultsVersion() {
+    return getQueryEntityProperty("resultsVersion");
+  }
+
+  /** Returns whether the query has results, possibly from a run before the current one. */
+  public boolean hasResults() {
+    return getResultsVersion() != null;
+  }
+
+  private Key resultsKey(String version) {
+    return KeyFactory.createKey(queryEntityKey, RESULTS_KIND, version);
+  }
+
+  /**
+   * Reads the current results of the query, fetching them from the datastore in chunks as they
+   * are iterated. Most callers should go through {@link ResultCache#getResults} instead.
+   */
+  public Iterable<Entity> getResults() {
+    String version = getResultsVersion();
+    if (version == null) {
+      return Collections.emptyList();
+    }
+    Query query = new Query(RESULT_KIND, resultsKey(version));
     FetchOptions options = FetchOptions.Builder.withChunkSize(2000);
-    return service.prepare(query).asList(options);
+    return service.prepare(query).asIterable(options);
+  }
+
+  /**
+   * Reads up to {@code limit} of the results stored under {@code version}, starting where the
+   * chunk that returned the web-safe {@code cursor} left off. Without a cursor, reading starts at
+   * result number {@code offset}, which is slower because the datastore has to skip the results
+   * before it.
+   *
+   * @throws IllegalArgumentException if {@code cursor} is not a valid cursor
+   */
+  public QueryResultList<Entity> getResults(String version, String cursor, int offset,
+      int limit) {
+    Query query = new Query(RESULT_KIND, resultsKey(version));
+    FetchOptions options = FetchOptions.Builder.withLimit(limit).chunkSize(limit);
+    if (cursor != null) {
+      options.startCursor(Cursor.fromWebSafeString(cursor));
+    } else {
+      options.offset(offset);
+    }
+    return service.prepare(query).asQueryResultList(options);
   }
 
   /**
-   * Removes any existing results for the user from the datastore.
+   * Removes the results stored under {@code version} from the datastore, a batch of keys at a
+   * time.
    */
-  public void deleteExistingResults() {
-    ArrayList<Key> keys = new ArrayList<Key>();
-    List<Entity> results = getResults();
-    for (Entity entity : results) {
+  public void deleteResults(String version) {
+    Query query = new Query(RESULT_KIND, resultsKey(version)).setKeysOnly();
+    ArrayList<Key> keys = new ArrayList<Key>(PUT_BATCH_SIZE);
+    for (Entity entity : service.prepare(query).asIterable(
+        FetchOptions.Builder.withChunkSize(PUT_BATCH_SIZE))) {
       keys.add(entity.getKey());
+      if (keys.size() == PUT_BATCH_SIZE) {
+        service.delete(keys);
+        keys.clear();
+      }
     }
     service.delete(keys);
   }
 
   /**
-   * Copies each row of the given data into an entity, then puts all the entities
-   * to the datastore with the user's entity as their ancestor.
+   * Copies the rows of the job's results into entities, page by page, and puts them to the
+   * datastore under {@code version}. They are not served until {@link #publishResults}.
+   *
+   * <p>Each page is put in asynchronous batches while the next page is fetched, so at most two
+   * pages are held in memory however large the results are.
+   */
+  public void copyQueryResultsToDatastore(String version, List<TableFieldSchema> fields,
+      BigqueryUtils bigqueryUtils) throws SampleDashboardException {
+    Key parent = resultsKey(version);
+    List<Future<List<Key>>> pendingPuts = new ArrayList<Future<List<Key>>>();
+    String pageToken = null;
+    do {
+      TableDataList page = bigqueryUtils.getTableDataPage(pageToken);
+      // Let the previous page's puts finish before starting this page's.
+      waitForPuts(pendingPuts);
+      List<TableRow> rows = page.getRows();
+      if (rows != null) {
+        for (int start = 0; start < rows.size(); start += PUT_BATCH_SIZE) {
+          List<TableRow> batch = rows.subList(start, Math.min(start + PUT_BATCH_SIZE, rows.size()));
+          pendingPuts.add(asyncService.put(toEntities(parent, fields, batch)));
+        }
+      }
+      pageToken = page.getPageToken();
+    } while (pageToken != null);
+    waitForPuts(pendingPuts);
+  }
+
+  private void waitForPuts(List<Future<List<Key>>> pendingPuts) throws SampleDashboardException {
+    try {
+      for (Future<List<Key>> put : pendingPuts) {
+        put.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SampleDashboardException(e);
+    } catch (ExecutionException e) {
+      throw new SampleDashboardException(e);
+    }
+    pendingPuts.clear();
+  }
+
+  /**
+   * Copies each row of the given data into an entity -- fields become properties.
    */
-  public void copyQueryResultsToDatastore(List<TableFieldSchema> fields,
+  private static List<Entity> toEntities(Key parent, List<TableFieldSchema> fields,
       List<TableRow> rows) {
-    ArrayList<Entity> entities = new ArrayList<Entity>();
+    ArrayList<Entity> entities = new ArrayList<Entity>(rows.size());
     Iterator<TableRow> rowsIterator = rows.iterator();
     while (rowsIterator.hasNext()) {
-      Entity entity = new Entity(resultKind, userEntityKey);
+      Entity entity = new Entity(RESULT_KIND, parent);
 
-      // Copy the row into the entity -- fields become properties.
       Iterator<TableFieldSchema> fieldsIterator = fields.iterator();
       Iterator<TableCell> dataIterator = rowsIterator.next().getF().iterator();
 
       Preconditions.checkState(fieldsIterator.hasNext() == dataIterator.hasNext());
       while (fieldsIterator.hasNext() && dataIterator.hasNext()) {
-        Object value = dataIterator.next().getV();
-        String strValue = (value != null) ? String.valueOf(value) : null;
-        entity.setProperty(fieldsIterator.next().getName(), strValue);
+        TableFieldSchema field = fieldsIterator.next();
+        entity.setProperty(field.getName(), toPropertyValue(field, dataIterator.next().getV()));
         Preconditions.checkState(fieldsIterator.hasNext() == dataIterator.hasNext());
       }
       entities.add(entity);
     }
-    service.put(entities);
+    return entities;
+  }
+
+  /**
+   * Converts a cell, which BigQuery always returns as a string, to a property of the field's type
+   * so that readers don't have to parse numbers again.
+   */
+  private static Object toPropertyValue(TableFieldSchema field, Object value) {
+    if (value == null) {
+      return null;
+    }
+    String strValue = String.valueOf(value);
+    try {
+      if ("INTEGER".equals(field.getType())) {
+        return Long.valueOf(strValue);
+      } else if ("FLOAT".equals(field.getType())) {
+        return Double.valueOf(strValue);
+      } else if ("BOOLEAN".equals(field.getType())) {
+        return Boolean.valueOf(strValue);
+      }
+    } catch (NumberFormatException e) {
+      // Fall through and keep the string.
+    }
+    return strValue;
   }
 }
@@ -23,27 +23,40 @@ public class MainServlet extends AbstractAppEngineAuthorizationCodeServlet {
 
   /**
    * This servlet responds to a GET request with a stencil page that will be filled with a chart and
-   * a message by client-side javascript. Also, if no data exists in the datastore for the current
-   * user, it sends a query to retrieve it.
+   * a message by client-side javascript. Also, if no fresh results for the query exist in the
+   * datastore and nobody is already running it, it sends the query to retrieve them.
    */
   @Override
   protected void doGet(HttpServletRequest request, HttpServletResponse response)
       throws ServletException, IOException {
     String userId = getUserId(request);
-    DatastoreUtils datastoreUtils = new DatastoreUtils(userId);
+    DatastoreUtils datastoreUtils = newDatastoreUtils(userId);
 
-    printPage(response, datastoreUtils.getUserLastRunMessage());
+    printPage(response, datastoreUtils.getLastRunMessage());
 
-    // Try to get data if this user is unknown, or if their last try failed.
-    if (!datastoreUtils.hasUserEntity() || datastoreUtils.hasUserQueryFailed()) {
+    // Try to get data if the shared results are missing or stale, or if the last try failed.
+    // A failure of this user's alone needs no new query if the shared results are still fresh.
+    if (datastoreUtils.hasUserFailed() && datastoreUtils.hasFreshResults(ResultCache.TTL_MILLIS)) {
+      datastoreUtils.clearUserFailure();
+    } else if (datastoreUtils.hasQueryFailed()
+        || (!datastoreUtils.hasFreshResults(ResultCache.TTL_MILLIS)
+            && !datastoreUtils.isQueryRunning())) {
       runQuery(request, response, userId, datastoreUtils);
     }
   }
 
+  private static DatastoreUtils newDatastoreUtils(String userId) {
+    return new DatastoreUtils(userId, ResultCache.fingerprint(BigqueryUtils.buildExampleQuery()));
+  }
+
   private void runQuery(HttpServletRequest request, HttpServletResponse response, String userId,
       DatastoreUtils datastoreUtils) throws IOException {
-    // Clear the information from the last run for this user
-    datastoreUtils.putUserInformation("Beginning query...", null);
+    datastoreUtils.clearUserFailure();
+
+    // If another user is already running the same query, wait for their results instead.
+    if (!datastoreUtils.claimQuery()) {
+      return;
+    }
 
     String message;
     String status = DatastoreUtils.FAILED;
@@ -53,7 +66,7 @@ public class MainServlet extends AbstractAppEngineAuthorizationCodeServlet {
       // and when the query finishes, that task (see TaskServlet) takes care
       // of copying the results to the datastore.
       BigqueryUtils bigqueryUtils = new BigqueryUtils(userId);
-      bigqueryUtils.beginQuery();
+      bigqueryUtils.beginQuery(datastoreUtils.getRunStartedAt());
       message = "Began running your query";
       status = bigqueryUtils.getJobStatus();
 
@@ -61,6 +74,7 @@ public class MainServlet extends AbstractAppEngineAuthorizationCodeServlet {
       if (ex.getStatusCode() == HttpServletResponse.SC_UNAUTHORIZED) {
         ServiceUtils.deleteCredentials(userId);
         message = "There was a problem running the query with your credentials. Refresh, please!";
+        datastoreUtils.putUserFailure(message);
       }
       else {
         message = "Encountered an exception (" + ex.getStatusCode() + "): " + ex.getMessage();
@@ -68,7 +82,7 @@ public class MainServlet extends AbstractAppEngineAuthorizationCodeServlet {
       }
     }
 
-    datastoreUtils.putUserInformation(message, status);
+    datastoreUtils.putQueryInformation(message, status);
   }
 
   /**
@@ -78,7 +92,7 @@ public class MainServlet extends AbstractAppEngineAuthorizationCodeServlet {
   protected void doPost(HttpServletRequest request, HttpServletResponse response)
       throws IOException, ServletException {
     String userId = getUserId(request);
-    DatastoreUtils datastoreUtils = new DatastoreUtils(userId);
+    DatastoreUtils datastoreUtils = newDatastoreUtils(userId);
     runQuery(request, response, userId, datastoreUtils);
   }
 
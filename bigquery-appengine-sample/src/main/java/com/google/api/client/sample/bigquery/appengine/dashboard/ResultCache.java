@@ -0,0 +1,246 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+
+package com.google.api.client.sample.bigquery.appengine.dashboard;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.hash.Hashing;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared cache of query results, so that any number of users asking for the same query cost one
+ * BigQuery job and one stored result set.
+ *
+ * <p>Queries are identified by a {@link #fingerprint} of their normalized text. Results are
+ * stored in the datastore by {@link DatastoreUtils} and are fresh for {@link #TTL_MILLIS} after
+ * the query last succeeded; after that, the next user to load the dashboard reruns it, and the
+ * previous results are served until the rerun's are published. In front of the datastore, each
+ * instance keeps recently read result sets in an in-memory LRU tier. An entry there is only
+ * served while it matches the datastore's current results version, so a rerun on any instance
+ * invalidates it.
+ */
+public class ResultCache {
+
+  /**
+   * How long results are fresh, configured by the {@code resultTtlSeconds} system property in
+   * appengine-web.xml. Defaults to an hour.
+   */
+  static final long TTL_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong(
+      "com.google.api.client.sample.bigquery.appengine.dashboard.resultTtlSeconds", 3600));
+
+  /** Result sets held in memory per instance. */
+  private static final int MAX_CACHED_QUERIES = 16;
+
+  /** Larger result sets are always read from the datastore, to bound instance memory. */
+  private static final int MAX_CACHED_ROWS = 20000;
+
+  private static final Cache<String, CachedResults> memoryTier = CacheBuilder.newBuilder()
+      .maximumSize(MAX_CACHED_QUERIES)
+      .expireAfterWrite(TTL_MILLIS, TimeUnit.MILLISECONDS)
+      .build();
+
+  /**
+   * Returns a fingerprint of the query, which is the same for queries that differ only in
+   * whitespace outside of string literals.
+   */
+  static String fingerprint(String query) {
+    StringBuilder normalized = new StringBuilder(query.length());
+    char quote = 0;
+    boolean pendingSpace = false;
+    for (int i = 0; i < query.length(); i++) {
+      char c = query.charAt(i);
+      if (quote == 0 && Character.isWhitespace(c)) {
+        pendingSpace = normalized.length() > 0;
+        continue;
+      }
+      if (pendingSpace) {
+        normalized.append(' ');
+        pendingSpace = false;
+      }
+      if (quote == 0 && (c == '\'' || c == '"')) {
+        quote = c;
+      } else if (c == quote) {
+        quote = 0;
+      }
+      normalized.append(c);
+    }
+    return Hashing.sha256().hashString(normalized, Charsets.UTF_8).toString();
+  }
+
+  /**
+   * Returns the current results of the query tracked by {@code datastoreUtils}, from memory if
+   * this instance has read this version of them. Otherwise the results are streamed from the
+   * datastore, and cached once fully read if there are few enough of them.
+   */
+  static Iterable<Entity> getResults(final DatastoreUtils datastoreUtils) {
+    final String fingerprint = datastoreUtils.getQueryFingerprint();
+    final String version = datastoreUtils.getResultsVersion();
+    CachedResults cached = memoryTier.getIfPresent(fingerprint);
+    if (cached != null && version != null && cached.version.equals(version)) {
+      return cached.results != null ? cached.results : datastoreUtils.getResults();
+    }
+    memoryTier.invalidate(fingerprint);
+    if (version == null) {
+      return datastoreUtils.getResults();
+    }
+    return new Iterable<Entity>() {
+      @Override
+      public Iterator<Entity> iterator() {
+        return new CachingIterator(fingerprint, version,
+            datastoreUtils.getResults().iterator());
+      }
+    };
+  }
+
+  /**
+   * Returns up to {@code limit} of the current results of the query tracked by
+   * {@code datastoreUtils}, starting at {@code cursor}, or at the first result if it is
+   * {@code null}.
+   *
+   * <p>Cursors name the results version they page through. The first chunk of a version that
+   * this instance does not hold reads the whole version into memory, if it has at most
+   * {@link #MAX_CACHED_ROWS} results, and the following chunks are served from there. A larger
+   * version is remembered as such and paged from the datastore.
+   *
+   * @return the chunk, or {@code null} if {@code cursor} is for results that have since been
+   *     replaced, or the query has no results
+   * @throws IllegalArgumentException if {@code cursor} is not a valid cursor
+   */
+  static Chunk getChunk(DatastoreUtils datastoreUtils, String cursor, int limit) {
+    String version = datastoreUtils.getResultsVersion();
+    int offset = 0;
+    String datastoreCursor = null;
+    if (cursor != null) {
+      // version:offset[:datastore cursor]
+      String[] parts = cursor.split(":", 3);
+      try {
+        offset = parts.length < 2 ? -1 : Integer.parseInt(parts[1]);
+      } catch (NumberFormatException e) {
+        offset = -1;
+      }
+      if (offset < 0) {
+        throw new IllegalArgumentException("Invalid cursor: " + cursor);
+      }
+      if (!parts[0].equals(version)) {
+        return null;
+      }
+      datastoreCursor = parts.length == 3 ? parts[2] : null;
+    }
+    if (version == null) {
+      return null;
+    }
+
+    String fingerprint = datastoreUtils.getQueryFingerprint();
+    CachedResults cached = memoryTier.getIfPresent(fingerprint);
+    if ((cached == null || !cached.version.equals(version)) && offset == 0) {
+      cached = load(datastoreUtils, fingerprint, version);
+    }
+    if (cached != null && cached.version.equals(version) && cached.results != null) {
+      int size = cached.results.size();
+      int end = Math.min(size, offset + limit);
+      return new Chunk(cached.results.subList(Math.min(offset, end), end),
+          end < size ? version + ":" + end : null);
+    }
+    QueryResultList<Entity> results =
+        datastoreUtils.getResults(version, datastoreCursor, offset, limit);
+    return new Chunk(results, results.size() < limit ? null
+        : version + ":" + (offset + limit) + ":" + results.getCursor().toWebSafeString());
+  }
+
+  /**
+   * Reads the whole of {@code version} into the memory tier, or records there that it has more
+   * than {@link #MAX_CACHED_ROWS} results.
+   */
+  private static CachedResults load(DatastoreUtils datastoreUtils, String fingerprint,
+      String version) {
+    List<Entity> results = new ArrayList<Entity>();
+    for (Entity entity : datastoreUtils.getResults()) {
+      if (results.size() == MAX_CACHED_ROWS) {
+        results = null;
+        break;
+      }
+      results.add(entity);
+    }
+    CachedResults cached = new CachedResults(version, results);
+    memoryTier.put(fingerprint, cached);
+    return cached;
+  }
+
+  /** Up to a requested number of results, and the cursor of the rest. */
+  static class Chunk {
+
+    final List<Entity> results;
+
+    /** The cursor of the next chunk, or {@code null} if this is the last. */
+    final String nextCursor;
+
+    Chunk(List<Entity> results, String nextCursor) {
+      this.results = results;
+      this.nextCursor = nextCursor;
+    }
+  }
+
+  /**
+   * Passes results through from the datastore while keeping a copy, which is cached when the
+   * results run out. If there are more than {@link #MAX_CACHED_ROWS}, only that is cached.
+   */
+  private static class CachingIterator extends AbstractIterator<Entity> {
+
+    private final String fingerprint;
+    private final String version;
+    private final Iterator<Entity> results;
+    private List<Entity> copy = new ArrayList<Entity>();
+
+    CachingIterator(String fingerprint, String version, Iterator<Entity> results) {
+      this.fingerprint = fingerprint;
+      this.version = version;
+      this.results = results;
+    }
+
+    @Override
+    protected Entity computeNext() {
+      if (!results.hasNext()) {
+        if (copy != null) {
+          memoryTier.put(fingerprint, new CachedResults(version, copy));
+        }
+        return endOfData();
+      }
+      Entity entity = results.next();
+      if (copy != null) {
+        if (copy.size() < MAX_CACHED_ROWS) {
+          copy.add(entity);
+        } else {
+          // Too many to cache; stop copying, and remember not to try again.
+          copy = null;
+          memoryTier.put(fingerprint, new CachedResults(version, null));
+        }
+      }
+      return entity;
+    }
+  }
+
+  /** Result entities of one successful run of a query. */
+  private static class CachedResults {
+
+    final String version;
+
+    /** The results, or {@code null} if there are too many to cache. */
+    final List<Entity> results;
+
+    CachedResults(String version, List<Entity> results) {
+      this.version = version;
+      this.results = results;
+    }
+  }
+
+  private ResultCache() {
+  }
+}
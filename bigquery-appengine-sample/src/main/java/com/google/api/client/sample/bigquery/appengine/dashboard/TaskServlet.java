@@ -14,9 +14,12 @@ import javax.servlet.http.HttpServletResponse;
  * out of the App Engine task queue. It gets the status of the query from Bigquery and:
  * <ul>
  * <li>copies the results to the datastore if the query has finished successfully</li>
- * <li>enqueues another task to wait if the query is running/pending</li>
+ * <li>enqueues another task to wait if the query is running/pending, backing off between polls
+ * and giving up after {@link BigqueryUtils#MAX_POLL_ATTEMPTS} polls or
+ * {@link BigqueryUtils#MAX_POLL_MILLIS}</li>
  * <li>handles query failure</li>
  * </ul>
+ * The query's status is shared by every user waiting on it; see {@link ResultCache}.
  *
  * <b>Note:</b> Because of the auth-constraint defined in web.xml, this can only be called by App
  * Engine, and not by users.
@@ -33,8 +36,21 @@ public class TaskServlet extends HttpServlet {
       throws IOException {
     String userId = request.getParameter("userId");
     String jobId = request.getParameter("jobId");
+    String fingerprint = request.getParameter("fingerprint");
+    // Tasks enqueued before queries were keyed by fingerprint only ever ran the example query.
+    if (fingerprint == null) {
+      fingerprint = ResultCache.fingerprint(BigqueryUtils.buildExampleQuery());
+    }
+    // Tasks enqueued before polls were counted have neither parameter.
+    String attemptParameter = request.getParameter("attempt");
+    String startedAtParameter = request.getParameter("startedAt");
+    int attempt = attemptParameter == null ? 0 : Integer.parseInt(attemptParameter);
+    long startedAt = startedAtParameter == null
+        ? System.currentTimeMillis() : Long.parseLong(startedAtParameter);
 
-    DatastoreUtils datastoreUtils = new DatastoreUtils(userId);
+    DatastoreUtils datastoreUtils = new DatastoreUtils(userId, fingerprint);
+    // Leave the query alone if another run has claimed it since this one began.
+    datastoreUtils.setRun(startedAtParameter == null ? null : startedAt);
     String message;
     String status = DatastoreUtils.FAILED;
 
@@ -43,39 +59,52 @@ public class TaskServlet extends HttpServlet {
 
       // If the job is done, handle it; otherwise, enqueue another task to wait for it.
       if (bigqueryUtils.jobIsDone()) {
-        // Delete any previous results for this user.
-        datastoreUtils.deleteExistingResults();
+        long latencyMillis = System.currentTimeMillis() - startedAt;
+        datastoreUtils.setPollMetrics(attempt + 1, latencyMillis);
+        log.info("Job " + jobId + " done after " + (attempt + 1) + " polls and " + latencyMillis
+            + " ms");
 
-        // If the job succeeded, copy the results to the datastore.
+        // If the job succeeded, copy its results next to the previous ones, which are served
+        // until the new ones are complete and replace them.
         if (bigqueryUtils.jobSucceeded()) {
-          datastoreUtils.copyQueryResultsToDatastore(
-              bigqueryUtils.getSchemaFieldNames(), bigqueryUtils.getTableData());
-
-          message = "Here are your results!";
-          status = bigqueryUtils.getJobStatus();
-
-          datastoreUtils.updateSuccessfulQueryTimestamp();
+          try {
+            datastoreUtils.copyQueryResultsToDatastore(
+                jobId, bigqueryUtils.getSchemaFieldNames(), bigqueryUtils);
+          } catch (SampleDashboardException e) {
+            datastoreUtils.deleteResults(jobId);
+            throw e;
+          }
+          datastoreUtils.publishResults(jobId, "Here are your results!");
+          return;
         } else {
           message = bigqueryUtils.getJobErrorMessage();
         }
       } else {
-        // If it's not done, keep waiting for it.
+        // If it's not done, keep waiting for it, unless it has been polled too often or too long.
         String jobStatus = bigqueryUtils.getJobStatus();
-        bigqueryUtils.enqueueWaitingTask();
-        message = "Waiting for the results of the query (" + jobStatus.toLowerCase() + ")";
-        status = jobStatus;
+        if (BigqueryUtils.shouldKeepPolling(attempt + 1, startedAt)) {
+          bigqueryUtils.enqueueWaitingTask(attempt + 1, startedAt);
+          message = "Waiting for the results of the query (" + jobStatus.toLowerCase() + ")";
+          status = jobStatus;
+        } else {
+          message = "Gave up waiting for the results of the query after " + (attempt + 1)
+              + " checks";
+          log.warning("Job " + jobId + ": " + message);
+        }
       }
     } catch (SampleDashboardException ex) {
       if (ex.getStatusCode() == HttpServletResponse.SC_UNAUTHORIZED) {
         ServiceUtils.deleteCredentials(userId);
         message = "There was a problem running the query with your credentials. Refresh, please!";
+        datastoreUtils.putUserFailure(message);
       } else {
         message = "Encountered an exception (" + ex.getStatusCode() + "): " + ex.getMessage();
         log.severe(message);
       }
     }
 
-    // Update the datastore with the new message and status.
-    datastoreUtils.putUserInformation(message, status);
+    // Update the datastore with the new message and status, for everyone waiting on this query.
+    // This is skipped when nothing changed since the last poll.
+    datastoreUtils.putQueryInformation(message, status);
   }
 }
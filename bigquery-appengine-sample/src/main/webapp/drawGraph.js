@@ -1,11 +1,11 @@
 // Copyright 2011 Google Inc. All Rights Reserved.
 
 /**
- * @fileoverview This script posts to the data servlet with a request for data
- * to display until either the servlet responds with data or responds that it
- * failed. The servlet responds to each post with a message, which the script
- * displays to the user and data if it exists, which the script draws as a
- * motion chart.
+ * @fileoverview This script asks the data servlet for data to display until
+ * either the servlet responds with data or responds that it failed. The
+ * servlet responds to each request with a message, which the script displays
+ * to the user and data if it exists, which the script draws as a motion chart
+ * and then extends chunk by chunk.
  *
  * @author lparkinson@google.com (Laura Parkinson)
  */
@@ -34,27 +34,90 @@ function doOnLoad() {
   postCheck();
 }
 
+/**
+ * The number of rows requested at a time. The chart is drawn as soon as the
+ * first chunk arrives and redrawn as the rest are added.
+ */
+var CHUNK_SIZE = 1000;
+
+/**
+ * The version of the results drawn, so that checks made while the query is
+ * rerun don't redraw the previous results.
+ */
+var drawnVersion = null;
+
+/** Whether a check of the servlet is scheduled or in progress. */
+var checking = false;
+
 function postCheck() {
-  $.post('/data', function(dataObject) {
+  checking = true;
+  $.get('/data', {limit: CHUNK_SIZE}, function(dataObject) {
     $('#message').html(dataObject.message);
 
-    if (!dataObject.data && !dataObject.failed) {
+    // While the query is rerun, the previous results are drawn and the servlet
+    // is checked again until the new ones replace them.
+    if ((!dataObject.data && !dataObject.failed) || dataObject.refreshing) {
       setTimeout(postCheck, 2000);
     } else {
+      checking = false;
       $('#refresh').removeAttr('disabled');
-      if (dataObject.data) {
-        $('#lastRun').html(dataObject.lastRun);
-        
-        var width = 800;
-        var height = 400;
-        var viz = $('#visualization');
-        viz.css('width', width);
-        viz.css('height', height);
-
-        var dataTable = new google.visualization.DataTable(dataObject.data);
-        var motionchart = new google.visualization.MotionChart(viz[0]);
-        motionchart.draw(dataTable, {width: width, height: height});
+    }
+    if (dataObject.data && dataObject.version != drawnVersion) {
+      drawnVersion = dataObject.version;
+      $('#lastRun').html(dataObject.lastRun);
+
+      var width = 800;
+      var height = 400;
+      var viz = $('#visualization');
+      viz.css('width', width);
+      viz.css('height', height);
+
+      var dataTable = new google.visualization.DataTable(dataObject.data);
+      var motionchart = new google.visualization.MotionChart(viz[0]);
+      var options = {width: width, height: height};
+      motionchart.draw(dataTable, options);
+
+      if (dataObject.nextCursor) {
+        getChunk(dataObject.nextCursor, dataTable, motionchart, options);
       }
     }
   }, 'json');
 }
+
+/**
+ * Fetches the chunk of rows after the given cursor, adds them to the data
+ * table and redraws the chart, until the servlet stops returning a cursor.
+ * The servlet answers 409 if the results have been replaced since the cursor
+ * was returned.
+ */
+function getChunk(cursor, dataTable, motionchart, options) {
+  $.get('/data', {limit: CHUNK_SIZE, cursor: cursor}, function(dataObject) {
+    if (!dataObject.data) {
+      return;
+    }
+    var rows = [];
+    for (var i = 0; i < dataObject.data.rows.length; i++) {
+      var cells = dataObject.data.rows[i].c;
+      var row = [];
+      for (var j = 0; j < cells.length; j++) {
+        row.push(cells[j]);
+      }
+      rows.push(row);
+    }
+    dataTable.addRows(rows);
+    motionchart.draw(dataTable, options);
+
+    if (dataObject.nextCursor) {
+      getChunk(dataObject.nextCursor, dataTable, motionchart, options);
+    }
+  }, 'json').fail(function(xhr) {
+    // The results were replaced while their chunks were being fetched; start
+    // over with the new ones.
+    if (xhr.status == 409) {
+      drawnVersion = null;
+      if (!checking) {
+        postCheck();
+      }
+    }
+  });
+}
@@ -34,6 +34,7 @@ import com.google.api.client.util.store.FileDataStoreFactory;
 import com.google.api.services.calendar.CalendarScopes;
 import com.google.api.services.calendar.model.Calendar;
 import com.google.api.services.calendar.model.CalendarList;
+import com.google.api.services.calendar.model.CalendarListEntry;
 import com.google.api.services.calendar.model.Event;
 import com.google.api.services.calendar.model.EventDateTime;
 import com.google.api.services.calendar.model.Events;
@@ -42,6 +43,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Map;
 import java.util.TimeZone;
 
 /**
@@ -59,6 +61,10 @@ public class CalendarSample {
   private static final java.io.File DATA_STORE_DIR =
       new java.io.File(System.getProperty("user.home"), ".store/calendar_sample");
 
+  /** Directory to store the synced calendar list and events. */
+  private static final java.io.File CALENDAR_SYNC_DIR =
+      new java.io.File(DATA_STORE_DIR, "sync");
+
   /**
    * Global instance of the {@link DataStoreFactory}. The best practice is to make it a single
    * globally shared instance across your application.
@@ -118,6 +124,7 @@ public class CalendarSample {
       updateCalendar(calendar);
       addEvent(calendar);
       showEvents(calendar);
+      syncCalendars();
       deleteCalendarsUsingBatch();
       deleteCalendar(calendar);
 
@@ -131,8 +138,12 @@ public class CalendarSample {
 
   private static void showCalendars() throws IOException {
     View.header("Show Calendars");
-    CalendarList feed = client.calendarList().list().execute();
-    View.display(feed);
+    String pageToken = null;
+    do {
+      CalendarList feed = client.calendarList().list().setPageToken(pageToken).execute();
+      View.display(feed);
+      pageToken = feed.getNextPageToken();
+    } while (pageToken != null);
   }
 
   private static void addCalendarsUsingBatch() throws IOException {
@@ -204,8 +215,29 @@ public class CalendarSample {
 
   private static void showEvents(Calendar calendar) throws IOException {
     View.header("Show Events");
-    Events feed = client.events().list(calendar.getId()).execute();
-    View.display(feed);
+    String pageToken = null;
+    do {
+      Events feed = client.events().list(calendar.getId()).setPageToken(pageToken).execute();
+      View.display(feed);
+      pageToken = feed.getNextPageToken();
+    } while (pageToken != null);
+  }
+
+  private static void syncCalendars() throws IOException {
+    View.header("Sync Calendars");
+    CalendarSync sync = new CalendarSync(client, CALENDAR_SYNC_DIR);
+    CalendarSync.Summary summary = sync.syncAll();
+    System.out.println("Full syncs: " + summary.getFullSyncs() + ", incremental syncs: "
+        + summary.getIncrementalSyncs() + ", changed events: " + summary.getChangedEvents()
+        + ", requests: " + summary.getRequests());
+    for (Map.Entry<String, IOException> failure : summary.getFailures().entrySet()) {
+      System.out.println("Unable to sync " + failure.getKey() + ": "
+          + failure.getValue().getMessage());
+    }
+    for (CalendarListEntry entry : sync.getCalendars()) {
+      System.out.println(entry.getSummary() + ": " + sync.getEvents(entry.getId()).size()
+          + " events stored");
+    }
   }
 
   private static void deleteCalendarsUsingBatch() throws IOException {
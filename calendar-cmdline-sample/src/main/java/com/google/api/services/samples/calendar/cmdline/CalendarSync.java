@@ -0,0 +1,499 @@
+/*
+ * Copyright (c) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.calendar.cmdline;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.util.Charsets;
+import com.google.api.client.util.DateTime;
+import com.google.api.client.util.Key;
+import com.google.api.services.calendar.Calendar;
+import com.google.api.services.calendar.model.CalendarList;
+import com.google.api.services.calendar.model.CalendarListEntry;
+import com.google.api.services.calendar.model.Event;
+import com.google.api.services.calendar.model.EventDateTime;
+import com.google.api.services.calendar.model.Events;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a local copy of the user's calendar list and of the events of every calendar in it, up to
+ * date with incremental sync.
+ *
+ * <p>The first sync of a calendar lists all its events, following {@code nextPageToken}, and
+ * saves the {@code nextSyncToken} of the last page along with the events. Later syncs pass that
+ * token, so the server only returns what changed since: new and updated events, and cancelled
+ * (deleted) ones. If the server no longer accepts the token, it responds with 410 Gone and the
+ * calendar is synced in full again. The calendar list is synced the same way.
+ *
+ * <p>Each calendar is saved to its own file in the store directory, with its sync token, only once
+ * its sync has completed, so an interrupted sync leaves the previous copy and token in place.
+ * Calendars are synced concurrently. A calendar whose sync fails, for example because it has been
+ * deleted or is no longer shared with the user (404 or 403), keeps its previous copy and is
+ * reported in {@link Summary#getFailures}, and the other calendars are still synced. Readers get
+ * events from {@link #getEvents} without any request.
+ */
+public class CalendarSync {
+
+  /** Maximum number of entries per calendar list page (API limit). */
+  private static final int MAX_CALENDARS = 250;
+
+  /** Maximum number of events per events page (API limit). */
+  private static final int MAX_EVENTS = 2500;
+
+  /** Default number of calendars synced at once. */
+  public static final int DEFAULT_PARALLELISM = 4;
+
+  private static final String CALENDAR_LIST_FILE = "calendarList.json";
+
+  private static final String EVENTS_FILE_SUFFIX = ".events.json";
+
+  /** What is saved for the calendar list. */
+  public static class CalendarListSnapshot extends GenericJson {
+
+    @Key
+    String syncToken;
+
+    @Key
+    List<CalendarListEntry> items;
+  }
+
+  /** What is saved for each calendar. */
+  public static class EventsSnapshot extends GenericJson {
+
+    @Key
+    String syncToken;
+
+    @Key
+    List<Event> items;
+  }
+
+  /** Counts of what one {@link #syncAll} call did. */
+  public static class Summary {
+
+    final AtomicInteger fullSyncs = new AtomicInteger();
+    final AtomicInteger incrementalSyncs = new AtomicInteger();
+    final AtomicInteger changedEvents = new AtomicInteger();
+    final AtomicInteger requests = new AtomicInteger();
+    final Map<String, IOException> failures =
+        Collections.synchronizedMap(new LinkedHashMap<String, IOException>());
+
+    /** Returns the number of calendars that were listed in full. */
+    public int getFullSyncs() {
+      return fullSyncs.get();
+    }
+
+    /** Returns the number of calendars that were synced from a sync token. */
+    public int getIncrementalSyncs() {
+      return incrementalSyncs.get();
+    }
+
+    /** Returns the number of events that were added, updated or removed. */
+    public int getChangedEvents() {
+      return changedEvents.get();
+    }
+
+    /** Returns the number of list requests made. */
+    public int getRequests() {
+      return requests.get();
+    }
+
+    /**
+     * Returns why the events of some calendars could not be synced, by calendar ID, in calendar
+     * list order. The stored events of these calendars are left as they were.
+     */
+    public Map<String, IOException> getFailures() {
+      return Collections.unmodifiableMap(failures);
+    }
+  }
+
+  private final Calendar client;
+  private final JsonFactory jsonFactory;
+  private final File directory;
+  private final int parallelism;
+
+  /**
+   * Events of the calendars read or synced so far, by calendar ID and then event ID. The maps are
+   * never modified once added; a sync replaces the whole map.
+   */
+  private final ConcurrentMap<String, Map<String, Event>> events =
+      new ConcurrentHashMap<String, Map<String, Event>>();
+
+  public CalendarSync(Calendar client, File directory) {
+    this(client, directory, DEFAULT_PARALLELISM);
+  }
+
+  /**
+   * @param client the Calendar client used to access the API
+   * @param directory the directory to store the calendar list and events in
+   * @param parallelism the maximum number of calendars synced at once
+   */
+  public CalendarSync(Calendar client, File directory, int parallelism) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism must be positive");
+    }
+    this.client = client;
+    this.jsonFactory = client.getJsonFactory();
+    this.directory = directory;
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Syncs the calendar list, then the events of every calendar in it. The files of calendars that
+   * left the list are deleted.
+   *
+   * @throws IOException if the calendar list could not be synced; failures to sync the events of a
+   *     calendar are reported in the summary instead
+   */
+  public Summary syncAll() throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create directory: " + directory);
+    }
+    Summary summary = new Summary();
+    List<CalendarListEntry> calendars = syncCalendarList(summary);
+    List<String> ids = new ArrayList<String>();
+    for (CalendarListEntry calendar : calendars) {
+      ids.add(calendar.getId());
+    }
+    deleteOtherCalendars(ids);
+
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      Map<String, Future<Void>> syncs = new LinkedHashMap<String, Future<Void>>();
+      for (String id : ids) {
+        syncs.put(id, executor.submit(new EventsSync(id, summary)));
+      }
+      for (Map.Entry<String, Future<Void>> sync : syncs.entrySet()) {
+        try {
+          await(sync.getValue());
+        } catch (InterruptedIOException e) {
+          throw e;
+        } catch (IOException e) {
+          // Keep syncing the other calendars.
+          summary.failures.put(sync.getKey(), e);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return summary;
+  }
+
+  /** Returns the stored calendar list, or an empty list if it has never been synced. */
+  public List<CalendarListEntry> getCalendars() throws IOException {
+    File file = new File(directory, CALENDAR_LIST_FILE);
+    if (!file.isFile()) {
+      return Collections.emptyList();
+    }
+    List<CalendarListEntry> items = read(file, CalendarListSnapshot.class).items;
+    return items == null ? Collections.<CalendarListEntry>emptyList() : items;
+  }
+
+  /**
+   * Returns the stored events of a calendar, in no particular order, or an empty collection if the
+   * calendar has never been synced.
+   */
+  public Collection<Event> getEvents(String calendarId) throws IOException {
+    return Collections.unmodifiableCollection(storedEvents(calendarId).values());
+  }
+
+  /**
+   * Returns the stored events of a calendar that overlap the time range from {@code from}
+   * (inclusive) to {@code to} (exclusive), ordered by start time.
+   */
+  public List<Event> getEvents(String calendarId, DateTime from, DateTime to)
+      throws IOException {
+    List<Event> overlapping = new ArrayList<Event>();
+    for (Event event : storedEvents(calendarId).values()) {
+      if (millis(event.getStart()) < to.getValue() && millis(event.getEnd()) > from.getValue()) {
+        overlapping.add(event);
+      }
+    }
+    Collections.sort(overlapping, new Comparator<Event>() {
+      @Override
+      public int compare(Event a, Event b) {
+        long startA = millis(a.getStart());
+        long startB = millis(b.getStart());
+        return startA < startB ? -1 : (startA == startB ? 0 : 1);
+      }
+    });
+    return overlapping;
+  }
+
+  /** Returns the stored event with the given ID, or {@code null}. */
+  public Event getEvent(String calendarId, String eventId) throws IOException {
+    return storedEvents(calendarId).get(eventId);
+  }
+
+  private List<CalendarListEntry> syncCalendarList(Summary summary) throws IOException {
+    File file = new File(directory, CALENDAR_LIST_FILE);
+    CalendarListSnapshot stored = file.isFile() ? read(file, CalendarListSnapshot.class) : null;
+    String syncToken = stored == null ? null : stored.syncToken;
+    Map<String, CalendarListEntry> entries = new LinkedHashMap<String, CalendarListEntry>();
+    if (syncToken != null && stored.items != null) {
+      for (CalendarListEntry entry : stored.items) {
+        entries.put(entry.getId(), entry);
+      }
+    }
+    String pageToken = null;
+    CalendarList page;
+    while (true) {
+      Calendar.CalendarList.List request =
+          client.calendarList().list().setMaxResults(MAX_CALENDARS).setPageToken(pageToken);
+      if (syncToken != null) {
+        request.setSyncToken(syncToken);
+      }
+      try {
+        summary.requests.incrementAndGet();
+        page = request.execute();
+      } catch (GoogleJsonResponseException e) {
+        if (e.getStatusCode() != 410 || syncToken == null) {
+          throw e;
+        }
+        // The sync token is no longer valid, so list everything again.
+        syncToken = null;
+        entries.clear();
+        pageToken = null;
+        continue;
+      }
+      if (page.getItems() != null) {
+        for (CalendarListEntry entry : page.getItems()) {
+          if (Boolean.TRUE.equals(entry.getDeleted())) {
+            entries.remove(entry.getId());
+          } else {
+            entries.put(entry.getId(), entry);
+          }
+        }
+      }
+      pageToken = page.getNextPageToken();
+      if (pageToken == null) {
+        break;
+      }
+    }
+
+    CalendarListSnapshot snapshot = new CalendarListSnapshot();
+    snapshot.syncToken = page.getNextSyncToken();
+    snapshot.items = new ArrayList<CalendarListEntry>(entries.values());
+    write(file, snapshot);
+    return snapshot.items;
+  }
+
+  /** Syncs the events of one calendar and saves them. */
+  private class EventsSync implements Callable<Void> {
+
+    private final String calendarId;
+    private final Summary summary;
+
+    EventsSync(String calendarId, Summary summary) {
+      this.calendarId = calendarId;
+      this.summary = summary;
+    }
+
+    @Override
+    public Void call() throws IOException {
+      File file = eventsFile(calendarId);
+      EventsSnapshot stored = file.isFile() ? read(file, EventsSnapshot.class) : null;
+      String syncToken = stored == null ? null : stored.syncToken;
+      // Apply the changes to a copy, so that readers never see a partly applied sync.
+      Map<String, Event> synced = new LinkedHashMap<String, Event>();
+      if (syncToken != null) {
+        Map<String, Event> current = events.get(calendarId);
+        if (current != null) {
+          synced.putAll(current);
+        } else if (stored.items != null) {
+          for (Event event : stored.items) {
+            synced.put(event.getId(), event);
+          }
+        }
+      }
+      int changed = 0;
+      String pageToken = null;
+      Events page;
+      while (true) {
+        Calendar.Events.List request =
+            client.events().list(calendarId).setMaxResults(MAX_EVENTS).setPageToken(pageToken);
+        if (syncToken != null) {
+          request.setSyncToken(syncToken);
+        }
+        try {
+          summary.requests.incrementAndGet();
+          page = request.execute();
+        } catch (GoogleJsonResponseException e) {
+          if (e.getStatusCode() != 410 || syncToken == null) {
+            throw e;
+          }
+          // The sync token is no longer valid, so list everything again.
+          syncToken = null;
+          synced.clear();
+          changed = 0;
+          pageToken = null;
+          continue;
+        }
+        if (page.getItems() != null) {
+          for (Event event : page.getItems()) {
+            if ("cancelled".equals(event.getStatus())) {
+              synced.remove(event.getId());
+            } else {
+              synced.put(event.getId(), event);
+            }
+            changed++;
+          }
+        }
+        pageToken = page.getNextPageToken();
+        if (pageToken == null) {
+          break;
+        }
+      }
+
+      if (syncToken == null) {
+        summary.fullSyncs.incrementAndGet();
+      } else {
+        summary.incrementalSyncs.incrementAndGet();
+      }
+      summary.changedEvents.addAndGet(changed);
+      // An incremental sync with no changes leaves the file as it is.
+      if (syncToken == null || changed > 0 || !syncToken.equals(page.getNextSyncToken())) {
+        EventsSnapshot snapshot = new EventsSnapshot();
+        snapshot.syncToken = page.getNextSyncToken();
+        snapshot.items = new ArrayList<Event>(synced.values());
+        write(file, snapshot);
+      }
+      events.put(calendarId, Collections.unmodifiableMap(synced));
+      return null;
+    }
+  }
+
+  /** Returns the events of a calendar, reading them from its file if not already in memory. */
+  private Map<String, Event> storedEvents(String calendarId) throws IOException {
+    Map<String, Event> stored = events.get(calendarId);
+    if (stored != null) {
+      return stored;
+    }
+    stored = new LinkedHashMap<String, Event>();
+    File file = eventsFile(calendarId);
+    if (file.isFile()) {
+      List<Event> items = read(file, EventsSnapshot.class).items;
+      if (items != null) {
+        for (Event event : items) {
+          stored.put(event.getId(), event);
+        }
+      }
+    }
+    stored = Collections.unmodifiableMap(stored);
+    Map<String, Event> raced = events.putIfAbsent(calendarId, stored);
+    return raced != null ? raced : stored;
+  }
+
+  /** Returns the time of a start or end, using midnight UTC for all-day events. */
+  static long millis(EventDateTime time) {
+    if (time == null) {
+      return Long.MIN_VALUE;
+    }
+    return (time.getDateTime() != null ? time.getDateTime() : time.getDate()).getValue();
+  }
+
+  /** Deletes the files of calendars that are not in {@code calendarIds}. */
+  private void deleteOtherCalendars(List<String> calendarIds) {
+    List<String> fileNames = new ArrayList<String>();
+    for (String calendarId : calendarIds) {
+      fileNames.add(eventsFile(calendarId).getName());
+    }
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.getName().endsWith(EVENTS_FILE_SUFFIX) && !fileNames.contains(file.getName())) {
+        file.delete();
+      }
+    }
+    events.keySet().retainAll(calendarIds);
+  }
+
+  private File eventsFile(String calendarId) {
+    try {
+      // Calendar IDs are e-mail addresses and may contain '#', so encode them for the file name.
+      return new File(directory, URLEncoder.encode(calendarId, "UTF-8") + EVENTS_FILE_SUFFIX);
+    } catch (java.io.UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private <T> T read(File file, Class<T> snapshotClass) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      return jsonFactory.fromInputStream(in, Charsets.UTF_8, snapshotClass);
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Writes a snapshot through a temporary file, so that it is never left half written. */
+  private void write(File file, GenericJson snapshot) throws IOException {
+    // createTempFile needs a prefix of at least three characters
+    File temp = File.createTempFile("." + file.getName() + ".", ".tmp", directory);
+    try {
+      OutputStream out = new FileOutputStream(temp);
+      try {
+        out.write(jsonFactory.toByteArray(snapshot));
+      } finally {
+        out.close();
+      }
+      // renameTo does not replace an existing file on every platform
+      if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+        throw new IOException("Unable to replace " + file);
+      }
+    } finally {
+      temp.delete();
+    }
+  }
+
+  private static void await(Future<Void> sync) throws IOException {
+    try {
+      sync.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while syncing calendars");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Calendar sync failed", e.getCause());
+    }
+  }
+}
@@ -15,22 +15,40 @@
 package com.google.api.services.samples.dfareporting.cmdline;
 
 import com.google.api.client.http.HttpResponse;
-import com.google.api.client.util.Charsets;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.services.dfareporting.Dfareporting;
 import com.google.api.services.dfareporting.model.File;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
 
 /**
- * This example downloads the contents of a report file.
+ * This example downloads a report file to disk and parses it.
+ *
+ * <p>The download is streamed straight into the local file, and resumed with a {@code Range}
+ * request if the connection drops partway or the server responds with a 5xx error. The file is
+ * then parsed a row at a time, so even very large reports are never held in memory.
  *
  * @author jdilallo@google.com (Joseph DiLallo)
  */
 public class DownloadReportFile {
 
+  /** Number of times to resume a download after the connection drops. */
+  private static final int MAX_RESUME_ATTEMPTS = 5;
+
+  /** Most bytes transferred per call, so that progress is kept between calls. */
+  private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+
+  /** Number of rows printed by the sample. */
+  private static final int ROWS_TO_PRINT = 10;
+
   /**
-   * Fetches the contents of a report file.
+   * Downloads a report file to a temporary file and prints its first rows.
    *
    * @param reporting Dfareporting service object on which to run the requests.
    * @param reportFile The completed report file to download.
@@ -44,19 +62,115 @@ public class DownloadReportFile {
     System.out.printf("The ID number of this report file is %s%n", reportFile.getId());
     System.out.println("=================================================================");
 
-    HttpResponse fileContents = reporting.files()
-        .get(reportFile.getReportId(), reportFile.getId())
-        .executeMedia();
+    java.io.File target = java.io.File.createTempFile("report-" + reportFile.getId() + "-", ".csv");
+    try {
+      long size = downloadToFile(reporting, reportFile, target);
+      System.out.printf("Downloaded %d bytes to %s%n", size, target);
+
+      long rows = ReportCsvParser.parse(target, new ReportCsvParser.RowHandler() {
+        private int printed;
+
+        @Override
+        public void header(List<String> columns) {
+          System.out.println(columns);
+        }
+
+        @Override
+        public void row(List<Object> values) {
+          if (printed++ < ROWS_TO_PRINT) {
+            System.out.println(values);
+          }
+        }
+      });
+      System.out.printf("Report has %d rows%n", rows);
+    } finally {
+      target.delete();
+    }
+    System.out.println();
+  }
+
+  /**
+   * Downloads a report file into {@code target}, replacing its contents.
+   *
+   * @param reporting Dfareporting service object on which to run the requests.
+   * @param reportFile The completed report file to download.
+   * @param target the local file to write to.
+   * @return the number of bytes downloaded
+   * @throws IOException if the download fails with an HTTP error other than a server error, or
+   *     keeps failing after being resumed
+   */
+  public static long downloadToFile(Dfareporting reporting, File reportFile, java.io.File target)
+      throws IOException {
+    RandomAccessFile file = new RandomAccessFile(target, "rw");
+    try {
+      FileChannel out = file.getChannel();
+      out.truncate(0);
+      long position = 0;
+      for (int attempt = 0; ; attempt++) {
+        try {
+          return transfer(reporting, reportFile, out, position);
+        } catch (IOException e) {
+          // Keep whatever arrived before the connection dropped.
+          position = out.size();
+          if (attempt == MAX_RESUME_ATTEMPTS || !isResumable(e)) {
+            throw e;
+          }
+          System.out.printf("Download interrupted at byte %d (%s); resuming.%n", position,
+              e.getMessage());
+        }
+      }
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Returns whether a download that failed with {@code e} is worth resuming: the connection
+   * failed, or the server had an error. Other HTTP errors, such as 401, 403, 404 or 416, would
+   * only happen again.
+   */
+  private static boolean isResumable(IOException e) {
+    return !(e instanceof HttpResponseException)
+        || ((HttpResponseException) e).getStatusCode() >= 500;
+  }
 
+  /**
+   * Downloads the report file from byte {@code position} onwards, writing it into {@code out} at
+   * the same position.
+   *
+   * @return the size of the complete file
+   */
+  private static long transfer(Dfareporting reporting, File reportFile, FileChannel out,
+      long position) throws IOException {
+    Dfareporting.Files.Get request =
+        reporting.files().get(reportFile.getReportId(), reportFile.getId());
+    if (position > 0) {
+      request.getRequestHeaders().setRange("bytes=" + position + "-");
+    }
+    HttpResponse response = request.executeMedia();
     try {
-      BufferedReader reader = new BufferedReader(
-          new InputStreamReader(fileContents.getContent(), Charsets.UTF_8));
-      String line;
-      while ((line = reader.readLine()) != null) {
-        System.out.println(line);
+      if (position > 0 && response.getStatusCode() != 206) {
+        // The range was ignored and the whole file is coming again, so start over.
+        position = 0;
+        out.truncate(0);
+      }
+      long start = position;
+      InputStream content = response.getContent();
+      ReadableByteChannel in = Channels.newChannel(content);
+      long transferred;
+      while ((transferred = out.transferFrom(in, position, TRANSFER_CHUNK_SIZE)) > 0) {
+        position += transferred;
+      }
+      // A dropped connection can look like the end of the body, so check the length if we can.
+      Long expected = response.getHeaders().getContentLength();
+      if (response.getContentEncoding() == null && expected != null
+          && position - start < expected) {
+        throw new IOException("Connection closed after " + (position - start) + " of "
+            + expected + " bytes");
       }
+      return position;
     } finally {
-      fileContents.disconnect();
+      response.disconnect();
     }
   }
 }
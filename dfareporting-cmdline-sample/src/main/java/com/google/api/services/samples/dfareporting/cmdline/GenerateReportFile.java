@@ -18,6 +18,11 @@ import com.google.api.services.dfareporting.Dfareporting;
 import com.google.api.services.dfareporting.model.File;
 import com.google.api.services.dfareporting.model.Report;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeoutException;
+
 /**
  * This example generates a report file from a report.
  *
@@ -27,9 +32,6 @@ import com.google.api.services.dfareporting.model.Report;
  */
 public class GenerateReportFile {
 
-  private static final Integer MAX_POLLING_ATTEMPTS = 4;
-  private static final Integer POLL_TIME_INCREMENT = 30000; // 30s
-
   /**
    * Requests the generation of a new report file from a given report.
    *
@@ -46,48 +48,30 @@ public class GenerateReportFile {
     System.out.printf("Generating a report file for report with ID %s%n", report.getId());
     System.out.println("=================================================================");
 
-    File reportFile = reporting.reports()
-        .run(userProfileId, report.getId()).setSynchronous(isSynchronous).execute();
-    System.out.println("Report execution initiated. Checking for completion...");
-
-    reportFile = waitForReportRunCompletion(reporting, userProfileId, reportFile);
-
-    if (!reportFile.getStatus().equals("REPORT_AVAILABLE")) {
-      System.out.printf(
-          "Report file generation failed to finish. Final status is: %s%n", reportFile.getStatus());
-      return null;
-    }
-
-    System.out.printf("Report file with ID \"%s\" generated.%n", reportFile.getId());
-    System.out.println();
-    return reportFile;
-  }
-
-  /**
-   * Waits for a report file to generate with exponential back-off.
-   *
-   * @param reporting Dfareporting service object on which to run the requests.
-   * @param userProfileId The ID number of the DFA user profile to run this request as.
-   * @param file The report file to poll the status of.
-   * @return the report file object, either once it is no longer processing or once too much time
-   *         has passed.
-   * @throws Exception
-   */
-  private static File waitForReportRunCompletion(
-      Dfareporting reporting, long userProfileId, File file) throws Exception {
+    // A single thread is enough to poll any number of report files.
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    try {
+      ReportFilePoller poller = new ReportFilePoller(reporting, scheduler);
+      System.out.println("Report execution initiated. Waiting for completion...");
+      File reportFile = poller.run(userProfileId, report.getId(), isSynchronous).get();
 
-    Integer interval;
-    for (int i = 0; i <= MAX_POLLING_ATTEMPTS; i++) {
-      if (!file.getStatus().equals("PROCESSING")) {
-        break;
+      System.out.printf("Report file with ID \"%s\" generated.%n", reportFile.getId());
+      System.out.println();
+      return reportFile;
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof ReportFilePoller.ReportFileFailedException
+          || e.getCause() instanceof TimeoutException) {
+        System.out.printf("Report file generation failed to finish: %s%n",
+            e.getCause().getMessage());
+        return null;
       }
-
-      interval = (int) (POLL_TIME_INCREMENT * (Math.pow(1.6, i)));
-      System.out.printf("Polling again in %s ms.%n", interval);
-      Thread.sleep(interval);
-      file = reporting.reports()
-          .files().get(userProfileId, file.getReportId(), file.getId()).execute();
+      // Rethrow API errors as they are, so that the caller can report them.
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    } finally {
+      scheduler.shutdownNow();
     }
-    return file;
   }
 }
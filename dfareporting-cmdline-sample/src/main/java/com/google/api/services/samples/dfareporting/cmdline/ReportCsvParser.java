@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.google.api.services.samples.dfareporting.cmdline;
+
+import com.google.api.client.util.Charsets;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Incremental parser for CSV report files, which hands each row to a {@link RowHandler} as it is
+ * read, so that a report never needs to be held in memory.
+ *
+ * <p>A DFA CSV report starts with a summary of the report, up to a line reading
+ * {@code Report Fields}. The line after that holds the column names, and the data rows follow,
+ * up to a {@code Grand Total:} row. Fields may be quoted, with embedded commas, quotes and line
+ * breaks.
+ */
+public class ReportCsvParser {
+
+  private static final String REPORT_FIELDS = "Report Fields";
+  private static final String GRAND_TOTAL = "Grand Total:";
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** Receives the rows of a report. */
+  public interface RowHandler {
+
+    /** Called once, with the column names, before any rows. */
+    void header(List<String> columns) throws IOException;
+
+    /**
+     * Called for each data row. Values that look like whole numbers are {@link Long}s, other
+     * numbers {@link Double}s, empty fields {@code null}, and everything else a {@link String}.
+     * The list is only valid for the duration of the call.
+     */
+    void row(List<Object> values) throws IOException;
+  }
+
+  private final Reader reader;
+  private final char[] buffer = new char[BUFFER_SIZE];
+  private int position;
+  private int limit;
+  private final StringBuilder field = new StringBuilder();
+
+  private ReportCsvParser(Reader reader) {
+    this.reader = reader;
+  }
+
+  /**
+   * Parses a report file on disk.
+   *
+   * @return the number of data rows
+   */
+  public static long parse(java.io.File file, RowHandler handler) throws IOException {
+    Reader reader = new InputStreamReader(new FileInputStream(file), Charsets.UTF_8);
+    try {
+      return parse(reader, handler);
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Parses a report from {@code reader}, which is not closed.
+   *
+   * @return the number of data rows
+   */
+  public static long parse(Reader reader, RowHandler handler) throws IOException {
+    ReportCsvParser parser = new ReportCsvParser(reader);
+    List<String> record = new ArrayList<String>();
+
+    // Skip the summary.
+    do {
+      if (!parser.readRecord(record)) {
+        throw new IOException("No \"" + REPORT_FIELDS + "\" line found in report");
+      }
+    } while (!(record.size() >= 1 && REPORT_FIELDS.equals(record.get(0))));
+
+    if (!parser.readRecord(record)) {
+      throw new IOException("No column names found in report");
+    }
+    handler.header(Collections.unmodifiableList(new ArrayList<String>(record)));
+
+    long rows = 0;
+    List<Object> values = new ArrayList<Object>();
+    while (parser.readRecord(record)) {
+      if (!record.isEmpty() && record.get(0).startsWith(GRAND_TOTAL)) {
+        break;
+      }
+      values.clear();
+      for (String value : record) {
+        values.add(toValue(value));
+      }
+      handler.row(values);
+      rows++;
+    }
+    return rows;
+  }
+
+  /**
+   * Reads the next non-blank record into {@code record}.
+   *
+   * @return {@code false} at the end of the input
+   */
+  private boolean readRecord(List<String> record) throws IOException {
+    record.clear();
+    field.setLength(0);
+    boolean quoted = false;
+    boolean sawAnything = false;
+    while (true) {
+      int c = read();
+      if (c == -1) {
+        if (quoted) {
+          throw new IOException("Unterminated quoted field at end of report");
+        }
+        if (sawAnything) {
+          record.add(field.toString());
+        }
+        return sawAnything;
+      }
+      if (quoted) {
+        if (c == '"') {
+          if (peek() == '"') {
+            read();
+            field.append('"');
+          } else {
+            quoted = false;
+          }
+        } else {
+          field.append((char) c);
+        }
+      } else if (c == '"') {
+        quoted = true;
+        sawAnything = true;
+      } else if (c == ',') {
+        record.add(field.toString());
+        field.setLength(0);
+        sawAnything = true;
+      } else if (c == '\r' || c == '\n') {
+        if (c == '\r' && peek() == '\n') {
+          read();
+        }
+        if (sawAnything) {
+          record.add(field.toString());
+          return true;
+        }
+        // Skip blank lines.
+      } else {
+        field.append((char) c);
+        sawAnything = true;
+      }
+    }
+  }
+
+  private int read() throws IOException {
+    if (position == limit && !fill()) {
+      return -1;
+    }
+    return buffer[position++];
+  }
+
+  private int peek() throws IOException {
+    if (position == limit && !fill()) {
+      return -1;
+    }
+    return buffer[position];
+  }
+
+  private boolean fill() throws IOException {
+    int read;
+    do {
+      read = reader.read(buffer);
+    } while (read == 0);
+    if (read == -1) {
+      return false;
+    }
+    position = 0;
+    limit = read;
+    return true;
+  }
+
+  /** Converts a field to a Long, Double, String or {@code null}, as described in RowHandler. */
+  static Object toValue(String value) {
+    if (value.isEmpty()) {
+      return null;
+    }
+    int start = value.charAt(0) == '-' ? 1 : 0;
+    if (start == value.length()) {
+      return value;
+    }
+    boolean integer = true;
+    for (int i = start; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < '0' || c > '9') {
+        if (c != '.' && c != 'e' && c != 'E') {
+          return value;
+        }
+        integer = false;
+      }
+    }
+    // Leave values too long for a long, such as some IDs, as strings.
+    if (integer) {
+      return value.length() - start <= 18 ? (Object) Long.valueOf(value) : value;
+    }
+    try {
+      return Double.valueOf(value);
+    } catch (NumberFormatException e) {
+      return value;
+    }
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.google.api.services.samples.dfareporting.cmdline;
+
+import com.google.api.services.dfareporting.Dfareporting;
+import com.google.api.services.dfareporting.model.File;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs reports and waits for their files to be generated without tying up a thread per report.
+ *
+ * <p>Every report file that is still processing is polled from the same
+ * {@link ScheduledExecutorService}, with its own exponential back-off, so a handful of threads can
+ * track hundreds of report runs. Each run is represented by a future that completes once its
+ * file is available.
+ */
+public class ReportFilePoller {
+
+  private static final long INITIAL_POLL_DELAY_MILLIS = 30000; // 30s
+  private static final double POLL_DELAY_MULTIPLIER = 1.6;
+  private static final long MAX_POLL_DELAY_MILLIS = 5 * 60 * 1000; // 5m
+
+  /** Default time to wait for a report file before giving up. */
+  public static final long DEFAULT_TIMEOUT_MILLIS = 60 * 60 * 1000; // 1h
+
+  /** Thrown when a report file finishes processing without becoming available. */
+  public static class ReportFileFailedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final File file;
+
+    ReportFileFailedException(File file) {
+      super(String.format("Report file %s of report %s finished with status %s", file.getId(),
+          file.getReportId(), file.getStatus()));
+      this.file = file;
+    }
+
+    /** Returns the report file, as last fetched. */
+    public File getFile() {
+      return file;
+    }
+  }
+
+  private final Dfareporting reporting;
+  private final ScheduledExecutorService scheduler;
+  private final long timeoutMillis;
+
+  public ReportFilePoller(Dfareporting reporting, ScheduledExecutorService scheduler) {
+    this(reporting, scheduler, DEFAULT_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * @param reporting Dfareporting service object on which to run the requests.
+   * @param scheduler the executor that runs reports and polls their files.
+   * @param timeoutMillis how long to wait for each report file before giving up.
+   */
+  public ReportFilePoller(Dfareporting reporting, ScheduledExecutorService scheduler,
+      long timeoutMillis) {
+    this.reporting = reporting;
+    this.scheduler = scheduler;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Runs a report and waits for the resulting file.
+   *
+   * @param userProfileId The ID number of the DFA user profile to run this request as.
+   * @param reportId The ID of the report to run.
+   * @param isSynchronous whether to ask for the report to be run synchronously.
+   * @return a future for the report file, which fails with a {@link ReportFileFailedException}
+   *     if the file cannot be generated, or a {@link TimeoutException} if it takes too long.
+   */
+  public ListenableFuture<File> run(final long userProfileId, final long reportId,
+      final boolean isSynchronous) {
+    final SettableFuture<File> result = SettableFuture.create();
+    scheduler.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          File file = reporting.reports()
+              .run(userProfileId, reportId).setSynchronous(isSynchronous).execute();
+          new Poll(userProfileId, file, result).check(file);
+        } catch (IOException e) {
+          result.setException(e);
+        } catch (RuntimeException e) {
+          result.setException(e);
+        }
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Waits for a report file that has already been requested.
+   *
+   * @param userProfileId The ID number of the DFA user profile to run this request as.
+   * @param file The report file to poll the status of.
+   * @return a future for the report file, as in {@link #run}.
+   */
+  public ListenableFuture<File> poll(long userProfileId, File file) {
+    SettableFuture<File> result = SettableFuture.create();
+    new Poll(userProfileId, file, result).check(file);
+    return result;
+  }
+
+  /** The back-off state of one report file. */
+  private class Poll implements Runnable {
+
+    private final long userProfileId;
+    private final long reportId;
+    private final long fileId;
+    private final SettableFuture<File> result;
+    private final long deadline;
+    private int attempt;
+
+    Poll(long userProfileId, File file, SettableFuture<File> result) {
+      this.userProfileId = userProfileId;
+      this.reportId = file.getReportId();
+      this.fileId = file.getId();
+      this.result = result;
+      this.deadline = System.currentTimeMillis() + timeoutMillis;
+    }
+
+    /** Completes the result if the file is done, or schedules the next poll. */
+    void check(File file) {
+      if (!"PROCESSING".equals(file.getStatus())) {
+        if ("REPORT_AVAILABLE".equals(file.getStatus())) {
+          result.set(file);
+        } else {
+          result.setException(new ReportFileFailedException(file));
+        }
+        return;
+      }
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        result.setException(new TimeoutException(String.format(
+            "Report file %s of report %s still processing after %d ms", fileId, reportId,
+            timeoutMillis)));
+        return;
+      }
+      long delay = (long) Math.min(
+          INITIAL_POLL_DELAY_MILLIS * Math.pow(POLL_DELAY_MULTIPLIER, attempt++),
+          MAX_POLL_DELAY_MILLIS);
+      scheduler.schedule(this, Math.min(delay, remaining), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void run() {
+      // The caller may have cancelled the future while this poll was waiting.
+      if (result.isDone()) {
+        return;
+      }
+      try {
+        check(reporting.reports().files().get(userProfileId, reportId, fileId).execute());
+      } catch (IOException e) {
+        result.setException(e);
+      } catch (RuntimeException e) {
+        result.setException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright (c) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.google.api.services.samples.discovery.cmdline;
+
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.util.Charsets;
+import com.google.api.client.util.Lists;
+import com.google.api.client.util.Maps;
+import com.google.api.services.discovery.Discovery;
+import com.google.api.services.discovery.model.JsonSchema;
+import com.google.api.services.discovery.model.RestDescription;
+import com.google.api.services.discovery.model.RestMethod;
+import com.google.api.services.discovery.model.RestResource;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * On-disk cache of discovery documents, keyed by API name and version.
+ *
+ * <p>Each entry is the discovery document as fetched plus a binary index of its methods, so that
+ * a command can resolve a method without parsing the document. Entries younger than
+ * {@link #MAX_AGE_MILLIS} are used without going to the network; older ones are revalidated with
+ * their ETag, which costs a 304 rather than a full download when the API has not changed.
+ */
+class DiscoveryCache {
+
+  /** How long an entry is used before it is revalidated. */
+  static final long MAX_AGE_MILLIS = 24L * 60 * 60 * 1000;
+
+  /** Changed whenever the index layout changes, so that older indexes are rebuilt. */
+  private static final int INDEX_VERSION = 1;
+
+  private final File directory;
+
+  private final Discovery discovery;
+
+  private final JsonFactory jsonFactory;
+
+  DiscoveryCache(File directory, Discovery discovery) {
+    this.directory = directory;
+    this.discovery = discovery;
+    this.jsonFactory = discovery.getJsonFactory();
+  }
+
+  /** What commands need to know about one version of an API. */
+  static class ApiIndex {
+
+    String etag;
+    String basePath;
+    /** Schema type of each API-wide parameter that declares one. */
+    Map<String, String> parameterTypes = Maps.newHashMap();
+    /** Sorted by name. */
+    ArrayList<MethodDetails> methods = Lists.newArrayList();
+
+    /** Returns the method with the given full name (e.g. {@code "activities.list"}) or null. */
+    MethodDetails getMethod(String name) {
+      MethodDetails key = new MethodDetails();
+      key.name = name;
+      int index = Collections.binarySearch(methods, key);
+      return index < 0 ? null : methods.get(index);
+    }
+  }
+
+  /**
+   * Returns the index of the given API version, fetching the discovery document only if there is
+   * no cached copy or the cached copy is stale and has changed.
+   *
+   * @throws HttpResponseException if the discovery service rejects the request, e.g. with a 404
+   *     for an unknown API
+   */
+  ApiIndex load(String apiName, String apiVersion) throws IOException {
+    File documentFile = new File(directory, apiName + "." + apiVersion + ".json");
+    File indexFile = new File(directory, apiName + "." + apiVersion + ".idx");
+    ApiIndex index = readCached(documentFile, indexFile);
+    if (index != null && System.currentTimeMillis() - indexFile.lastModified() < MAX_AGE_MILLIS) {
+      return index;
+    }
+    Discovery.Apis.GetRest getRest = discovery.apis().getRest(apiName, apiVersion);
+    if (index != null && index.etag != null) {
+      getRest.getRequestHeaders().setIfNoneMatch(index.etag);
+    }
+    HttpResponse response;
+    try {
+      response = getRest.executeUnparsed();
+    } catch (HttpResponseException e) {
+      if (index != null && e.getStatusCode() == 304) {
+        long now = System.currentTimeMillis();
+        documentFile.setLastModified(now);
+        indexFile.setLastModified(now);
+        return index;
+      }
+      throw e;
+    } catch (IOException e) {
+      if (index == null) {
+        throw e;
+      }
+      System.err.println("Using cached discovery document for " + apiName + " " + apiVersion
+          + ", unable to revalidate it: " + e.getMessage());
+      return index;
+    }
+    String document = response.parseAsString();
+    RestDescription restDescription = jsonFactory.fromString(document, RestDescription.class);
+    String etag = response.getHeaders().getETag();
+    index = buildIndex(etag != null ? etag : restDescription.getEtag(), restDescription);
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create directory: " + directory);
+    }
+    replace(documentFile, document.getBytes(Charsets.UTF_8));
+    writeIndex(indexFile, index);
+    return index;
+  }
+
+  /**
+   * Reads the cached index, rebuilding it from the cached document if it is missing, unreadable
+   * or of an older layout. Returns null if nothing usable is cached.
+   */
+  private ApiIndex readCached(File documentFile, File indexFile) throws IOException {
+    if (indexFile.isFile()) {
+      try {
+        return readIndex(indexFile);
+      } catch (IOException e) {
+        // fall through and rebuild it from the document
+      }
+    }
+    if (!documentFile.isFile()) {
+      return null;
+    }
+    RestDescription restDescription;
+    InputStream in = new FileInputStream(documentFile);
+    try {
+      restDescription = jsonFactory.fromInputStream(in, Charsets.UTF_8, RestDescription.class);
+    } finally {
+      in.close();
+    }
+    ApiIndex index = buildIndex(restDescription.getEtag(), restDescription);
+    writeIndex(indexFile, index);
+    // the rebuilt index is only as fresh as the document it came from
+    indexFile.setLastModified(documentFile.lastModified());
+    return index;
+  }
+
+  static ApiIndex buildIndex(String etag, RestDescription restDescription) {
+    ApiIndex index = new ApiIndex();
+    index.etag = etag;
+    index.basePath = restDescription.getBasePath();
+    putParameterTypes(index.parameterTypes, restDescription.getParameters());
+    processMethods(index.methods, "", restDescription.getMethods());
+    processResources(index.methods, "", restDescription.getResources());
+    Collections.sort(index.methods);
+    return index;
+  }
+
+  private static void putParameterTypes(
+      Map<String, String> parameterTypes, Map<String, JsonSchema> parameters) {
+    if (parameters == null) {
+      return;
+    }
+    for (Map.Entry<String, JsonSchema> parameterEntry : parameters.entrySet()) {
+      String type = parameterEntry.getValue().getType();
+      if (type != null) {
+        parameterTypes.put(parameterEntry.getKey(), type);
+      }
+    }
+  }
+
+  private static void processMethods(
+      ArrayList<MethodDetails> result, String resourceName, Map<String, RestMethod> methodMap) {
+    if (methodMap == null) {
+      return;
+    }
+    for (Map.Entry<String, RestMethod> methodEntry : methodMap.entrySet()) {
+      MethodDetails details = new MethodDetails();
+      String methodName = methodEntry.getKey();
+      RestMethod method = methodEntry.getValue();
+      details.name = (resourceName.isEmpty() ? "" : resourceName + ".") + methodName;
+      details.id = method.getId();
+      details.httpMethod = method.getHttpMethod();
+      details.path = method.getPath();
+      details.hasContent =
+          !method.getHttpMethod().equals("GET") && !method.getHttpMethod().equals("DELETE");
+      // required parameters
+      if (method.getParameterOrder() != null) {
+        for (String parameterName : method.getParameterOrder()) {
+          JsonSchema parameter = method.getParameters().get(parameterName);
+          if (Boolean.TRUE.equals(parameter.getRequired())) {
+            details.requiredParameters.add(parameterName);
+          }
+        }
+      }
+      // optional parameters
+      Map<String, JsonSchema> parameters = method.getParameters();
+      if (parameters != null) {
+        for (Map.Entry<String, JsonSchema> parameterEntry : parameters.entrySet()) {
+          String parameterName = parameterEntry.getKey();
+          JsonSchema parameter = parameterEntry.getValue();
+          if (!Boolean.TRUE.equals(parameter.getRequired())) {
+            details.optionalParameters.add(parameterName);
+          }
+        }
+      }
+      putParameterTypes(details.parameterTypes, parameters);
+      if (method.getScopes() != null) {
+        for (Object scope : method.getScopes()) {
+          details.scopes.add((String) scope);
+        }
+      }
+      result.add(details);
+    }
+  }
+
+  private static void processResources(
+      ArrayList<MethodDetails> result, String resourceName, Map<String, RestResource> resourceMap) {
+    if (resourceMap == null) {
+      return;
+    }
+    for (Map.Entry<String, RestResource> entry : resourceMap.entrySet()) {
+      RestResource resource = entry.getValue();
+      String curResourceName = (resourceName.isEmpty() ? "" : resourceName + ".") + entry.getKey();
+      processMethods(result, curResourceName, resource.getMethods());
+      processResources(result, curResourceName, resource.getResources());
+    }
+  }
+
+  /*
+   * Index layout: the version, a table of every distinct string, and then the index itself with
+   * each string written as its varint position in the table plus one (zero stands for null).
+   * Parameter names and types repeat across methods, so the table keeps the index small.
+   */
+
+  private static void writeIndex(File file, ApiIndex index) throws IOException {
+    StringTableWriter out = new StringTableWriter();
+    out.writeString(index.etag);
+    out.writeString(index.basePath);
+    out.writeMap(index.parameterTypes);
+    out.writeVarInt(index.methods.size());
+    for (MethodDetails method : index.methods) {
+      out.writeString(method.name);
+      out.writeString(method.id);
+      out.writeString(method.httpMethod);
+      out.writeString(method.path);
+      out.body.writeBoolean(method.hasContent);
+      out.writeStrings(method.requiredParameters);
+      out.writeStrings(method.optionalParameters);
+      out.writeMap(method.parameterTypes);
+      out.writeStrings(method.scopes);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    out.writeTo(new DataOutputStream(bytes));
+    replace(file, bytes.toByteArray());
+  }
+
+  private static ApiIndex readIndex(File file) throws IOException {
+    DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != INDEX_VERSION) {
+        throw new IOException("Unsupported discovery index version: " + file);
+      }
+      String[] strings = new String[readVarInt(in)];
+      for (int i = 0; i < strings.length; i++) {
+        strings[i] = in.readUTF();
+      }
+      ApiIndex index = new ApiIndex();
+      index.etag = readString(in, strings);
+      index.basePath = readString(in, strings);
+      readMap(in, strings, index.parameterTypes);
+      int methodCount = readVarInt(in);
+      index.methods.ensureCapacity(methodCount);
+      for (int i = 0; i < methodCount; i++) {
+        MethodDetails method = new MethodDetails();
+        method.name = readString(in, strings);
+        method.id = readString(in, strings);
+        method.httpMethod = readString(in, strings);
+        method.path = readString(in, strings);
+        method.hasContent = in.readBoolean();
+        for (int j = readVarInt(in); j > 0; j--) {
+          method.requiredParameters.add(readString(in, strings));
+        }
+        for (int j = readVarInt(in); j > 0; j--) {
+          method.optionalParameters.add(readString(in, strings));
+        }
+        readMap(in, strings, method.parameterTypes);
+        for (int j = readVarInt(in); j > 0; j--) {
+          method.scopes.add(readString(in, strings));
+        }
+        index.methods.add(method);
+      }
+      return index;
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException("Corrupt discovery index: " + file);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String readString(DataInputStream in, String[] strings) throws IOException {
+    int position = readVarInt(in);
+    return position == 0 ? null : strings[position - 1];
+  }
+
+  private static void readMap(DataInputStream in, String[] strings, Map<String, String> map)
+      throws IOException {
+    for (int i = readVarInt(in); i > 0; i--) {
+      map.put(readString(in, strings), readString(in, strings));
+    }
+  }
+
+  private static int readVarInt(DataInputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint in discovery index");
+  }
+
+  private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+    while ((value & ~0x7f) != 0) {
+      out.writeByte((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  /** Writes the index body while collecting the string table that has to precede it. */
+  private static class StringTableWriter {
+
+    final Map<String, Integer> positions = Maps.newLinkedHashMap();
+    final ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+    final DataOutputStream body = new DataOutputStream(bodyBytes);
+
+    void writeString(String value) throws IOException {
+      if (value == null) {
+        writeVarInt(0);
+        return;
+      }
+      Integer position = positions.get(value);
+      if (position == null) {
+        position = positions.size() + 1;
+        positions.put(value, position);
+      }
+      writeVarInt(position);
+    }
+
+    void writeStrings(Collection<String> values) throws IOException {
+      writeVarInt(values.size());
+      for (String value : values) {
+        writeString(value);
+      }
+    }
+
+    void writeMap(Map<String, String> map) throws IOException {
+      writeVarInt(map.size());
+      for (Map.Entry<String, String> entry : map.entrySet()) {
+        writeString(entry.getKey());
+        writeString(entry.getValue());
+      }
+    }
+
+    void writeVarInt(int value) throws IOException {
+      DiscoveryCache.writeVarInt(body, value);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+      out.writeInt(INDEX_VERSION);
+      DiscoveryCache.writeVarInt(out, positions.size());
+      for (String value : positions.keySet()) {
+        out.writeUTF(value);
+      }
+      body.flush();
+      bodyBytes.writeTo(out);
+      out.flush();
+    }
+  }
+
+  /**
+   * Replaces the file's contents through a temporary file and a rename, so that a concurrent
+   * invocation never reads a partly written entry.
+   */
+  private static void replace(File file, byte[] contents) throws IOException {
+    File temp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+    try {
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+      try {
+        out.write(contents);
+      } finally {
+        out.close();
+      }
+      // renameTo does not replace an existing file on every platform
+      if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+        throw new IOException("Unable to replace " + file);
+      }
+    } finally {
+      temp.delete();
+    }
+  }
+}
@@ -30,16 +30,12 @@ import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.UriTemplate;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
-import com.google.api.client.util.Lists;
 import com.google.api.client.util.Maps;
 import com.google.api.client.util.store.DataStoreFactory;
 import com.google.api.client.util.store.FileDataStoreFactory;
 import com.google.api.services.discovery.Discovery;
 import com.google.api.services.discovery.model.DirectoryList;
-import com.google.api.services.discovery.model.JsonSchema;
-import com.google.api.services.discovery.model.RestDescription;
-import com.google.api.services.discovery.model.RestMethod;
-import com.google.api.services.discovery.model.RestResource;
+import com.google.api.services.samples.discovery.cmdline.DiscoveryCache.ApiIndex;
 import com.google.common.base.Joiner;
 
 import java.io.File;
@@ -47,8 +43,6 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.math.BigDecimal;
 import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -64,6 +58,9 @@ public class DiscoverySample {
   private static final java.io.File DATA_STORE_DIR =
       new java.io.File(System.getProperty("user.home"), ".store/discovery_sample");
 
+  /** Directory to cache discovery documents and their method indexes. */
+  private static final File DISCOVERY_CACHE_DIR = new File(DATA_STORE_DIR, "discovery");
+
   /**
    * Global instance of the {@link DataStoreFactory}. The best practice is to make it a single
    * globally shared instance across your application.
@@ -149,16 +146,14 @@ public class DiscoverySample {
   }
 
   private static void putParameter(String argName, Map<String, Object> parameters,
-      String parameterName, JsonSchema parameter, String parameterValue) {
+      String parameterName, String parameterType, String parameterValue) {
     Object value = parameterValue;
-    if (parameter != null) {
-      if ("boolean".equals(parameter.getType())) {
-        value = Boolean.valueOf(parameterValue);
-      } else if ("number".equals(parameter.getType())) {
-        value = new BigDecimal(parameterValue);
-      } else if ("integer".equals(parameter.getType())) {
-        value = new BigInteger(parameterValue);
-      }
+    if ("boolean".equals(parameterType)) {
+      value = Boolean.valueOf(parameterValue);
+    } else if ("number".equals(parameterType)) {
+      value = new BigDecimal(parameterValue);
+    } else if ("integer".equals(parameterType)) {
+      value = new BigInteger(parameterValue);
     }
     Object oldValue = parameters.put(parameterName, value);
     if (oldValue != null) {
@@ -187,30 +182,8 @@ public class DiscoverySample {
     if (!m.matches()) {
       error("call", "invalid method name: " + fullMethodName);
     }
-    RestDescription restDescription = loadGoogleAPI("call", apiName, apiVersion);
-    Map<String, RestMethod> methodMap = null;
-    int curIndex = 0;
-    int nextIndex = fullMethodName.indexOf('.');
-    if (nextIndex == -1) {
-      methodMap = restDescription.getMethods();
-    } else {
-      Map<String, RestResource> resources = restDescription.getResources();
-      while (true) {
-        RestResource resource = resources.get(fullMethodName.substring(curIndex, nextIndex));
-        if (resource == null) {
-          break;
-        }
-        curIndex = nextIndex + 1;
-        nextIndex = fullMethodName.indexOf(curIndex + 1, '.');
-        if (nextIndex == -1) {
-          methodMap = resource.getMethods();
-          break;
-        }
-        resources = resource.getResources();
-      }
-    }
-    RestMethod method =
-        methodMap == null ? null : methodMap.get(fullMethodName.substring(curIndex));
+    ApiIndex api = loadGoogleAPI("call", apiName, apiVersion);
+    MethodDetails method = api.getMethod(fullMethodName);
     if (method == null) {
       error("call", "method not found: " + fullMethodName);
     }
@@ -219,20 +192,16 @@ public class DiscoverySample {
     String contentType = "application/json";
     int i = 4;
     // required parameters
-    if (method.getParameterOrder() != null) {
-      for (String parameterName : method.getParameterOrder()) {
-        JsonSchema parameter = method.getParameters().get(parameterName);
-        if (Boolean.TRUE.equals(parameter.getRequired())) {
-          if (i == args.length) {
-            error("call", "missing required parameter: " + parameter);
-          } else {
-            putParameter(null, parameters, parameterName, parameter, args[i++]);
-          }
-        }
+    for (String parameterName : method.requiredParameters) {
+      if (i == args.length) {
+        error("call", "missing required parameter: " + parameterName);
+      } else {
+        putParameter(null, parameters, parameterName, method.parameterTypes.get(parameterName),
+            args[i++]);
       }
     }
     // possibly required content
-    if (!method.getHttpMethod().equals("GET") && !method.getHttpMethod().equals("DELETE")) {
+    if (method.hasContent) {
       String fileName = args[i++];
       requestBodyFile = new File(fileName);
       if (!requestBodyFile.canRead()) {
@@ -251,40 +220,32 @@ public class DiscoverySample {
       String parameterValue = args[i++];
       if (parameterName.equals("contentType")) {
         contentType = parameterValue;
-        if (method.getHttpMethod().equals("GET") || method.getHttpMethod().equals("DELETE")) {
+        if (!method.hasContent) {
           error("call", "HTTP content type cannot be specified for this method: " + argName);
         }
       } else {
-        JsonSchema parameter = null;
-        if (restDescription.getParameters() != null) {
-          parameter = restDescription.getParameters().get(parameterName);
+        String parameterType = api.parameterTypes.get(parameterName);
+        if (parameterType == null) {
+          parameterType = method.parameterTypes.get(parameterName);
         }
-        if (parameter == null && method.getParameters() == null) {
-          parameter = method.getParameters().get(parameterName);
-        }
-        putParameter(argName, parameters, parameterName, parameter, parameterValue);
+        putParameter(argName, parameters, parameterName, parameterType, parameterValue);
       }
     }
     GenericUrl url = new GenericUrl(UriTemplate.expand(
-        "https://www.googleapis.com" + restDescription.getBasePath() + method.getPath(), parameters,
-        true));
+        "https://www.googleapis.com" + api.basePath + method.path, parameters, true));
     HttpContent content = null;
     if (requestBodyFile != null) {
       content = new FileContent(contentType, requestBodyFile);
     }
     try {
       HttpRequestFactory requestFactory;
-      if (method.getScopes() != null) {
-        List<String> scopes = Lists.newArrayListWithCapacity(method.getScopes().size());
-        for (Object s : method.getScopes()) {
-          scopes.add((String) s);
-        }
-        Credential credential = authorize(method.getId(), scopes);
+      if (!method.scopes.isEmpty()) {
+        Credential credential = authorize(method.id, method.scopes);
         requestFactory = httpTransport.createRequestFactory(credential);
       } else {
         requestFactory = httpTransport.createRequestFactory();
       }
-      HttpRequest request = requestFactory.buildRequest(method.getHttpMethod(), url, content);
+      HttpRequest request = requestFactory.buildRequest(method.httpMethod, url, content);
       String response = request.execute().parseAsString();
       System.out.println(response);
     } catch (IOException e) {
@@ -315,7 +276,8 @@ public class DiscoverySample {
     return new AuthorizationCodeInstalledApp(flow, new LocalServerReceiver()).authorize("user");
   }
 
-  private static RestDescription loadGoogleAPI(String command, String apiName, String apiVersion)
+  /** Loads the method index of an API, from the discovery cache when possible. */
+  private static ApiIndex loadGoogleAPI(String command, String apiName, String apiVersion)
       throws IOException {
     if (!API_NAME_PATTERN.matcher(apiName).matches()) {
       error(command, "invalid API name: " + apiName);
@@ -324,7 +286,7 @@ public class DiscoverySample {
       error(command, "invalid API version: " + apiVersion);
     }
     try {
-      return DISCOVERY.apis().getRest(apiName, apiVersion).execute();
+      return new DiscoveryCache(DISCOVERY_CACHE_DIR, DISCOVERY).load(apiName, apiVersion);
     } catch (HttpResponseException e) {
       if (e.getStatusCode() == 404) {
         error(command, "API not found: " + apiName);
@@ -334,55 +296,6 @@ public class DiscoverySample {
     }
   }
 
-  private static void processMethods(
-      ArrayList<MethodDetails> result, String resourceName, Map<String, RestMethod> methodMap) {
-    if (methodMap == null) {
-      return;
-    }
-    for (Map.Entry<String, RestMethod> methodEntry : methodMap.entrySet()) {
-      MethodDetails details = new MethodDetails();
-      String methodName = methodEntry.getKey();
-      RestMethod method = methodEntry.getValue();
-      details.name = (resourceName.isEmpty() ? "" : resourceName + ".") + methodName;
-      details.hasContent =
-          !method.getHttpMethod().equals("GET") && !method.getHttpMethod().equals("DELETE");
-      // required parameters
-      if (method.getParameterOrder() != null) {
-        for (String parameterName : method.getParameterOrder()) {
-          JsonSchema parameter = method.getParameters().get(parameterName);
-          if (Boolean.TRUE.equals(parameter.getRequired())) {
-            details.requiredParameters.add(parameterName);
-          }
-        }
-      }
-      // optional parameters
-      Map<String, JsonSchema> parameters = method.getParameters();
-      if (parameters != null) {
-        for (Map.Entry<String, JsonSchema> parameterEntry : parameters.entrySet()) {
-          String parameterName = parameterEntry.getKey();
-          JsonSchema parameter = parameterEntry.getValue();
-          if (!Boolean.TRUE.equals(parameter.getRequired())) {
-            details.optionalParameters.add(parameterName);
-          }
-        }
-      }
-      result.add(details);
-    }
-  }
-
-  private static void processResources(
-      ArrayList<MethodDetails> result, String resourceName, Map<String, RestResource> resourceMap) {
-    if (resourceMap == null) {
-      return;
-    }
-    for (Map.Entry<String, RestResource> entry : resourceMap.entrySet()) {
-      RestResource resource = entry.getValue();
-      String curResourceName = (resourceName.isEmpty() ? "" : resourceName + ".") + entry.getKey();
-      processMethods(result, curResourceName, resource.getMethods());
-      processResources(result, curResourceName, resource.getResources());
-    }
-  }
-
   private static void discover(String[] args) throws Exception {
     httpTransport = GoogleNetHttpTransport.newTrustedTransport();
     dataStoreFactory = new FileDataStoreFactory(DATA_STORE_DIR);
@@ -414,15 +327,9 @@ public class DiscoverySample {
     System.out.println("API Version: " + apiVersion);
     System.out.println();
     System.out.println("Methods:");
-    RestDescription restDescription = loadGoogleAPI("discover", apiName, apiVersion);
-    // compute method details
-    ArrayList<MethodDetails> result = Lists.newArrayList();
-    String resourceName = "";
-    processMethods(result, resourceName, restDescription.getMethods());
-    processResources(result, resourceName, restDescription.getResources());
-    Collections.sort(result);
+    ApiIndex api = loadGoogleAPI("discover", apiName, apiVersion);
     // display method details
-    for (MethodDetails methodDetail : result) {
+    for (MethodDetails methodDetail : api.methods) {
       System.out.println();
       System.out.print("google call " + apiName + " " + apiVersion + " " + methodDetail.name);
       for (String param : methodDetail.requiredParameters) {
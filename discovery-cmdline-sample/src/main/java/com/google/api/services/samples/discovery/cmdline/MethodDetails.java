@@ -15,9 +15,11 @@
 package com.google.api.services.samples.discovery.cmdline;
 
 import com.google.api.client.util.Lists;
+import com.google.api.client.util.Maps;
 import com.google.api.client.util.Sets;
 
 import java.util.ArrayList;
+import java.util.Map;
 import java.util.SortedSet;
 
 /**
@@ -26,8 +28,14 @@ import java.util.SortedSet;
 public class MethodDetails implements Comparable<MethodDetails> {
 
   String name;
+  String id;
+  String httpMethod;
+  String path;
   ArrayList<String> requiredParameters = Lists.newArrayList();
   SortedSet<String> optionalParameters = Sets.newTreeSet();
+  /** Schema type of each parameter that declares one, for converting argument values. */
+  Map<String, String> parameterTypes = Maps.newHashMap();
+  ArrayList<String> scopes = Lists.newArrayList();
   boolean hasContent;
 
   @Override
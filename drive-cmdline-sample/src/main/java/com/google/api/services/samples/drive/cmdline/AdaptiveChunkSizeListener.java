@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.google.api.services.samples.drive.cmdline;
+
+import com.google.api.client.googleapis.media.MediaHttpUploader;
+import com.google.api.client.googleapis.media.MediaHttpUploaderProgressListener;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+
+import java.io.IOException;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An upload progress listener that tunes the chunk size of a resumable upload while it runs, and
+ * reports throughput, chunk latency percentiles and retries once it is complete.
+ *
+ * <p>The uploader calls this listener after every chunk, and reads its chunk size again before
+ * sending the next one. The round trip time is taken from the (tiny) initiation request; the
+ * bandwidth from each chunk's size over its latency less that round trip. The next chunk is sized
+ * to take {@link #TARGET_CHUNK_MILLIS} at that bandwidth, so that the per-chunk round trip stays a
+ * small fraction of the upload time, and rounded down to a multiple of
+ * {@link MediaHttpUploader#MINIMUM_CHUNK_SIZE} as the protocol requires.
+ */
+public class AdaptiveChunkSizeListener implements MediaHttpUploaderProgressListener {
+
+  /** How long each chunk should take to send, at the measured bandwidth. */
+  static final long TARGET_CHUNK_MILLIS = 4000;
+
+  /** The uploader buffers a chunk in memory, so keep chunks to a reasonable size. */
+  static final int MAX_CHUNK_SIZE = 128 * MediaHttpUploader.MINIMUM_CHUNK_SIZE; // 32 MB
+
+  /** Weight of the latest chunk in the bandwidth estimate. */
+  private static final double BANDWIDTH_SMOOTHING = 0.5;
+
+  private final List<Long> chunkLatencies = new ArrayList<Long>();
+  private final AtomicInteger requests = new AtomicInteger();
+
+  private long uploadStartNanos;
+  private long lastEventNanos;
+  private long lastBytesUploaded;
+  private long roundTripMillis;
+  private double bytesPerMilli;
+
+  /**
+   * Wraps the request initializer of the client the upload is made with, so that every HTTP
+   * attempt, including retries, is counted.
+   */
+  public HttpRequestInitializer countRequests(final HttpRequestInitializer delegate) {
+    return new HttpRequestInitializer() {
+      @Override
+      public void initialize(HttpRequest request) throws IOException {
+        if (delegate != null) {
+          delegate.initialize(request);
+        }
+        final HttpExecuteInterceptor interceptor = request.getInterceptor();
+        request.setInterceptor(new HttpExecuteInterceptor() {
+          @Override
+          public void intercept(HttpRequest request) throws IOException {
+            requests.incrementAndGet();
+            if (interceptor != null) {
+              interceptor.intercept(request);
+            }
+          }
+        });
+      }
+    };
+  }
+
+  @Override
+  public void progressChanged(MediaHttpUploader uploader) throws IOException {
+    long now = System.nanoTime();
+    switch (uploader.getUploadState()) {
+      case INITIATION_STARTED:
+        View.header2("Upload Initiation has started.");
+        uploadStartNanos = now;
+        break;
+      case INITIATION_COMPLETE:
+        View.header2("Upload Initiation is Complete.");
+        roundTripMillis = (now - uploadStartNanos) / 1000000;
+        break;
+      case MEDIA_IN_PROGRESS:
+        recordChunk(uploader, now);
+        adjustChunkSize(uploader);
+        View.header2("Upload is In Progress: "
+            + NumberFormat.getPercentInstance().format(uploader.getProgress())
+            + " (next chunk " + uploader.getChunkSize() / 1024 + " KB)");
+        break;
+      case MEDIA_COMPLETE:
+        recordChunk(uploader, now);
+        View.header2("Upload is Complete!");
+        System.out.println(getSummary(now));
+        break;
+      default:
+        break;
+    }
+    lastEventNanos = now;
+  }
+
+  private void recordChunk(MediaHttpUploader uploader, long now) {
+    long bytes = uploader.getNumBytesUploaded() - lastBytesUploaded;
+    long latencyMillis = Math.max(1, (now - lastEventNanos) / 1000000);
+    lastBytesUploaded = uploader.getNumBytesUploaded();
+    if (bytes <= 0) {
+      return;
+    }
+    chunkLatencies.add(latencyMillis);
+    // Take out the round trip, but don't let a noisy estimate of it swamp a fast chunk.
+    long transferMillis = Math.max(latencyMillis / 2, latencyMillis - roundTripMillis);
+    double chunkBytesPerMilli = (double) bytes / transferMillis;
+    bytesPerMilli = bytesPerMilli == 0 ? chunkBytesPerMilli
+        : BANDWIDTH_SMOOTHING * chunkBytesPerMilli + (1 - BANDWIDTH_SMOOTHING) * bytesPerMilli;
+  }
+
+  private void adjustChunkSize(MediaHttpUploader uploader) {
+    if (bytesPerMilli == 0) {
+      return;
+    }
+    long target = (long) (bytesPerMilli * TARGET_CHUNK_MILLIS);
+    // Grow at most twofold per chunk, so one unusually fast chunk cannot overshoot.
+    target = Math.min(target, 2L * uploader.getChunkSize());
+    int minimum = MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+    long chunkSize = Math.max(minimum, Math.min(MAX_CHUNK_SIZE, target / minimum * minimum));
+    uploader.setChunkSize((int) chunkSize);
+  }
+
+  /** Returns the upload's throughput, chunk latencies and retries. */
+  private String getSummary(long now) {
+    double seconds = Math.max(1, (now - uploadStartNanos) / 1000000) / 1000.0;
+    List<Long> latencies = new ArrayList<Long>(chunkLatencies);
+    Collections.sort(latencies);
+    // One initiation request plus one per chunk; anything more was a retry or a status query.
+    int retries = Math.max(0, requests.get() - 1 - latencies.size());
+    return String.format("Uploaded %.1f MB in %.1f s (%.2f MB/s) in %d chunks; "
+        + "chunk latency p50 %d ms, p90 %d ms, p99 %d ms; round trip %d ms; %s",
+        lastBytesUploaded / 1e6, seconds, lastBytesUploaded / 1e6 / seconds, latencies.size(),
+        percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+        roundTripMillis,
+        requests.get() == 0 ? "retries not counted" : retries + " retries");
+  }
+
+  private static long percentile(List<Long> sorted, int percentile) {
+    if (sorted.isEmpty()) {
+      return 0;
+    }
+    int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+    return sorted.get(Math.max(0, index));
+  }
+}
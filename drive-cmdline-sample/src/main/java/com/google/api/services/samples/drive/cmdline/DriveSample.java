@@ -38,6 +38,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.Collections;
 
 /**
@@ -45,12 +46,16 @@ import java.util.Collections;
  * makes are:
  * <ul>
  * <li>Does a resumable media upload</li>
+ * <li>Does a resumable media upload with adaptive chunk sizes, reporting its throughput</li>
  * <li>Updates the uploaded file by renaming it</li>
  * <li>Does a resumable media download</li>
  * <li>Does a direct media upload</li>
  * <li>Does a direct media download</li>
  * </ul>
  *
+ * <p>Run with {@code upload-dir <dir> [parentFolderId]} or {@code download <dir> <fileId>...} to
+ * transfer many files at once instead.
+ *
  * @author rmistry@google.com (Ravi Mistry)
  */
 public class DriveSample {
@@ -106,8 +111,10 @@ public class DriveSample {
   }
 
   public static void main(String[] args) {
-    Preconditions.checkArgument(
-        !UPLOAD_FILE_PATH.startsWith("Enter ") && !DIR_FOR_DOWNLOADS.startsWith("Enter "),
+    boolean transfer = args.length >= 2
+        && (args[0].equals("upload-dir") || args[0].equals("download"));
+    Preconditions.checkArgument(transfer
+        || !UPLOAD_FILE_PATH.startsWith("Enter ") && !DIR_FOR_DOWNLOADS.startsWith("Enter "),
         "Please enter the upload file path and download directory in %s", DriveSample.class);
 
     try {
@@ -119,11 +126,19 @@ public class DriveSample {
       drive = new Drive.Builder(httpTransport, JSON_FACTORY, credential).setApplicationName(
           APPLICATION_NAME).build();
 
+      if (transfer) {
+        transfer(args);
+        return;
+      }
+
       // run commands
 
       View.header1("Starting Resumable Media Upload");
       File uploadedFile = uploadFile(false);
 
+      View.header1("Starting Adaptive Resumable Media Upload");
+      uploadFileWithAdaptiveChunkSize();
+
       View.header1("Updating Uploaded File Name");
       File updatedFile = updateFileWithTestSuffix(uploadedFile.getId());
 
@@ -146,6 +161,50 @@ public class DriveSample {
     System.exit(1);
   }
 
+  /**
+   * Uploads a local directory ({@code upload-dir <dir> [parentFolderId]}) or downloads Drive files
+   * ({@code download <dir> <fileId>...}) with a {@link DriveTransferManager}. Running the same
+   * command again resumes it.
+   */
+  private static void transfer(String[] args) throws IOException {
+    java.io.File dir = new java.io.File(args[1]);
+    String parentId = args.length > 2 ? args[2] : "root";
+    // Uploads of the same directory into different folders are separate transfers.
+    String transferKey = args[0].equals("upload-dir")
+        ? dir.getAbsolutePath() + "\n" + parentId : dir.getAbsolutePath();
+    java.io.File journal = new java.io.File(DATA_STORE_DIR, "transfer-" + args[0] + "-"
+        + Integer.toHexString(transferKey.hashCode()) + ".journal");
+    DriveTransferManager manager = new DriveTransferManager(drive, journal,
+        DriveTransferManager.DEFAULT_PARALLELISM, new DriveTransferManager.Listener() {
+          @Override
+          public void progressChanged(DriveTransferManager.Progress progress) {
+          }
+
+          @Override
+          public void fileCompleted(String name) {
+            System.out.println("Transferred " + name);
+          }
+
+          @Override
+          public void fileFailed(String name, IOException e) {
+            System.out.println("Failed to transfer " + name + ": " + e.getMessage());
+          }
+        });
+    try {
+      DriveTransferManager.Progress progress;
+      if (args[0].equals("upload-dir")) {
+        View.header1("Uploading " + dir);
+        progress = manager.uploadTree(dir, parentId);
+      } else {
+        View.header1("Downloading to " + dir);
+        progress = manager.download(Arrays.asList(args).subList(2, args.length), dir);
+      }
+      View.header1("Done: " + progress);
+    } finally {
+      manager.close();
+    }
+  }
+
   /** Uploads a file using either resumable or direct media upload. */
   private static File uploadFile(boolean useDirectUpload) throws IOException {
     File fileMetadata = new File();
@@ -160,6 +219,30 @@ public class DriveSample {
     return insert.execute();
   }
 
+  /**
+   * Uploads a file using resumable media upload, adapting the chunk size to the observed bandwidth
+   * and reporting throughput, chunk latencies and retries at the end.
+   */
+  private static File uploadFileWithAdaptiveChunkSize() throws IOException {
+    File fileMetadata = new File();
+    fileMetadata.setTitle(UPLOAD_FILE.getName());
+
+    FileContent mediaContent = new FileContent("image/jpeg", UPLOAD_FILE);
+
+    // Use a client whose requests are counted, so that retries can be reported.
+    AdaptiveChunkSizeListener listener = new AdaptiveChunkSizeListener();
+    Drive countingDrive = new Drive.Builder(httpTransport, JSON_FACTORY,
+        listener.countRequests(drive.getRequestFactory().getInitializer()))
+        .setApplicationName(APPLICATION_NAME).build();
+
+    Drive.Files.Insert insert = countingDrive.files().insert(fileMetadata, mediaContent);
+    MediaHttpUploader uploader = insert.getMediaHttpUploader();
+    uploader.setDirectUploadEnabled(false);
+    uploader.setChunkSize(MediaHttpUploader.MINIMUM_CHUNK_SIZE);
+    uploader.setProgressListener(listener);
+    return insert.execute();
+  }
+
   /** Updates the name of the uploaded file to have a "drivetest-" prefix. */
   private static File updateFileWithTestSuffix(String id) throws IOException {
     File fileMetadata = new File();
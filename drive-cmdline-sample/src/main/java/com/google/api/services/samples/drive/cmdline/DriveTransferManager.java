@@ -0,0 +1,503 @@
+/*
+ * Copyright (c) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.google.api.services.samples.drive.cmdline;
+
+import com.google.api.client.googleapis.media.MediaHttpDownloader;
+import com.google.api.client.googleapis.media.MediaHttpDownloaderProgressListener;
+import com.google.api.client.googleapis.media.MediaHttpUploader;
+import com.google.api.client.googleapis.media.MediaHttpUploaderProgressListener;
+import com.google.api.client.http.FileContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.ParentReference;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads a local directory tree to Drive, or downloads a list of Drive files, with several
+ * transfers running at once.
+ *
+ * <p>Progress is recorded in a journal file. Each completed upload or download, and each folder
+ * created, is appended to it, and a transfer that is run again skips whatever the journal says is
+ * already done. Uploads are recorded against the Drive folder they went into, so uploading the
+ * same directory into another folder uploads it again. Downloads are written to a {@code .part}
+ * file named after the file ID, which is renamed once complete, so a download cut short, even by
+ * killing the process, resumes from the bytes already on disk. An upload cut short starts again,
+ * since the uploader cannot pick up another process's upload session.
+ *
+ * <p>Downloaded files are named after their titles, with characters that are not safe in a file
+ * name replaced. If that name is taken, by a local file or by another file of the same call, the
+ * file ID is added to it.
+ */
+public class DriveTransferManager {
+
+  /** Default number of files transferred at once. */
+  public static final int DEFAULT_PARALLELISM = 4;
+
+  private static final String FOLDER_MIME_TYPE = "application/vnd.google-apps.folder";
+  private static final String PART_SUFFIX = ".part";
+
+  /** Characters replaced in titles to make file names, including path separators. */
+  private static final String UNSAFE_FILE_NAME_CHARACTERS = "/\\:*?\"<>|";
+
+  /**
+   * Receives the progress of all the transfers of a call. Methods are called from the transfer
+   * threads, so implementations must be thread-safe.
+   */
+  public interface Listener {
+
+    /** Called whenever any transfer makes progress. */
+    void progressChanged(Progress progress);
+
+    /** Called when a file has been transferred. */
+    void fileCompleted(String name);
+
+    /** Called when a file could not be transferred. The other transfers carry on. */
+    void fileFailed(String name, IOException e);
+  }
+
+  /** The combined progress of the transfers of a call. */
+  public static class Progress {
+
+    private final AtomicInteger filesTotal = new AtomicInteger();
+    private final AtomicInteger filesCompleted = new AtomicInteger();
+    private final AtomicInteger filesFailed = new AtomicInteger();
+    private final AtomicLong bytesTotal = new AtomicLong();
+    private final AtomicLong bytesTransferred = new AtomicLong();
+
+    public int getFilesTotal() {
+      return filesTotal.get();
+    }
+
+    /** Returns the number of files transferred, including those skipped as already done. */
+    public int getFilesCompleted() {
+      return filesCompleted.get();
+    }
+
+    public int getFilesFailed() {
+      return filesFailed.get();
+    }
+
+    /** Returns the total size of the files, as far as it is known yet. */
+    public long getBytesTotal() {
+      return bytesTotal.get();
+    }
+
+    public long getBytesTransferred() {
+      return bytesTransferred.get();
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d/%d files (%d failed), %d/%d bytes", getFilesCompleted(),
+          getFilesTotal(), getFilesFailed(), getBytesTransferred(), getBytesTotal());
+    }
+  }
+
+  private final Drive drive;
+  private final Journal journal;
+  private final int parallelism;
+  private final Listener listener;
+
+  /** The local files that downloads of the current call are saved to. */
+  private final Set<java.io.File> downloadTargets = new HashSet<java.io.File>();
+
+  /**
+   * @param drive Drive client to transfer files with.
+   * @param journalFile where to record what has been transferred; reuse it to resume.
+   * @param parallelism the number of files to transfer at once.
+   * @param listener receives the progress of the transfers.
+   */
+  public DriveTransferManager(Drive drive, java.io.File journalFile, int parallelism,
+      Listener listener) throws IOException {
+    this.drive = drive;
+    this.journal = new Journal(journalFile);
+    this.parallelism = parallelism;
+    this.listener = listener;
+  }
+
+  /**
+   * Uploads the contents of {@code directory} into the Drive folder {@code parentId}, recreating
+   * its subdirectories as folders.
+   *
+   * @return the final progress, which counts the files that failed
+   */
+  public Progress uploadTree(java.io.File directory, String parentId) throws IOException {
+    if (!directory.isDirectory()) {
+      throw new IOException(directory + " is not a directory");
+    }
+    Progress progress = new Progress();
+    List<Callable<Void>> transfers = new ArrayList<Callable<Void>>();
+    // Folders are created up front, in order, since their files need their IDs.
+    addUploads(directory, "", parentId, progress, transfers);
+    runAll(transfers);
+    return progress;
+  }
+
+  /**
+   * Downloads Drive files by ID into {@code directory}, under their titles.
+   *
+   * @return the final progress, which counts the files that failed
+   */
+  public Progress download(List<String> fileIds, java.io.File directory) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create " + directory);
+    }
+    synchronized (downloadTargets) {
+      downloadTargets.clear();
+    }
+    Progress progress = new Progress();
+    progress.filesTotal.set(fileIds.size());
+    List<Callable<Void>> transfers = new ArrayList<Callable<Void>>();
+    for (String fileId : fileIds) {
+      transfers.add(new Download(fileId, directory, progress));
+    }
+    runAll(transfers);
+    return progress;
+  }
+
+  /** Closes the journal. */
+  public void close() throws IOException {
+    journal.close();
+  }
+
+  private void addUploads(java.io.File directory, String path, String folderId,
+      Progress progress, List<Callable<Void>> transfers) throws IOException {
+    java.io.File[] children = directory.listFiles();
+    if (children == null) {
+      throw new IOException("Unable to list " + directory);
+    }
+    for (java.io.File child : children) {
+      String childPath = path + child.getName();
+      if (child.isDirectory()) {
+        addUploads(child, childPath + "/", createFolder(child.getName(), folderId), progress,
+            transfers);
+      } else {
+        progress.filesTotal.incrementAndGet();
+        progress.bytesTotal.addAndGet(child.length());
+        transfers.add(new Upload(child, childPath, folderId, progress));
+      }
+    }
+  }
+
+  private String createFolder(String name, String parentId) throws IOException {
+    String key = "folder:" + parentId + "/" + name;
+    String folderId = journal.get(key);
+    if (folderId == null) {
+      File folder = new File()
+          .setTitle(name)
+          .setMimeType(FOLDER_MIME_TYPE)
+          .setParents(Collections.singletonList(new ParentReference().setId(parentId)));
+      folderId = drive.files().insert(folder).execute().getId();
+      journal.put(key, folderId);
+    }
+    return folderId;
+  }
+
+  /** Runs the transfers on a bounded pool and waits for all of them. */
+  private void runAll(List<Callable<Void>> transfers) throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (Callable<Void> transfer : transfers) {
+        futures.add(executor.submit(transfer));
+      }
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          // Transfers report their own failures to the listener, so this is a bug.
+          throw new IOException("Transfer failed unexpectedly", e.getCause());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while transferring");
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Returns the file to save a download to: the title made safe as a file name, or with the file
+   * ID added if that is taken by a local file or another download.
+   */
+  private java.io.File claimDownloadTarget(java.io.File directory, String title, String fileId) {
+    String name = toFileName(title);
+    java.io.File target = new java.io.File(directory, name);
+    synchronized (downloadTargets) {
+      if (target.exists() || downloadTargets.contains(target)) {
+        int dot = name.lastIndexOf('.');
+        if (dot <= 0) {
+          dot = name.length();
+        }
+        target = new java.io.File(directory,
+            name.substring(0, dot) + " (" + fileId + ")" + name.substring(dot));
+      }
+      downloadTargets.add(target);
+    }
+    return target;
+  }
+
+  /**
+   * Replaces path separators and other characters that are unsafe in file names, so that a title
+   * cannot name a file outside the download directory.
+   */
+  static String toFileName(String title) {
+    StringBuilder name = new StringBuilder(title == null ? "" : title);
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if (c < ' ' || UNSAFE_FILE_NAME_CHARACTERS.indexOf(c) != -1) {
+        name.setCharAt(i, '_');
+      }
+    }
+    String result = name.toString().trim();
+    if (result.isEmpty() || result.equals(".") || result.equals("..")) {
+      return "_" + result;
+    }
+    return result;
+  }
+
+  private void completed(String name, Progress progress) {
+    progress.filesCompleted.incrementAndGet();
+    listener.fileCompleted(name);
+    listener.progressChanged(progress);
+  }
+
+  private void failed(String name, IOException e, Progress progress) {
+    progress.filesFailed.incrementAndGet();
+    listener.fileFailed(name, e);
+    listener.progressChanged(progress);
+  }
+
+  private class Upload implements Callable<Void>, MediaHttpUploaderProgressListener {
+
+    private final java.io.File file;
+    private final String path;
+    private final String folderId;
+    private final Progress progress;
+    private long bytesReported;
+
+    Upload(java.io.File file, String path, String folderId, Progress progress) {
+      this.file = file;
+      this.path = path;
+      this.folderId = folderId;
+      this.progress = progress;
+    }
+
+    @Override
+    public Void call() {
+      // A file that has changed since it was uploaded is uploaded again.
+      String key = "upload:" + folderId + "/" + file.getName() + ":" + file.length() + ":"
+          + file.lastModified();
+      try {
+        if (journal.get(key) == null) {
+          String contentType = URLConnection.guessContentTypeFromName(file.getName());
+          File metadata = new File()
+              .setTitle(file.getName())
+              .setParents(Collections.singletonList(new ParentReference().setId(folderId)));
+          Drive.Files.Insert insert = drive.files().insert(metadata,
+              new FileContent(contentType == null ? "application/octet-stream" : contentType,
+                  file));
+          insert.getMediaHttpUploader().setProgressListener(this);
+          journal.put(key, insert.execute().getId());
+        }
+        report(file.length());
+        completed(path, progress);
+      } catch (IOException e) {
+        // Take back the progress of the failed attempt.
+        report(0);
+        failed(path, e, progress);
+      }
+      return null;
+    }
+
+    @Override
+    public void progressChanged(MediaHttpUploader uploader) {
+      if (uploader.getUploadState() == MediaHttpUploader.UploadState.MEDIA_IN_PROGRESS) {
+        report(uploader.getNumBytesUploaded());
+        listener.progressChanged(progress);
+      }
+    }
+
+    private void report(long bytes) {
+      progress.bytesTransferred.addAndGet(bytes - bytesReported);
+      bytesReported = bytes;
+    }
+  }
+
+  private class Download implements Callable<Void>, MediaHttpDownloaderProgressListener {
+
+    private final String fileId;
+    private final java.io.File directory;
+    private final Progress progress;
+    private long bytesReported;
+
+    Download(String fileId, java.io.File directory, Progress progress) {
+      this.fileId = fileId;
+      this.directory = directory;
+      this.progress = progress;
+    }
+
+    @Override
+    public Void call() {
+      String key = "download:" + fileId;
+      try {
+        File file = drive.files().get(fileId).execute();
+        if (file.getFileSize() != null) {
+          progress.bytesTotal.addAndGet(file.getFileSize());
+        }
+        if (journal.get(key) == null) {
+          if (file.getDownloadUrl() == null) {
+            throw new IOException("File " + fileId + " has no content to download");
+          }
+          // File IDs are safe in file names, and unlike titles they are unique.
+          java.io.File part = new java.io.File(directory, fileId + PART_SUFFIX);
+          // Pick up from whatever a previous attempt left behind.
+          long existing = part.length();
+          report(existing);
+          if (file.getFileSize() == null || existing < file.getFileSize()) {
+            MediaHttpDownloader downloader = new MediaHttpDownloader(
+                drive.getRequestFactory().getTransport(),
+                drive.getRequestFactory().getInitializer());
+            downloader.setBytesDownloaded(existing);
+            downloader.setProgressListener(this);
+            OutputStream out = new FileOutputStream(part, true);
+            try {
+              downloader.download(new GenericUrl(file.getDownloadUrl()), out);
+            } finally {
+              out.close();
+            }
+          }
+          java.io.File target = claimDownloadTarget(directory, file.getTitle(), fileId);
+          if (!part.renameTo(target)) {
+            throw new IOException("Unable to rename " + part + " to " + target);
+          }
+          journal.put(key, target.getPath());
+        } else if (file.getFileSize() != null) {
+          report(file.getFileSize());
+        }
+        completed(fileId, progress);
+      } catch (IOException e) {
+        failed(fileId, e, progress);
+      }
+      return null;
+    }
+
+    @Override
+    public void progressChanged(MediaHttpDownloader downloader) {
+      report(downloader.getNumBytesDownloaded());
+      listener.progressChanged(progress);
+    }
+
+    private void report(long bytes) {
+      progress.bytesTransferred.addAndGet(bytes - bytesReported);
+      bytesReported = bytes;
+    }
+  }
+
+  /**
+   * An append-only record of finished work, as tab-separated key and value lines. A line cut short
+   * by a crash is removed when the journal is opened, so that the next record starts on a line of
+   * its own.
+   */
+  private static class Journal {
+
+    private final Map<String, String> entries = new HashMap<String, String>();
+    private final Writer writer;
+
+    Journal(java.io.File file) throws IOException {
+      if (file.exists()) {
+        truncatePartialLine(file);
+        BufferedReader reader =
+            new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+          String line;
+          while ((line = reader.readLine()) != null) {
+            int tab = line.indexOf('\t');
+            if (tab != -1 && line.endsWith("\t.")) {
+              entries.put(line.substring(0, tab), line.substring(tab + 1, line.length() - 2));
+            }
+          }
+        } finally {
+          reader.close();
+        }
+      }
+      writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+    }
+
+    /** Cuts off whatever follows the last newline of the file. */
+    private static void truncatePartialLine(java.io.File file) throws IOException {
+      RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+      try {
+        long length = randomAccessFile.length();
+        long end = length;
+        while (end > 0) {
+          randomAccessFile.seek(end - 1);
+          if (randomAccessFile.read() == '\n') {
+            break;
+          }
+          end--;
+        }
+        if (end < length) {
+          randomAccessFile.setLength(end);
+        }
+      } finally {
+        randomAccessFile.close();
+      }
+    }
+
+    synchronized String get(String key) {
+      return entries.get(key);
+    }
+
+    synchronized void put(String key, String value) throws IOException {
+      // The trailing "." marks the line as complete.
+      writer.write(key + "\t" + value + "\t.\n");
+      writer.flush();
+      entries.put(key, value);
+    }
+
+    synchronized void close() throws IOException {
+      writer.close();
+    }
+  }
+}
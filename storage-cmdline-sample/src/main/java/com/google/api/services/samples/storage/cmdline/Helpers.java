@@ -14,7 +14,19 @@
 
 package com.google.api.services.samples.storage.cmdline;
 
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.primitives.Ints;
+
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Random;
 
 
@@ -28,18 +40,29 @@ public class Helpers {
    *
    * <p>Using a buffer instead of just filling from java.util.Random because the latter causes
    * noticeable lag in stream reading, which detracts from upload speed. This class takes all that
-   * cost in the constructor.
+   * cost in the constructor, and reads copy whole runs of the block with
+   * {@link System#arraycopy}, so it can be used as a load generator for throughput measurements.
+   *
+   * <p>The content is determined by the size, block size and seed, so its md5 and crc32c are
+   * known without reading the stream; see {@link #getMd5Hash()} and {@link #getCrc32c()}. It can
+   * be read either as an {@link InputStream} or as a {@link ReadableByteChannel}.
    */
-  public static class RandomDataBlockInputStream extends InputStream {
+  public static class RandomDataBlockInputStream extends InputStream
+      implements ReadableByteChannel {
 
-    private long byteCountRemaining;
+    private final long size;
     private final byte[] buffer;
+    private long position;
+    private boolean open = true;
 
     public RandomDataBlockInputStream(long size, int blockSize) {
-      byteCountRemaining = size;
-      final Random random = new Random();
+      this(size, blockSize, new Random().nextLong());
+    }
+
+    public RandomDataBlockInputStream(long size, int blockSize, long seed) {
+      this.size = size;
       buffer = new byte[blockSize];
-      random.nextBytes(buffer);
+      new Random(seed).nextBytes(buffer);
     }
 
     /*
@@ -65,16 +88,84 @@ public class Helpers {
         throw new IndexOutOfBoundsException();
       } else if (len == 0) {
         return 0;
-      } else if (byteCountRemaining == 0) {
+      } else if (position == size) {
         return -1;
       }
-      int actualLen = len > byteCountRemaining ? (int) byteCountRemaining : len;
-      for (int i = off; i < actualLen; i++) {
-        b[i] = buffer[i % buffer.length];
+      int actualLen = (int) Math.min(len, size - position);
+      int blockOffset = (int) (position % buffer.length);
+      for (int copied = 0; copied < actualLen;) {
+        int run = Math.min(actualLen - copied, buffer.length - blockOffset);
+        System.arraycopy(buffer, blockOffset, b, off + copied, run);
+        copied += run;
+        blockOffset = 0;
       }
-      byteCountRemaining -= actualLen;
+      position += actualLen;
       return actualLen;
     }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.nio.channels.ReadableByteChannel#read(java.nio.ByteBuffer)
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+      if (!open) {
+        throw new ClosedChannelException();
+      } else if (position == size) {
+        return -1;
+      }
+      int actualLen = (int) Math.min(dst.remaining(), size - position);
+      int blockOffset = (int) (position % buffer.length);
+      for (int copied = 0; copied < actualLen;) {
+        int run = Math.min(actualLen - copied, buffer.length - blockOffset);
+        dst.put(buffer, blockOffset, run);
+        copied += run;
+        blockOffset = 0;
+      }
+      position += actualLen;
+      return actualLen;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(Integer.MAX_VALUE, size - position);
+    }
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public void close() {
+      open = false;
+    }
+
+    /**
+     * Returns the base64-encoded md5 of the whole stream, in the form of
+     * {@link StorageObject#getMd5Hash()}. Computed from the block alone; does not read the stream.
+     */
+    public String getMd5Hash() {
+      return BaseEncoding.base64().encode(hashContent(Hashing.md5()).asBytes());
+    }
+
+    /**
+     * Returns the base64-encoded crc32c of the whole stream, in the form of
+     * {@link StorageObject#getCrc32c()}. Computed from the block alone; does not read the stream.
+     */
+    public String getCrc32c() {
+      // Big-endian, like the service; HashCode.asBytes() would be little-endian.
+      return BaseEncoding.base64().encode(Ints.toByteArray(hashContent(Hashing.crc32c()).asInt()));
+    }
+
+    private HashCode hashContent(HashFunction hashFunction) {
+      Hasher hasher = hashFunction.newHasher();
+      for (long remaining = size; remaining > 0; remaining -= buffer.length) {
+        hasher.putBytes(buffer, 0, (int) Math.min(remaining, buffer.length));
+      }
+      return hasher.hash();
+    }
   }
   
 }
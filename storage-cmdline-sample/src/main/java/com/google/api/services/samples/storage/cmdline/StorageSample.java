@@ -27,23 +27,22 @@ import com.google.api.services.samples.storage.examples.BucketsInsertExample;
 import com.google.api.services.samples.storage.examples.ObjectsDownloadExample;
 import com.google.api.services.samples.storage.examples.ObjectsGetMetadataExample;
 import com.google.api.services.samples.storage.examples.ObjectsListExample;
+import com.google.api.services.samples.storage.examples.ObjectsParallelDownloadExample;
+import com.google.api.services.samples.storage.examples.ObjectsSyncExample;
 import com.google.api.services.samples.storage.examples.ObjectsUploadExample;
 import com.google.api.services.samples.storage.util.CredentialsProvider;
+import com.google.api.services.samples.storage.util.ObjectIntegrityException;
+import com.google.api.services.samples.storage.util.VerifyingOutputStream;
 import com.google.api.services.storage.Storage;
 import com.google.api.services.storage.model.Bucket;
 import com.google.api.services.storage.model.StorageObject;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.hash.Hashing;
-import com.google.common.hash.HashingOutputStream;
 import com.google.common.io.BaseEncoding;
-import com.google.common.primitives.Ints;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.security.DigestOutputStream;
-import java.security.MessageDigest;
 
 
 /**
@@ -67,6 +66,18 @@ public class StorageSample {
       Storage storage = new Storage.Builder(httpTransport, jsonFactory, credential)
           .setApplicationName(APPLICATION_NAME).build();
 
+      // sync <directory> [--delete]: objects with no local file are only deleted with --delete.
+      if ((args.length == 2 || args.length == 3 && args[2].equals("--delete"))
+          && args[0].equals("sync")) {
+        boolean delete = args.length == 3;
+        View.header1("Syncing " + args[1] + " to gs://" + settings.getBucket() + "/"
+            + ObjectsSyncExample.toFolder(settings.getPrefix())
+            + (delete ? ", deleting objects with no local file" : ""));
+        System.out.println(ObjectsSyncExample.sync(storage, new File(args[1]),
+            settings.getBucket(), settings.getPrefix(), delete));
+        return;
+      }
+
       //
       // run commands
       //
@@ -89,7 +100,8 @@ public class StorageSample {
 
       View.header1("Uploading object.");
       final long objectSize = 100 * 1000 * 1000 /* 100 MB */;
-      InputStream data = new Helpers.RandomDataBlockInputStream(objectSize, 1024);
+      Helpers.RandomDataBlockInputStream data =
+          new Helpers.RandomDataBlockInputStream(objectSize, 1024);
       object = new StorageObject()
           .setBucket(settings.getBucket())
           .setName(settings.getPrefix() + "myobject")
@@ -98,36 +110,42 @@ public class StorageSample {
           .setContentDisposition("attachment");
       object = ObjectsUploadExample.uploadWithMetadata(storage, object, data);
       View.show(object);
-      System.out.println("md5Hash: " + object.getMd5Hash());
+      System.out.println("md5Hash: " + object.getMd5Hash() + " "
+          + (object.getMd5Hash().equals(data.getMd5Hash())
+          ? "(MATCHES)" : "(MISMATCHES; data altered in transit)"));
       System.out.println("crc32c: " + object.getCrc32c() + ", decoded to " + 
-          ByteBuffer.wrap(BaseEncoding.base64().decode(object.getCrc32c())).getInt());
+          ByteBuffer.wrap(BaseEncoding.base64().decode(object.getCrc32c())).getInt() + " "
+          + (object.getCrc32c().equals(data.getCrc32c())
+          ? "(MATCHES)" : "(MISMATCHES; data altered in transit)"));
 
       View.header1("Getting object data of uploaded object, calculate hashes/crcs.");
-      OutputStream nullOutputStream = new OutputStream() {
-        // Throws away the bytes.
-        @Override public void write(int b) throws IOException {}
-        @Override public void write(byte b[], int off, int len) {}
-      };
-      DigestOutputStream md5DigestOutputStream = new DigestOutputStream(
-          nullOutputStream, MessageDigest.getInstance("MD5"));
-      HashingOutputStream crc32cHashingOutputStream = new HashingOutputStream(Hashing.crc32c(),
-          md5DigestOutputStream);
+      VerifyingOutputStream verifyingOutputStream = new VerifyingOutputStream(object, null);
       ObjectsDownloadExample.downloadToOutputStream(storage, settings.getBucket(),
-          settings.getPrefix() + "myobject", crc32cHashingOutputStream);
-      String calculatedMD5 = BaseEncoding.base64().encode(
-          md5DigestOutputStream.getMessageDigest().digest());
-      System.out.println("md5Hash: " + calculatedMD5 + " "
-          + (object.getMd5Hash().equals(calculatedMD5)
+          settings.getPrefix() + "myobject", verifyingOutputStream);
+      try {
+        verifyingOutputStream.close();
+      } catch (ObjectIntegrityException e) {
+        // Only the first mismatch is thrown; the hashes are compared one by one below.
+        if ("size".equals(e.getProperty())) {
+          System.out.println("size: " + e.getActual() + " (MISMATCHES; data altered in transit)");
+        }
+      }
+      System.out.println("md5Hash: " + verifyingOutputStream.getMd5Hash() + " "
+          + (verifyingOutputStream.getMd5Hash().equals(object.getMd5Hash())
           ? "(MATCHES)" : "(MISMATCHES; data altered in transit)"));
-      int calculatedCrc32c = crc32cHashingOutputStream.hash().asInt();
-      String calculatedEncodedCrc32c = BaseEncoding.base64().encode(
-          Ints.toByteArray(calculatedCrc32c));
-      // NOTE: Don't compare HashCode.asBytes() directly, as that encodes the crc32c in
-      // little-endien. One would have to reverse the bytes first.
-      System.out.println("crc32c: " + calculatedEncodedCrc32c + ", decoded to "
-          + crc32cHashingOutputStream.hash().asInt() + " "
-          + (object.getCrc32c().equals(calculatedEncodedCrc32c)
+      System.out.println("crc32c: " + verifyingOutputStream.getCrc32c() + " "
+          + (verifyingOutputStream.getCrc32c().equals(object.getCrc32c())
           ? "(MATCHES)" : "(MISMATCHES; data altered in transit)"));
+
+      View.header1("Getting object data of uploaded object in parallel ranges.");
+      File downloadFile = File.createTempFile("storagesample", null);
+      downloadFile.deleteOnExit();
+      long start = System.currentTimeMillis();
+      // Throws if the md5/crc32c of the downloaded file do not match.
+      ObjectsParallelDownloadExample.downloadToFile(storage, settings.getBucket(),
+          settings.getPrefix() + "myobject", downloadFile);
+      System.out.println("Downloaded and verified " + downloadFile.length() + " bytes in "
+          + (System.currentTimeMillis() - start) + " ms");
       
       // success!
       return;
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.google.api.services.samples.storage.cmdline;
+
+import com.google.api.services.samples.storage.util.VerifyingOutputStream;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.BaseEncoding;
+import com.google.common.primitives.Ints;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Compares the throughput of {@link VerifyingOutputStream} with the chained
+ * {@link DigestOutputStream} and {@link HashingOutputStream} that StorageSample used before.
+ *
+ * <p>Both sinks are fed the same in-memory data through {@link Helpers.RandomDataBlockInputStream},
+ * so no network is involved. Run with {@code mvn -q exec:java
+ * -Dexec.mainClass=com.google.api.services.samples.storage.cmdline.VerifyingOutputStreamBenchmark}.
+ */
+public class VerifyingOutputStreamBenchmark {
+
+  private static final long SIZE = 256 * 1024 * 1024;
+  private static final int BLOCK_SIZE = 1024 * 1024;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int WARMUP_ITERATIONS = 3;
+  private static final int ITERATIONS = 5;
+  private static final long SEED = 42;
+
+  public static void main(String[] args) throws Exception {
+    Helpers.RandomDataBlockInputStream data =
+        new Helpers.RandomDataBlockInputStream(SIZE, BLOCK_SIZE, SEED);
+    StorageObject object = new StorageObject()
+        .setName("benchmark")
+        .setSize(BigInteger.valueOf(SIZE))
+        .setMd5Hash(data.getMd5Hash())
+        .setCrc32c(data.getCrc32c());
+
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      runChained(object);
+      runSinglePass(object);
+    }
+    long chainedNanos = 0;
+    long singlePassNanos = 0;
+    for (int i = 0; i < ITERATIONS; i++) {
+      chainedNanos += runChained(object);
+      singlePassNanos += runSinglePass(object);
+    }
+    System.out.println("chained DigestOutputStream + HashingOutputStream: "
+        + megabytesPerSecond(chainedNanos) + " MB/s");
+    System.out.println("single-pass VerifyingOutputStream: "
+        + megabytesPerSecond(singlePassNanos) + " MB/s");
+  }
+
+  /** Verifies the data the way StorageSample used to, returning the elapsed nanoseconds. */
+  private static long runChained(StorageObject object) throws Exception {
+    long start = System.nanoTime();
+    OutputStream nullOutputStream = new OutputStream() {
+      // Throws away the bytes.
+      @Override public void write(int b) throws IOException {}
+      @Override public void write(byte b[], int off, int len) {}
+    };
+    DigestOutputStream md5DigestOutputStream = new DigestOutputStream(
+        nullOutputStream, MessageDigest.getInstance("MD5"));
+    HashingOutputStream crc32cHashingOutputStream = new HashingOutputStream(Hashing.crc32c(),
+        md5DigestOutputStream);
+    copy(newData(), crc32cHashingOutputStream);
+    String md5Hash = BaseEncoding.base64().encode(
+        md5DigestOutputStream.getMessageDigest().digest());
+    String crc32c = BaseEncoding.base64().encode(
+        Ints.toByteArray(crc32cHashingOutputStream.hash().asInt()));
+    if (!md5Hash.equals(object.getMd5Hash()) || !crc32c.equals(object.getCrc32c())) {
+      throw new AssertionError("chained hashes do not match");
+    }
+    return System.nanoTime() - start;
+  }
+
+  /** Verifies the data with {@link VerifyingOutputStream}, returning the elapsed nanoseconds. */
+  private static long runSinglePass(StorageObject object) throws IOException {
+    long start = System.nanoTime();
+    VerifyingOutputStream verifyingOutputStream = new VerifyingOutputStream(object, null);
+    copy(newData(), verifyingOutputStream);
+    verifyingOutputStream.close();
+    return System.nanoTime() - start;
+  }
+
+  private static InputStream newData() {
+    return new Helpers.RandomDataBlockInputStream(SIZE, BLOCK_SIZE, SEED);
+  }
+
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int read;
+    while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+      out.write(buffer, 0, read);
+    }
+  }
+
+  private static long megabytesPerSecond(long nanos) {
+    return SIZE * ITERATIONS * 1000L / nanos;
+  }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.storage.examples;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.samples.storage.util.CredentialsProvider;
+import com.google.api.services.samples.storage.util.ObjectIntegrityException;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.ComposeRequest;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Ints;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Example of a parallel composite upload: a local file is sliced into parts that are uploaded
+ * concurrently as temporary objects, composed into the final object, and then deleted.
+ */
+public class ObjectsCompositeUploadExample {
+
+  private static final String BUCKET_NAME = "*** bucket name ***";
+  private static final String OBJECT_NAME = "*** object name ***";
+  private static final String FILE_NAME = "*** upload file name ***";
+
+  /** Default number of parts, and so of concurrent uploads. */
+  public static final int DEFAULT_PART_COUNT = 8;
+
+  /** The most source objects a single compose request accepts. */
+  public static final int MAX_PART_COUNT = 32;
+
+  /** How long to let part uploads already under way finish once interrupted, before cleanup. */
+  private static final long INTERRUPTED_UPLOADS_WAIT_SECONDS = 60;
+
+  public static StorageObject uploadComposite(Storage storage, StorageObject object, File data)
+      throws IOException {
+    return uploadComposite(storage, object, data, DEFAULT_PART_COUNT);
+  }
+
+  /**
+   * Uploads {@code data} as {@code partCount} concurrent part uploads composed into
+   * {@code object}. Each part's crc32c is computed while it is streamed and checked against the
+   * crc32c the service reports for it before composing.
+   *
+   * <p>Composite objects have a crc32c but no md5Hash.
+   *
+   * <p>The parts are deleted whether or not the upload succeeds. If the calling thread is
+   * interrupted, the parts already being sent are given time to finish, and then every part found
+   * under the upload's part prefix is deleted, including ones not yet seen by this thread.
+   *
+   * @return the metadata of the composed object
+   */
+  public static StorageObject uploadComposite(Storage storage, StorageObject object, File data,
+      int partCount) throws IOException {
+    if (partCount <= 0 || partCount > MAX_PART_COUNT) {
+      throw new IllegalArgumentException("partCount must be between 1 and " + MAX_PART_COUNT);
+    }
+    long size = data.length();
+    // Don't create more (empty) parts than there are bytes.
+    partCount = (int) Math.max(1, Math.min(partCount, size));
+    long partSize = (size + partCount - 1) / partCount;
+    String partPrefix = object.getName() + ".part-" + UUID.randomUUID() + "-";
+
+    ExecutorService executor = Executors.newFixedThreadPool(partCount);
+    List<StorageObject> parts = Lists.newArrayList();
+    boolean interrupted = false;
+    try {
+      List<Future<StorageObject>> uploads = Lists.newArrayList();
+      for (int i = 0; i < partCount; i++) {
+        long offset = i * partSize;
+        StorageObject part = new StorageObject()
+            .setBucket(object.getBucket())
+            .setName(partPrefix + i)
+            .setContentType(object.getContentType());
+        uploads.add(executor.submit(new PartUpload(storage, part, data, offset,
+            Math.min(partSize, size - offset))));
+      }
+      IOException failure = null;
+      for (Future<StorageObject> upload : uploads) {
+        try {
+          parts.add(upload.get());
+        } catch (InterruptedException e) {
+          // The interrupt is restored once the parts are cleaned up.
+          interrupted = true;
+          throw new InterruptedIOException("Interrupted while uploading parts");
+        } catch (ExecutionException e) {
+          // Keep collecting, so that every part that did make it gets cleaned up.
+          if (failure == null) {
+            failure = e.getCause() instanceof IOException
+                ? (IOException) e.getCause()
+                : new IOException("Part upload failed", e.getCause());
+          }
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      return compose(storage, object, parts);
+    } finally {
+      executor.shutdownNow();
+      if (interrupted) {
+        deleteAllParts(storage, object.getBucket(), partPrefix, executor);
+        Thread.currentThread().interrupt();
+      } else {
+        deleteParts(storage, parts);
+      }
+    }
+  }
+
+  private static StorageObject compose(Storage storage, StorageObject object,
+      List<StorageObject> parts) throws IOException {
+    List<ComposeRequest.SourceObjects> sources = Lists.newArrayList();
+    for (StorageObject part : parts) {
+      // Pin each generation, so a concurrent overwrite of a part cannot slip into the result.
+      sources.add(new ComposeRequest.SourceObjects()
+          .setName(part.getName())
+          .setGeneration(part.getGeneration())
+          .setObjectPreconditions(new ComposeRequest.SourceObjects.ObjectPreconditions()
+              .setIfGenerationMatch(part.getGeneration())));
+    }
+    StorageObject destination = object.clone();
+    if (destination.getContentType() == null) {
+      destination.setContentType("application/octet-stream");
+    }
+    ComposeRequest composeRequest = new ComposeRequest()
+        .setSourceObjects(sources)
+        .setDestination(destination);
+    return storage.objects().compose(object.getBucket(), object.getName(), composeRequest)
+        .execute();
+  }
+
+  /**
+   * Deletes every part under {@code partPrefix}, once the uploads still running on
+   * {@code executor} have finished. An upload already sending is not stopped by an interrupt, so
+   * the parts it creates could otherwise be missed.
+   */
+  private static void deleteAllParts(Storage storage, String bucketName, String partPrefix,
+      ExecutorService executor) {
+    try {
+      if (!executor.awaitTermination(INTERRUPTED_UPLOADS_WAIT_SECONDS, TimeUnit.SECONDS)) {
+        System.err.println("Parts still uploading; some may be left under " + partPrefix);
+      }
+    } catch (InterruptedException e) {
+      // Interrupted again; delete the parts that are there now.
+    }
+    List<StorageObject> parts = Lists.newArrayList();
+    try {
+      for (StorageObject part
+          : ObjectsListExample.list(storage, bucketName, partPrefix, "bucket,name", null)) {
+        parts.add(part);
+      }
+    } catch (IOException e) {
+      System.err.println("Unable to list temporary parts " + partPrefix + "*: " + e.getMessage());
+    } catch (RuntimeException e) {
+      System.err.println("Unable to list temporary parts " + partPrefix + "*: " + e.getMessage());
+    }
+    deleteParts(storage, parts);
+  }
+
+  private static void deleteParts(Storage storage, List<StorageObject> parts) {
+    for (StorageObject part : parts) {
+      try {
+        storage.objects().delete(part.getBucket(), part.getName()).execute();
+      } catch (IOException e) {
+        // Best effort; a leftover part does not affect the composed object.
+        System.err.println("Unable to delete temporary part " + part.getName() + ": "
+            + e.getMessage());
+      }
+    }
+  }
+
+  /** Uploads {@code length} bytes of a file starting at {@code offset} as one part. */
+  private static class PartUpload implements Callable<StorageObject> {
+
+    private final Storage storage;
+    private final StorageObject part;
+    private final File data;
+    private final long offset;
+    private final long length;
+
+    PartUpload(Storage storage, StorageObject part, File data, long offset, long length) {
+      this.storage = storage;
+      this.part = part;
+      this.data = data;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    @Override
+    public StorageObject call() throws IOException {
+      FileInputStream in = new FileInputStream(data);
+      try {
+        in.getChannel().position(offset);
+        HashingInputStream crc32cIn =
+            new HashingInputStream(Hashing.crc32c(), ByteStreams.limit(in, length));
+        StorageObject uploaded =
+            ObjectsUploadExample.uploadWithMetadata(storage, part, crc32cIn, length);
+        // As in StorageSample, compare the big-endian encoding rather than HashCode.asBytes().
+        String calculatedCrc32c =
+            BaseEncoding.base64().encode(Ints.toByteArray(crc32cIn.hash().asInt()));
+        if (!calculatedCrc32c.equals(uploaded.getCrc32c())) {
+          throw new ObjectIntegrityException(uploaded.getName(), "crc32c", uploaded.getCrc32c(),
+              calculatedCrc32c);
+        }
+        return uploaded;
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+    JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+    Credential credential = CredentialsProvider.authorize(httpTransport, jsonFactory);
+    Storage storage = new Storage.Builder(httpTransport, jsonFactory, credential)
+        .setApplicationName("Google-ObjectsCompositeUploadExample/1.0").build();
+    long start = System.currentTimeMillis();
+    StorageObject object = uploadComposite(storage,
+        new StorageObject().setBucket(BUCKET_NAME).setName(OBJECT_NAME), new File(FILE_NAME));
+    System.out.println(object.getName() + " (size: " + object.getSize() + ") uploaded in "
+        + (System.currentTimeMillis() - start) + " ms");
+  }
+}
@@ -53,7 +53,7 @@ public class ObjectsDownloadExample {
   /**
    * This shows how to download a portion of an object. Especially useful for
    * resuming after a download fails, but can also be used to download in
-   * parallel.
+   * parallel; see {@link ObjectsParallelDownloadExample}.
    */
   public static void downloadRangeToOutputStream(Storage storage, String bucketName,
       String objectName, long firstBytePos, long lastBytePos, OutputStream data)
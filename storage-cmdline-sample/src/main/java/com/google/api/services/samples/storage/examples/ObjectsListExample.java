@@ -23,11 +23,16 @@ import com.google.api.services.samples.storage.util.CredentialsProvider;
 import com.google.api.services.storage.Storage;
 import com.google.api.services.storage.model.Objects;
 import com.google.api.services.storage.model.StorageObject;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Lists;
+import com.google.common.collect.AbstractIterator;
 
 import java.io.IOException;
-import java.util.List;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /** Example of listing objects in a GCS bucket. */
@@ -37,15 +42,135 @@ public class ObjectsListExample {
   
   public static Iterable<StorageObject> list(Storage storage, String bucketName)
       throws IOException {
-    List<List<StorageObject>> pagedList = Lists.newArrayList();
-    Storage.Objects.List listObjects = storage.objects().list(bucketName);
-    Objects objects;
-    do {
-      objects = listObjects.execute();
-      pagedList.add(objects.getItems());
-      listObjects.setPageToken(objects.getNextPageToken());
-    } while (objects.getNextPageToken() != null);
-    return Iterables.concat(pagedList);
+    return list(storage, bucketName, null, null, null);
+  }
+
+  /**
+   * Lists the objects in a bucket lazily: a page is only fetched once the previous one has been
+   * used up, so at most two pages are held in memory however large the bucket is.
+   *
+   * <p>The first page is fetched before returning, so that errors such as a missing bucket surface
+   * here as an {@link IOException}. Failures fetching later pages are thrown from the iterator as
+   * a {@link RuntimeException} wrapping the {@link IOException}. The first call to
+   * {@link Iterable#iterator()} starts from that page and releases it; each later call lists the
+   * bucket again from the start.
+   *
+   * @param prefix only list objects whose names start with this, or {@code null} for all
+   * @param itemFields the fields to request for each object (for example {@code "name,size"}) to
+   *     cut down the size of each page, or {@code null} for all fields
+   * @param prefetchExecutor if not {@code null}, used to fetch page N+1 in the background while
+   *     page N is being consumed
+   */
+  public static Iterable<StorageObject> list(Storage storage, String bucketName, String prefix,
+      String itemFields, ExecutorService prefetchExecutor) throws IOException {
+    // nextPageToken must always be requested, or paging would silently stop after one page.
+    String fields = itemFields == null ? null : "nextPageToken,items(" + itemFields + ")";
+    return new ObjectPages(storage, bucketName, prefix, fields, prefetchExecutor,
+        fetchPage(storage, bucketName, prefix, fields, null));
+  }
+
+  private static Objects fetchPage(Storage storage, String bucketName, String prefix,
+      String fields, String pageToken) throws IOException {
+    return storage.objects().list(bucketName)
+        .setPrefix(prefix)
+        .setFields(fields)
+        .setPageToken(pageToken)
+        .execute();
+  }
+
+  /** Lazily paged view of the objects in a bucket. */
+  private static class ObjectPages implements Iterable<StorageObject> {
+
+    private final Storage storage;
+    private final String bucketName;
+    private final String prefix;
+    private final String fields;
+    private final ExecutorService prefetchExecutor;
+
+    /** The page fetched by {@link #list}, until the first iterator takes it. */
+    private Objects firstPage;
+
+    ObjectPages(Storage storage, String bucketName, String prefix, String fields,
+        ExecutorService prefetchExecutor, Objects firstPage) {
+      this.storage = storage;
+      this.bucketName = bucketName;
+      this.prefix = prefix;
+      this.fields = fields;
+      this.prefetchExecutor = prefetchExecutor;
+      this.firstPage = firstPage;
+    }
+
+    @Override
+    public Iterator<StorageObject> iterator() {
+      return new ObjectIterator(takeFirstPage());
+    }
+
+    /**
+     * Returns the first page to the first caller only, so that it isn't held for as long as this
+     * view is, on top of the pages of the iterators.
+     */
+    private synchronized Objects takeFirstPage() {
+      Objects page = firstPage;
+      firstPage = null;
+      return page;
+    }
+
+    private class ObjectIterator extends AbstractIterator<StorageObject> {
+
+      private Iterator<StorageObject> items;
+      private String nextPageToken;
+      private Future<Objects> prefetchedPage;
+
+      /** @param firstPage the first page, or {@code null} to fetch it again */
+      ObjectIterator(Objects firstPage) {
+        // With no page token and nothing prefetched, nextPage() fetches the first page.
+        startPage(firstPage != null ? firstPage : nextPage());
+      }
+
+      @Override
+      protected StorageObject computeNext() {
+        while (!items.hasNext()) {
+          if (nextPageToken == null) {
+            return endOfData();
+          }
+          startPage(nextPage());
+        }
+        return items.next();
+      }
+
+      private void startPage(Objects page) {
+        // Empty pages (and empty buckets) have no items at all.
+        items = page.getItems() == null
+            ? Collections.<StorageObject>emptyList().iterator() : page.getItems().iterator();
+        nextPageToken = page.getNextPageToken();
+        prefetchedPage = null;
+        if (nextPageToken != null && prefetchExecutor != null) {
+          final String pageToken = nextPageToken;
+          prefetchedPage = prefetchExecutor.submit(new Callable<Objects>() {
+            @Override
+            public Objects call() throws IOException {
+              return fetchPage(storage, bucketName, prefix, fields, pageToken);
+            }
+          });
+        }
+      }
+
+      private Objects nextPage() {
+        try {
+          if (prefetchedPage != null) {
+            return prefetchedPage.get();
+          }
+          return fetchPage(storage, bucketName, prefix, fields, nextPageToken);
+        } catch (IOException e) {
+          throw new RuntimeException("Unable to list objects in " + bucketName, e);
+        } catch (ExecutionException e) {
+          throw new RuntimeException("Unable to list objects in " + bucketName, e.getCause());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException("Interrupted listing objects in " + bucketName, e);
+        }
+      }
+    }
   }
   
   public static void main(String[] args) throws Exception {
@@ -54,8 +179,13 @@ public class ObjectsListExample {
     Credential credential = CredentialsProvider.authorize(httpTransport, jsonFactory);
     Storage storage = new Storage.Builder(httpTransport, jsonFactory, credential)
         .setApplicationName("Google-ObjectsListExample/1.0").build();
-    for (StorageObject object : list(storage, BUCKET_NAME)) {
-      System.out.println(object.getName() + " (size: " + object.getSize() + ")");
+    ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor();
+    try {
+      for (StorageObject object : list(storage, BUCKET_NAME, null, "name,size", prefetchExecutor)) {
+        System.out.println(object.getName() + " (size: " + object.getSize() + ")");
+      }
+    } finally {
+      prefetchExecutor.shutdownNow();
     }
   }
 }
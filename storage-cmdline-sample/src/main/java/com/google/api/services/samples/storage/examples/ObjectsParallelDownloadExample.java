@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.storage.examples;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.samples.storage.util.CredentialsProvider;
+import com.google.api.services.samples.storage.util.ObjectIntegrityException;
+import com.google.api.services.samples.storage.util.VerifyingOutputStream;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Example of downloading a GCS object in parallel, by splitting it into ranged gets that are each
+ * written into their own region of a pre-sized local file.
+ */
+public class ObjectsParallelDownloadExample {
+
+  private static final String BUCKET_NAME = "*** bucket name ***";
+  private static final String OBJECT_NAME = "*** object name ***";
+  private static final String FILE_NAME = "*** download file name ***";
+
+  /** Default size of each ranged get. */
+  public static final long DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+
+  /** Default number of ranged gets in flight at once. */
+  public static final int DEFAULT_PARALLELISM = 8;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  public static StorageObject downloadToFile(Storage storage, String bucketName,
+      String objectName, File file) throws IOException {
+    return downloadToFile(storage, bucketName, objectName, file, DEFAULT_CHUNK_SIZE,
+        DEFAULT_PARALLELISM);
+  }
+
+  /**
+   * Downloads an object into {@code file} using up to {@code parallelism} concurrent ranged gets
+   * of {@code chunkSize} bytes each, then checks the file against the object's md5 and crc32c.
+   *
+   * @return the metadata of the object that was downloaded
+   * @throws IOException if any range fails
+   * @throws ObjectIntegrityException if the downloaded data does not match the object's hashes
+   */
+  public static StorageObject downloadToFile(Storage storage, String bucketName,
+      String objectName, File file, long chunkSize, int parallelism) throws IOException {
+    if (chunkSize <= 0 || parallelism <= 0) {
+      throw new IllegalArgumentException("chunkSize and parallelism must be positive");
+    }
+    StorageObject object = ObjectsGetMetadataExample.get(storage, bucketName, objectName);
+    long size = object.getSize().longValue();
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      randomAccessFile.setLength(size);
+      FileChannel channel = randomAccessFile.getChannel();
+      ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+      try {
+        List<Future<Void>> ranges = Lists.newArrayList();
+        for (long first = 0; first < size; first += chunkSize) {
+          long last = Math.min(first + chunkSize, size) - 1;
+          ranges.add(executor.submit(new RangeDownload(storage, object, first, last, channel)));
+        }
+        for (Future<Void> range : ranges) {
+          await(range);
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+      verify(object, channel);
+    } finally {
+      randomAccessFile.close();
+    }
+    return object;
+  }
+
+  /**
+   * Reads the file back sequentially and compares its md5 and crc32c to the object's. Ranges
+   * complete out of order, so the hashes cannot be computed while downloading.
+   */
+  static void verify(StorageObject object, FileChannel channel) throws IOException {
+    VerifyingOutputStream verifyingOutputStream = new VerifyingOutputStream(object, null);
+    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    long position = 0;
+    int read;
+    while ((read = channel.read(buffer, position)) != -1) {
+      verifyingOutputStream.write(buffer.array(), 0, read);
+      position += read;
+      buffer.clear();
+    }
+    verifyingOutputStream.verify();
+  }
+
+  private static void await(Future<Void> range) throws IOException {
+    try {
+      range.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while downloading");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Ranged download failed", e.getCause());
+    }
+  }
+
+  /** Downloads bytes {@code first} through {@code last} (inclusive) to the same file offsets. */
+  private static class RangeDownload implements Callable<Void> {
+
+    private final Storage storage;
+    private final StorageObject object;
+    private final long first;
+    private final long last;
+    private final FileChannel channel;
+
+    RangeDownload(Storage storage, StorageObject object, long first, long last,
+        FileChannel channel) {
+      this.storage = storage;
+      this.object = object;
+      this.first = first;
+      this.last = last;
+      this.channel = channel;
+    }
+
+    @Override
+    public Void call() throws IOException {
+      Storage.Objects.Get getObject = storage.objects().get(object.getBucket(), object.getName());
+      // Pin the generation so every range comes from the same version of the object.
+      getObject.setGeneration(object.getGeneration());
+      // Set the Range header directly, because MediaHttpDownloader.setContentRange takes an int
+      // last byte position and would overflow on objects over 2 GB.
+      getObject.getRequestHeaders().setRange("bytes=" + first + "-" + last);
+      HttpResponse response = getObject.executeMedia();
+      try {
+        if (first != 0 && response.getStatusCode() != 206) {
+          throw new IOException("Server ignored range request for " + object.getName());
+        }
+        InputStream in = response.getContent();
+        byte[] bytes = new byte[BUFFER_SIZE];
+        long position = first;
+        int read;
+        while (position <= last && (read = in.read(bytes)) != -1) {
+          // A full-object response to a range starting at 0 carries more bytes than we asked for.
+          int length = (int) Math.min(read, last + 1 - position);
+          ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+          while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+          }
+        }
+        if (position != last + 1) {
+          throw new IOException("Expected bytes " + first + "-" + last + " of "
+              + object.getName() + " but only received up to " + (position - 1));
+        }
+      } finally {
+        response.disconnect();
+      }
+      return null;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+    JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+    Credential credential = CredentialsProvider.authorize(httpTransport, jsonFactory);
+    Storage storage = new Storage.Builder(httpTransport, jsonFactory, credential)
+        .setApplicationName("Google-ObjectsParallelDownloadExample/1.0").build();
+    long start = System.currentTimeMillis();
+    StorageObject object = downloadToFile(storage, BUCKET_NAME, OBJECT_NAME, new File(FILE_NAME));
+    System.out.println("Downloaded " + object.getSize() + " bytes in "
+        + (System.currentTimeMillis() - start) + " ms");
+  }
+}
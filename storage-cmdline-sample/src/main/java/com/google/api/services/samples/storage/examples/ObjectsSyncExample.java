@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.google.api.services.samples.storage.examples;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.samples.storage.util.CredentialsProvider;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.Files;
+import com.google.common.primitives.Ints;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Example of mirroring a local directory tree into a GCS bucket: only files that are new or whose
+ * size or crc32c differ are uploaded, and objects with no local counterpart are deleted if asked
+ * to. The objects are kept under a prefix that is treated as a folder, so that a sync only ever
+ * touches the objects below it.
+ */
+public class ObjectsSyncExample {
+
+  private static final String BUCKET_NAME = "*** bucket name ***";
+  private static final String PREFIX = "*** object name prefix, e.g. backup/ ***";
+  private static final String DIRECTORY_NAME = "*** local directory name ***";
+
+  /** Default number of files compared, uploaded or deleted at once. */
+  public static final int DEFAULT_PARALLELISM = 16;
+
+  /** What a sync did, and how fast. */
+  public static class SyncResult {
+
+    private final AtomicLong uploaded = new AtomicLong();
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicLong notDeleted = new AtomicLong();
+    private final AtomicLong unchanged = new AtomicLong();
+    private final AtomicLong bytesUploaded = new AtomicLong();
+    private long elapsedMillis;
+
+    public long getUploaded() {
+      return uploaded.get();
+    }
+
+    public long getDeleted() {
+      return deleted.get();
+    }
+
+    /** Returns the number of objects with no local file that were kept, as deletes were off. */
+    public long getNotDeleted() {
+      return notDeleted.get();
+    }
+
+    public long getUnchanged() {
+      return unchanged.get();
+    }
+
+    public long getBytesUploaded() {
+      return bytesUploaded.get();
+    }
+
+    public long getElapsedMillis() {
+      return elapsedMillis;
+    }
+
+    /** Returns the files uploaded, deleted or found unchanged per second. */
+    public double getFilesPerSecond() {
+      return (getUploaded() + getDeleted() + getUnchanged()) * 1000.0 / Math.max(1, elapsedMillis);
+    }
+
+    /** Returns the megabytes (10^6 bytes) uploaded per second. */
+    public double getMegabytesPerSecond() {
+      return getBytesUploaded() / 1000.0 / Math.max(1, elapsedMillis);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d uploaded (%d bytes), %d deleted, %d unchanged, "
+          + "%d with no local file kept in %d ms: %.1f files/s, %.2f MB/s", getUploaded(),
+          getBytesUploaded(), getDeleted(), getUnchanged(), getNotDeleted(), elapsedMillis,
+          getFilesPerSecond(), getMegabytesPerSecond());
+    }
+  }
+
+  public static SyncResult sync(Storage storage, File directory, String bucketName,
+      String prefix, boolean delete) throws IOException {
+    return sync(storage, directory, bucketName, prefix, delete, DEFAULT_PARALLELISM);
+  }
+
+  /**
+   * Makes the objects under {@code prefix} in {@code bucketName} mirror the files under
+   * {@code directory}. Comparing (which may mean computing a file's crc32c), uploading and
+   * deleting all run on a pool of {@code parallelism} threads.
+   *
+   * @param prefix the folder to sync into; a {@code "/"} is appended if missing, so that
+   *     {@code "backup"} doesn't also match {@code "backup2/a.txt"}
+   * @param delete whether to delete the objects under {@code prefix} that have no local file;
+   *     if not, they are only counted. Requires a non-empty {@code prefix}, so that a sync never
+   *     empties a whole bucket.
+   * @throws IOException the first failure, once every other file has been handled
+   */
+  public static SyncResult sync(Storage storage, File directory, String bucketName,
+      String prefix, boolean delete, int parallelism) throws IOException {
+    if (!directory.isDirectory()) {
+      throw new IllegalArgumentException(directory + " is not a directory");
+    }
+    prefix = toFolder(prefix);
+    if (delete && prefix.isEmpty()) {
+      throw new IllegalArgumentException("Deleting requires a prefix");
+    }
+    long start = System.currentTimeMillis();
+    SyncResult result = new SyncResult();
+
+    // Objects still in this map once every local file has been seen have no local counterpart.
+    Map<String, StorageObject> remoteObjects = Maps.newHashMap();
+    for (StorageObject object
+        : ObjectsListExample.list(storage, bucketName, prefix, "name,size,crc32c", null)) {
+      remoteObjects.put(object.getName(), object);
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      List<Future<Void>> tasks = Lists.newArrayList();
+      List<File> files = Lists.newArrayList();
+      List<String> names = Lists.newArrayList();
+      walk(directory, prefix, files, names);
+      for (int i = 0; i < files.size(); i++) {
+        tasks.add(executor.submit(new SyncFile(storage, bucketName, names.get(i), files.get(i),
+            remoteObjects.remove(names.get(i)), result)));
+      }
+      if (delete) {
+        for (StorageObject object : remoteObjects.values()) {
+          tasks.add(executor.submit(new DeleteObject(storage, bucketName, object, result)));
+        }
+      } else {
+        result.notDeleted.addAndGet(remoteObjects.size());
+      }
+      awaitAll(tasks);
+    } finally {
+      executor.shutdownNow();
+    }
+    result.elapsedMillis = System.currentTimeMillis() - start;
+    return result;
+  }
+
+  /** Returns {@code prefix} ending with {@code "/"}, or {@code ""} for none. */
+  public static String toFolder(String prefix) {
+    if (prefix == null || prefix.isEmpty()) {
+      return "";
+    }
+    return prefix.endsWith("/") ? prefix : prefix + "/";
+  }
+
+  /** Collects the regular files under {@code directory} and the object names they map to. */
+  private static void walk(File directory, String namePrefix, List<File> files,
+      List<String> names) throws IOException {
+    File[] children = directory.listFiles();
+    if (children == null) {
+      throw new IOException("Unable to list " + directory);
+    }
+    for (File child : children) {
+      // Object names always use '/', whatever the local separator.
+      if (child.isDirectory()) {
+        walk(child, namePrefix + child.getName() + "/", files, names);
+      } else if (child.isFile()) {
+        files.add(child);
+        names.add(namePrefix + child.getName());
+      }
+    }
+  }
+
+  private static void awaitAll(List<Future<Void>> tasks) throws IOException {
+    IOException failure = null;
+    for (Future<Void> task : tasks) {
+      try {
+        task.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while syncing");
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = e.getCause() instanceof IOException
+              ? (IOException) e.getCause()
+              : new IOException("Sync failed", e.getCause());
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /** Uploads a local file unless an object of the same size and crc32c already exists. */
+  private static class SyncFile implements Callable<Void> {
+
+    private final Storage storage;
+    private final String bucketName;
+    private final String objectName;
+    private final File file;
+    private final StorageObject remoteObject;
+    private final SyncResult result;
+
+    SyncFile(Storage storage, String bucketName, String objectName, File file,
+        StorageObject remoteObject, SyncResult result) {
+      this.storage = storage;
+      this.bucketName = bucketName;
+      this.objectName = objectName;
+      this.file = file;
+      this.remoteObject = remoteObject;
+      this.result = result;
+    }
+
+    @Override
+    public Void call() throws IOException {
+      long length = file.length();
+      if (remoteObject != null && remoteObject.getSize().longValue() == length) {
+        // Same size; only pay for reading the file when it might be unchanged.
+        String crc32c = BaseEncoding.base64().encode(
+            Ints.toByteArray(Files.asByteSource(file).hash(Hashing.crc32c()).asInt()));
+        if (crc32c.equals(remoteObject.getCrc32c())) {
+          result.unchanged.incrementAndGet();
+          return null;
+        }
+      }
+      FileInputStream in = new FileInputStream(file);
+      try {
+        ObjectsUploadExample.uploadWithMetadata(storage,
+            new StorageObject().setBucket(bucketName).setName(objectName), in, length);
+      } finally {
+        in.close();
+      }
+      result.uploaded.incrementAndGet();
+      result.bytesUploaded.addAndGet(length);
+      return null;
+    }
+  }
+
+  /** Deletes an object that no longer has a local file. */
+  private static class DeleteObject implements Callable<Void> {
+
+    private final Storage storage;
+    private final String bucketName;
+    private final StorageObject object;
+    private final SyncResult result;
+
+    DeleteObject(Storage storage, String bucketName, StorageObject object, SyncResult result) {
+      this.storage = storage;
+      this.bucketName = bucketName;
+      this.object = object;
+      this.result = result;
+    }
+
+    @Override
+    public Void call() throws IOException {
+      storage.objects().delete(bucketName, object.getName()).execute();
+      result.deleted.incrementAndGet();
+      return null;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+    JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+    Credential credential = CredentialsProvider.authorize(httpTransport, jsonFactory);
+    Storage storage = new Storage.Builder(httpTransport, jsonFactory, credential)
+        .setApplicationName("Google-ObjectsSyncExample/1.0").build();
+    // Only reports the objects with no local file; pass true to delete them.
+    System.out.println(sync(storage, new File(DIRECTORY_NAME), BUCKET_NAME, PREFIX, false));
+  }
+}
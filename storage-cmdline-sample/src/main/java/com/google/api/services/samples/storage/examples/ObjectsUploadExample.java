@@ -66,7 +66,17 @@ public class ObjectsUploadExample {
   
   public static StorageObject uploadWithMetadata(Storage storage, StorageObject object,
       InputStream data) throws IOException {
-    InputStreamContent mediaContent = new InputStreamContent(object.getContentType(), data);
+    return uploadWithMetadata(storage, object, data, -1);
+  }
+
+  /**
+   * Uploads {@code length} bytes of {@code data}. Knowing the length up front lets the media
+   * uploader stream chunks straight from {@code data} instead of buffering them to find the end.
+   */
+  public static StorageObject uploadWithMetadata(Storage storage, StorageObject object,
+      InputStream data, long length) throws IOException {
+    InputStreamContent mediaContent = new InputStreamContent(object.getContentType(), data)
+        .setLength(length);
     Storage.Objects.Insert insertObject = storage.objects().insert(object.getBucket(), object,
         mediaContent);
     insertObject.getMediaHttpUploader().setDisableGZipContent(true);
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.google.api.services.samples.storage.util;
+
+import java.io.IOException;
+
+/**
+ * Thrown when data read or written does not match the size, md5Hash or crc32c of its
+ * {@link com.google.api.services.storage.model.StorageObject}, i.e. it was altered in transit.
+ */
+public class ObjectIntegrityException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String objectName;
+  private final String property;
+  private final String expected;
+  private final String actual;
+
+  /**
+   * @param objectName name of the object whose data did not match
+   * @param property the mismatching property: {@code "size"}, {@code "md5Hash"} or
+   *     {@code "crc32c"}
+   * @param expected the value of the property in the object metadata
+   * @param actual the value calculated from the data
+   */
+  public ObjectIntegrityException(String objectName, String property, String expected,
+      String actual) {
+    super(property + " mismatch for " + objectName + ": expected " + expected + ", calculated "
+        + actual + " (data altered in transit)");
+    this.objectName = objectName;
+    this.property = property;
+    this.expected = expected;
+    this.actual = actual;
+  }
+
+  public String getObjectName() {
+    return objectName;
+  }
+
+  public String getProperty() {
+    return property;
+  }
+
+  public String getExpected() {
+    return expected;
+  }
+
+  public String getActual() {
+    return actual;
+  }
+}
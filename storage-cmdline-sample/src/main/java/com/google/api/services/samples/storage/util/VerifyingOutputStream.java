@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.google.api.services.samples.storage.util;
+
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.primitives.Ints;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Download sink that checks data against the size, md5Hash and crc32c of a {@link StorageObject}.
+ *
+ * <p>Each buffer written updates the md5 and crc32c and is then written to an optional target
+ * channel, in a single pass with no intermediate streams. Writing more bytes than the object's
+ * size fails immediately; the hashes are checked by {@link #close()} (or {@link #verify()}).
+ * Either failure is reported as an {@link ObjectIntegrityException}.
+ */
+public class VerifyingOutputStream extends OutputStream {
+
+  private final StorageObject expected;
+  private final long expectedSize;
+  private final WritableByteChannel target;
+  private final MessageDigest md5;
+  private final Hasher crc32c;
+  private long size;
+  private String md5Hash;
+  private String crc32cHash;
+
+  /**
+   * @param expected metadata of the object being downloaded; its size, md5Hash and crc32c are
+   *     checked when present (composite objects have no md5Hash)
+   * @param target where to write the data, or {@code null} to only verify it
+   */
+  public VerifyingOutputStream(StorageObject expected, WritableByteChannel target) {
+    this.expected = expected;
+    this.expectedSize = expected.getSize() == null ? -1 : expected.getSize().longValue();
+    this.target = target;
+    try {
+      md5 = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+    crc32c = Hashing.crc32c().newHasher();
+  }
+
+  /** Returns a sink that saves the data to {@code file} while verifying it. */
+  public static VerifyingOutputStream toFile(StorageObject expected, File file)
+      throws FileNotFoundException {
+    return new VerifyingOutputStream(expected, new FileOutputStream(file).getChannel());
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (md5Hash != null) {
+      throw new IOException("Stream already verified");
+    }
+    size += len;
+    if (expectedSize != -1 && size > expectedSize) {
+      throw new ObjectIntegrityException(expected.getName(), "size", String.valueOf(expectedSize),
+          "at least " + size);
+    }
+    md5.update(b, off, len);
+    crc32c.putBytes(b, off, len);
+    if (target != null) {
+      ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+      while (buffer.hasRemaining()) {
+        target.write(buffer);
+      }
+    }
+  }
+
+  /**
+   * Finishes the hashes and compares them, and the number of bytes written, to the object.
+   * Does not close the target; no more data may be written afterwards. Only the first mismatch is
+   * thrown, but both hashes are finished first, so each can be compared with the getters.
+   */
+  public void verify() throws ObjectIntegrityException {
+    if (md5Hash == null) {
+      md5Hash = BaseEncoding.base64().encode(md5.digest());
+      // Big-endian, like the service; HashCode.asBytes() would be little-endian.
+      crc32cHash = BaseEncoding.base64().encode(Ints.toByteArray(crc32c.hash().asInt()));
+    }
+    if (expectedSize != -1 && size != expectedSize) {
+      throw new ObjectIntegrityException(expected.getName(), "size", String.valueOf(expectedSize),
+          String.valueOf(size));
+    }
+    if (expected.getMd5Hash() != null && !expected.getMd5Hash().equals(md5Hash)) {
+      throw new ObjectIntegrityException(expected.getName(), "md5Hash", expected.getMd5Hash(),
+          md5Hash);
+    }
+    if (expected.getCrc32c() != null && !expected.getCrc32c().equals(crc32cHash)) {
+      throw new ObjectIntegrityException(expected.getName(), "crc32c", expected.getCrc32c(),
+          crc32cHash);
+    }
+  }
+
+  /** Closes the target, if any, and then {@link #verify() verifies} the data. */
+  @Override
+  public void close() throws IOException {
+    if (target != null) {
+      target.close();
+    }
+    verify();
+  }
+
+  /** Returns the number of bytes written so far. */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * Returns the base64-encoded md5 of the data, once {@link #verify()} has been called, even if it
+   * threw.
+   */
+  public String getMd5Hash() {
+    return md5Hash;
+  }
+
+  /**
+   * Returns the base64-encoded crc32c of the data, once {@link #verify()} has been called, even if
+   * it threw.
+   */
+  public String getCrc32c() {
+    return crc32cHash;
+  }
+}
@@ -54,6 +54,7 @@ public class TaskQueueSample {
   private static String taskQueueName;
   private static int leaseSecs;
   private static int numTasks;
+  private static int workerThreads;
 
   /** Directory to store user credentials. */
   private static final java.io.File DATA_STORE_DIR =
@@ -125,6 +126,11 @@ public class TaskQueueSample {
     com.google.api.services.taskqueue.model.TaskQueue queue = getQueue(taskQueue);
     System.out.println(queue);
 
+    if (workerThreads > 0) {
+      runWorker(taskQueue);
+      return;
+    }
+
     // lease, execute and delete tasks
     Tasks tasks = getLeasedTasks(taskQueue);
     if (tasks.getItems() == null || tasks.getItems().size() == 0) {
@@ -137,12 +143,43 @@ public class TaskQueueSample {
     }
   }
 
+  /**
+   * Keeps leasing and executing tasks with a {@link TaskQueueWorker} until the process is
+   * interrupted, then finishes the tasks already leased.
+   */
+  private static void runWorker(Taskqueue taskQueue) throws Exception {
+    final TaskQueueWorker worker = new TaskQueueWorker(taskQueue, projectName, taskQueueName,
+        leaseSecs, numTasks, workerThreads, new TaskQueueWorker.TaskHandler() {
+          @Override
+          public void execute(Task task) {
+            executeTask(task);
+          }
+        });
+    final Thread mainThread = Thread.currentThread();
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        worker.stop();
+        try {
+          mainThread.join(worker.getStopTimeoutMillis());
+        } catch (InterruptedException e) {
+          // Exit anyway; unfinished tasks will be leased again.
+        }
+      }
+    });
+    System.out.println("Leasing tasks until interrupted...");
+    worker.run();
+  }
+
   public static boolean parseParams(String[] args) {
     try {
       projectName = args[0];
       taskQueueName = args[1];
       leaseSecs = Integer.parseInt(args[2]);
       numTasks = Integer.parseInt(args[3]);
+      if (args.length > 4) {
+        workerThreads = Integer.parseInt(args[4]);
+      }
       return true;
     } catch (ArrayIndexOutOfBoundsException ae) {
       System.out.println("Insufficient Arguments");
@@ -156,11 +193,12 @@ public class TaskQueueSample {
 
   public static void printUsage() {
     System.out.println("mvn -q exec:java -Dexec.args=\"" + "<ProjectName> <TaskQueueName> "
-        + "<LeaseSeconds> <NumberOfTasksToLease>\"");
+        + "<LeaseSeconds> <NumberOfTasksToLease> [<WorkerThreads>]\"");
+    System.out.println("With WorkerThreads, keeps leasing and executing tasks until interrupted.");
   }
 
   public static void main(String[] args) {
-    if (args.length != 4) {
+    if (args.length != 4 && args.length != 5) {
       System.out.println("Insuficient arguments");
       printUsage();
       System.exit(1);
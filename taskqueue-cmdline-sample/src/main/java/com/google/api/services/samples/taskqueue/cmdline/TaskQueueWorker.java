@@ -0,0 +1,400 @@
+/*
+ * Copyright (c) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.google.api.services.samples.taskqueue.cmdline;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.taskqueue.Taskqueue;
+import com.google.api.services.taskqueue.model.Task;
+import com.google.api.services.taskqueue.model.Tasks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A long-running worker that leases tasks from a pull queue, executes them on a pool of threads
+ * and deletes ("acks") them once done.
+ *
+ * <p>The lease loop keeps up to {@code numTasks} more tasks leased than there are worker threads,
+ * so workers never wait on a lease round trip. Completed tasks are deleted in batch requests, and
+ * tasks still running when their lease is about to expire have it extended, also in batches. A
+ * task that fails is left for its lease to expire, so the queue hands it out again. A lease request
+ * that fails is retried after the same backoff as an empty queue, so that a transient error does
+ * not stop the worker. A delete that fails with a 429 or 5xx is retried on the next housekeeping
+ * run while the task's lease lasts; a 404 means the task is already gone, and any other error
+ * leaves the task to be executed again.
+ */
+public class TaskQueueWorker {
+
+  /** Executes the work described by a task. */
+  public interface TaskHandler {
+
+    /** Throws if the task failed and should be retried. */
+    void execute(Task task) throws Exception;
+  }
+
+  /** The most calls put in one batch request. */
+  private static final int MAX_BATCH_SIZE = 1000;
+
+  /** How often completed tasks are deleted and leases checked. */
+  private static final long HOUSEKEEPING_INTERVAL_MILLIS = 1000;
+
+  /** How often metrics are printed. */
+  private static final long METRICS_INTERVAL_MILLIS = 10000;
+
+  /** Longest wait between leases while the queue is empty. */
+  private static final long MAX_IDLE_WAIT_MILLIS = 10000;
+
+  /** Time allowed, once stopped, for a lease request in flight and for the final deletes. */
+  private static final long STOP_REQUESTS_MILLIS = 10000;
+
+  private final Taskqueue taskQueue;
+  private final String projectName;
+  private final String taskQueueName;
+  private final int leaseSecs;
+  private final int numTasks;
+  private final TaskHandler handler;
+
+  private final ExecutorService workers;
+  private final ScheduledExecutorService housekeeping =
+      Executors.newSingleThreadScheduledExecutor();
+
+  /** Limits the tasks leased but not yet executed, so leases are not held for too long. */
+  private final Semaphore slots;
+
+  /** Leased tasks that have not been deleted yet, by task ID. */
+  private final ConcurrentMap<String, Leased> leased = new ConcurrentHashMap<String, Leased>();
+  private final BlockingQueue<Leased> toDelete = new LinkedBlockingQueue<Leased>();
+
+  private volatile boolean running = true;
+
+  /** The thread in {@link #run}, while it is leasing; guarded by {@code this}. */
+  private Thread leaseThread;
+
+  private final long startNanos = System.nanoTime();
+  private final AtomicLong tasksLeased = new AtomicLong();
+  private final AtomicLong tasksAcked = new AtomicLong();
+  private final AtomicLong tasksFailed = new AtomicLong();
+  private final AtomicLong leasesExtended = new AtomicLong();
+  private final AtomicLong totalLeaseToAckMillis = new AtomicLong();
+  private final AtomicLong maxLeaseToAckMillis = new AtomicLong();
+
+  /** A leased task and when its lease runs out. */
+  private static class Leased {
+
+    final Task task;
+    final long leasedAtMillis;
+    volatile long leaseExpiresMillis;
+    volatile boolean executed;
+
+    Leased(Task task, long leasedAtMillis, long leaseExpiresMillis) {
+      this.task = task;
+      this.leasedAtMillis = leasedAtMillis;
+      this.leaseExpiresMillis = leaseExpiresMillis;
+    }
+  }
+
+  /**
+   * @param taskQueue Taskqueue service object on which to run the requests.
+   * @param projectName the project the queue belongs to.
+   * @param taskQueueName the pull queue to lease tasks from.
+   * @param leaseSecs how long each lease, or lease extension, lasts.
+   * @param numTasks the most tasks to lease at once.
+   * @param workerThreads the number of tasks to execute at once.
+   * @param handler executes the tasks.
+   */
+  public TaskQueueWorker(Taskqueue taskQueue, String projectName, String taskQueueName,
+      int leaseSecs, int numTasks, int workerThreads, TaskHandler handler) {
+    this.taskQueue = taskQueue;
+    this.projectName = projectName;
+    this.taskQueueName = taskQueueName;
+    this.leaseSecs = leaseSecs;
+    this.numTasks = numTasks;
+    this.handler = handler;
+    this.workers = Executors.newFixedThreadPool(workerThreads);
+    this.slots = new Semaphore(workerThreads + numTasks);
+  }
+
+  /**
+   * Leases and executes tasks until {@link #stop} is called, then waits for the tasks already
+   * leased to finish and be deleted.
+   */
+  public void run() throws IOException, InterruptedException {
+    housekeeping.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          deleteCompleted();
+          extendLeases();
+        } catch (IOException e) {
+          System.err.println("Housekeeping failed: " + e.getMessage());
+        }
+      }
+    }, HOUSEKEEPING_INTERVAL_MILLIS, HOUSEKEEPING_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    housekeeping.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        System.out.println(getMetrics());
+      }
+    }, METRICS_INTERVAL_MILLIS, METRICS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+    synchronized (this) {
+      leaseThread = Thread.currentThread();
+    }
+    try {
+      leaseLoop();
+    } finally {
+      synchronized (this) {
+        leaseThread = null;
+        if (!running) {
+          // Clear an interrupt from stop() that arrived outside of a blocking call, so that it
+          // does not cut the cleanup short.
+          Thread.interrupted();
+        }
+      }
+      workers.shutdown();
+      workers.awaitTermination(leaseSecs, TimeUnit.SECONDS);
+      housekeeping.shutdown();
+      housekeeping.awaitTermination(HOUSEKEEPING_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+      // Delete whatever finished after the last housekeeping run.
+      deleteCompleted();
+      System.out.println(getMetrics());
+    }
+  }
+
+  /**
+   * Stops leasing new tasks, interrupting a wait for room or for the queue to fill; {@link #run}
+   * returns once the leased tasks are done, within {@link #getStopTimeoutMillis}.
+   */
+  public synchronized void stop() {
+    running = false;
+    if (leaseThread != null) {
+      leaseThread.interrupt();
+    }
+  }
+
+  /**
+   * Returns the longest {@link #run} should take to return after {@link #stop}: a lease request
+   * in flight, the tasks already leased, the last housekeeping run and the final deletes.
+   */
+  public long getStopTimeoutMillis() {
+    return leaseSecs * 1000L + HOUSEKEEPING_INTERVAL_MILLIS + STOP_REQUESTS_MILLIS;
+  }
+
+  private void leaseLoop() throws InterruptedException {
+    long idleWaitMillis = HOUSEKEEPING_INTERVAL_MILLIS;
+    try {
+      while (running) {
+        // Wait for room, then take as much of it as one lease can fill.
+        slots.acquire();
+        int permits = 1;
+        while (permits < numTasks && slots.tryAcquire()) {
+          permits++;
+        }
+
+        List<Task> items;
+        try {
+          Tasks tasks = taskQueue.tasks().lease(projectName, taskQueueName, permits, leaseSecs)
+              .execute();
+          items = tasks.getItems() == null ? new ArrayList<Task>() : tasks.getItems();
+        } catch (IOException e) {
+          // Usually a network or server error that clears up; back off as if the queue were empty.
+          if (running) {
+            System.err.println("Unable to lease tasks: " + e.getMessage());
+          }
+          items = new ArrayList<Task>();
+        }
+        slots.release(permits - items.size());
+        long now = System.currentTimeMillis();
+        for (Task task : items) {
+          final Leased lease = new Leased(task, now, leaseExpiry(task, now));
+          leased.put(task.getId(), lease);
+          tasksLeased.incrementAndGet();
+          workers.execute(new Runnable() {
+            @Override
+            public void run() {
+              execute(lease);
+            }
+          });
+        }
+
+        if (items.isEmpty()) {
+          // Back off while the queue is empty or leasing fails.
+          Thread.sleep(idleWaitMillis);
+          idleWaitMillis = Math.min(MAX_IDLE_WAIT_MILLIS, idleWaitMillis * 2);
+        } else {
+          idleWaitMillis = HOUSEKEEPING_INTERVAL_MILLIS;
+        }
+      }
+    } catch (InterruptedException e) {
+      if (running) {
+        throw e;
+      }
+      // Interrupted by stop().
+    }
+  }
+
+  private void execute(Leased lease) {
+    try {
+      handler.execute(lease.task);
+      lease.executed = true;
+      toDelete.add(lease);
+    } catch (Exception e) {
+      // Leave the task to be leased again once its lease runs out.
+      System.err.println("Task " + lease.task.getId() + " failed: " + e.getMessage());
+      tasksFailed.incrementAndGet();
+      leased.remove(lease.task.getId());
+    } finally {
+      slots.release();
+    }
+  }
+
+  /**
+   * Deletes completed tasks, in batches. Deletes that fail with a transient error are retried on
+   * the next housekeeping run, not in this one, so that an outage does not hold up lease
+   * extensions.
+   */
+  private void deleteCompleted() throws IOException {
+    List<Leased> batch = new ArrayList<Leased>();
+    final Set<Leased> retries = new LinkedHashSet<Leased>();
+    while (toDelete.drainTo(batch, MAX_BATCH_SIZE) > 0) {
+      BatchRequest request = taskQueue.batch();
+      for (final Leased lease : batch) {
+        taskQueue.tasks().delete(projectName, taskQueueName, lease.task.getId())
+            .queue(request, new JsonBatchCallback<Void>() {
+              @Override
+              public void onSuccess(Void result, HttpHeaders responseHeaders) {
+                acked(lease);
+              }
+
+              @Override
+              public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+                if (error.getCode() == 404) {
+                  // Already deleted, by an earlier attempt whose response was lost.
+                  acked(lease);
+                } else if (error.getCode() == 429 || error.getCode() >= 500) {
+                  retryDelete(lease, error.getMessage(), retries);
+                } else {
+                  giveUpDelete(lease, error.getMessage());
+                }
+              }
+            });
+      }
+      try {
+        request.execute();
+      } catch (IOException e) {
+        for (Leased lease : batch) {
+          if (leased.containsKey(lease.task.getId())) {
+            retryDelete(lease, e.getMessage(), retries);
+          }
+        }
+      }
+      batch.clear();
+    }
+    toDelete.addAll(retries);
+  }
+
+  private void acked(Leased lease) {
+    leased.remove(lease.task.getId());
+    tasksAcked.incrementAndGet();
+    long latency = System.currentTimeMillis() - lease.leasedAtMillis;
+    totalLeaseToAckMillis.addAndGet(latency);
+    long max;
+    while (latency > (max = maxLeaseToAckMillis.get())
+        && !maxLeaseToAckMillis.compareAndSet(max, latency)) {
+      // Another thread raised the maximum first; check again.
+    }
+  }
+
+  private void retryDelete(Leased lease, String message, Set<Leased> retries) {
+    if (System.currentTimeMillis() < lease.leaseExpiresMillis) {
+      retries.add(lease);
+    } else {
+      giveUpDelete(lease, message);
+    }
+  }
+
+  private void giveUpDelete(Leased lease, String message) {
+    // The task is back in the queue, or will be once its lease runs out, and will run again.
+    System.err.println("Unable to delete task " + lease.task.getId() + ": " + message);
+    leased.remove(lease.task.getId());
+  }
+
+  /** Extends the leases of tasks that are still running and will expire before the next check. */
+  private void extendLeases() throws IOException {
+    long renewBefore =
+        System.currentTimeMillis() + Math.max(2 * HOUSEKEEPING_INTERVAL_MILLIS, leaseSecs * 250L);
+    List<Leased> expiring = new ArrayList<Leased>();
+    for (Leased lease : leased.values()) {
+      if (!lease.executed && lease.leaseExpiresMillis < renewBefore) {
+        expiring.add(lease);
+      }
+    }
+    for (int i = 0; i < expiring.size(); i += MAX_BATCH_SIZE) {
+      BatchRequest request = taskQueue.batch();
+      int end = Math.min(i + MAX_BATCH_SIZE, expiring.size());
+      for (final Leased lease : expiring.subList(i, end)) {
+        taskQueue.tasks()
+            .update(projectName, taskQueueName, lease.task.getId(), leaseSecs, lease.task)
+            .queue(request, new JsonBatchCallback<Task>() {
+              @Override
+              public void onSuccess(Task task, HttpHeaders responseHeaders) {
+                lease.leaseExpiresMillis = leaseExpiry(task, System.currentTimeMillis());
+                leasesExtended.incrementAndGet();
+              }
+
+              @Override
+              public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+                System.err.println("Unable to extend the lease of task " + lease.task.getId()
+                    + ": " + error.getMessage());
+              }
+            });
+      }
+      request.execute();
+    }
+  }
+
+  /** Returns when a task's lease runs out, from its lease timestamp in microseconds if given. */
+  private long leaseExpiry(Task task, long now) {
+    return task.getLeaseTimestamp() != null
+        ? task.getLeaseTimestamp() / 1000 : now + leaseSecs * 1000L;
+  }
+
+  /** Returns the throughput and lease-to-ack latency so far. */
+  public String getMetrics() {
+    double seconds = Math.max(1, (System.nanoTime() - startNanos) / 1000000) / 1000.0;
+    long acked = tasksAcked.get();
+    return String.format("Leased %d, acked %d (%.1f tasks/s), failed %d, leases extended %d; "
+        + "lease-to-ack latency mean %d ms, max %d ms",
+        tasksLeased.get(), acked, acked / seconds, tasksFailed.get(), leasesExtended.get(),
+        acked == 0 ? 0 : totalLeaseToAckMillis.get() / acked, maxLeaseToAckMillis.get());
+  }
+}